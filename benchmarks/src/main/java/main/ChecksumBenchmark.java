@@ -0,0 +1,75 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the header checksum and of the CRC32C over packets of
+ * the sizes a transfer uses, from an acknowledgement to the largest
+ * datagram, held in an array or in a direct buffer as the event loop
+ * holds them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChecksumBenchmark {
+
+    @Param({"64", "512", "1472", "8192", "65507"})
+    public int size;
+
+    private byte[] array;
+
+    private ByteBuffer direct;
+
+    private Header crcHead;
+
+    @Setup
+    public void setUp() {
+        array = new byte[size];
+        new Random(size).nextBytes(array);
+
+        direct = ByteBuffer.allocateDirect(size);
+        direct.put(array);
+        direct.flip();
+
+        /* Room for the CRC appended after the packet */
+        ByteBuffer crcPacket = ByteBuffer.allocateDirect(size +
+                Header.CRC_FIELD_SIZE);
+        crcPacket.put(array);
+        crcPacket.flip();
+
+        crcHead = new Header(crcPacket);
+        crcHead.appendCrc();
+    }
+
+    @Benchmark
+    public int checksumArray() {
+        return Header.calculateChecksum(array);
+    }
+
+    @Benchmark
+    public int checksumDirect() {
+        return Header.calculateChecksum(direct);
+    }
+
+    @Benchmark
+    public int crcDirect() {
+        return crcHead.calculateCrc();
+    }
+}
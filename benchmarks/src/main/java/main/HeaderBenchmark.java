@@ -0,0 +1,90 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of writing and reading the fields of a data packet header in
+ * place, as the server and client do for every packet, and of building
+ * the status packet answering a request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderBenchmark {
+
+    private static final int PACKET_SIZE = 1472;
+
+    private ByteBuffer packet;
+
+    private Header head;
+
+    private int seq;
+
+    @Setup
+    public void setUp() {
+        packet = ByteBuffer.allocateDirect(PACKET_SIZE);
+        head = new Header(packet);
+
+        encode();
+    }
+
+    @Benchmark
+    public Header encode() {
+        packet.clear();
+
+        head.wrap(packet);
+        head.clear();
+        head.setSequenceNum(++seq);
+        head.setVersion(Header.VERSION);
+        head.setTimestampFlag(true);
+        head.setTimestamp(seq * 31);
+        head.setFileOffset((long) seq * PACKET_SIZE);
+
+        packet.position(PACKET_SIZE);
+        packet.flip();
+
+        head.setChecksum();
+
+        return head;
+    }
+
+    @Benchmark
+    public void decode(Blackhole bh) {
+        Header h = head.wrap(packet);
+
+        bh.consume(h.getChecksum() == Header.calculateChecksum(packet));
+        bh.consume(Header.unwrap(h.getSequenceNum(), seq));
+        bh.consume(h.getAckFlag() || h.getReqFlag() || h.getSynFlag());
+        bh.consume(h.getParityFlag());
+        bh.consume(h.getTimestamp());
+        bh.consume(h.getDataOffset());
+        bh.consume(h.getFileOffset());
+    }
+
+    @Benchmark
+    public byte[] statusPacket() {
+        return Header.createStatusPacket(true, 1 << 20, 1L << 30,
+                1500000000000L);
+    }
+
+    @Benchmark
+    public byte[] requestPacket() {
+        return Header.createRequestPacket("some/directory/file.bin");
+    }
+}
@@ -0,0 +1,262 @@
+package main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Relay on the loopback interface standing in for the network between
+ * clients and a server. Clients send to the relay's port as if it were
+ * the server. Each client gets a socket of its own towards the server,
+ * so the server sees one address per client as it would otherwise.
+ * Every datagram passes through an {@link Impairment} for its
+ * direction and is delivered when and as often as that decides.
+ */
+public class ImpairedLink implements Runnable, Closeable {
+
+    private static final int MAX_DATAGRAM = 65535;
+
+    private final InetSocketAddress server;
+
+    private final Impairment toServer;
+
+    private final Impairment toClient;
+
+    private final Selector selector;
+
+    /**
+     * Socket the clients send to
+     */
+    private final DatagramChannel front;
+
+    /**
+     * Socket towards the server of each client, by client address
+     */
+    private final Map<SocketAddress, DatagramChannel> upstream;
+
+    /**
+     * Datagrams waiting to arrive, earliest first
+     */
+    private final PriorityQueue<Delivery> pending;
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    private long order;
+
+    private long forwarded;
+
+    private long dropped;
+
+    /**
+     * Datagram on its way, and where it is delivered from and to
+     */
+    private static class Delivery implements Comparable<Delivery> {
+
+        final long time;
+        final long order;
+        final byte[] data;
+        final DatagramChannel from;
+        final SocketAddress to;
+
+        Delivery(long time, long order, byte[] data, DatagramChannel from,
+                 SocketAddress to) {
+            this.time = time;
+            this.order = order;
+            this.data = data;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public int compareTo(Delivery o) {
+            if (time != o.time) return time < o.time ? -1 : 1;
+
+            return Long.compare(order, o.order);
+        }
+    }
+
+    /****************************************************************
+     * Opens the relay and starts it on a thread of its own.
+     *
+     * @param server address of the server
+     * @param toServer what happens to datagrams from the clients
+     * @param toClient what happens to datagrams from the server
+     * @throws IOException if a socket cannot be opened
+     ***************************************************************/
+    public ImpairedLink(InetSocketAddress server, Impairment toServer,
+                        Impairment toClient) throws IOException {
+        this.server = server;
+        this.toServer = toServer;
+        this.toClient = toClient;
+
+        upstream = new HashMap<SocketAddress, DatagramChannel>();
+        pending = new PriorityQueue<Delivery>();
+
+        selector = Selector.open();
+        front = open();
+
+        thread = new Thread(this, "impaired-link");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private DatagramChannel open() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                0));
+        channel.register(selector, SelectionKey.OP_READ);
+
+        return channel;
+    }
+
+    /**
+     * @return address clients send to in place of the server's
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) front.getLocalAddress();
+    }
+
+    /**
+     * @return datagrams delivered so far, duplicates included
+     */
+    public synchronized long getForwarded() {
+        return forwarded;
+    }
+
+    /**
+     * @return datagrams lost so far
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        Map<DatagramChannel, SocketAddress> clients =
+                new HashMap<DatagramChannel, SocketAddress>();
+
+        try {
+            while (!closed) {
+                Delivery next = pending.peek();
+                long wait = next == null ? -1 : next.time - System.nanoTime();
+
+                if (next == null) {
+                    selector.select();
+                } else if (wait < 1000000L) {
+                    selector.selectNow();
+                } else {
+                    selector.select(wait / 1000000L);
+                }
+
+                selector.selectedKeys().clear();
+
+                receive(buf, front, clients);
+
+                for (DatagramChannel channel : clients.keySet()) {
+                    receive(buf, channel, clients);
+                }
+
+                deliver();
+            }
+        } catch (IOException e) {
+            if (!closed) Log.error("Link failed: " + e.getMessage());
+        }
+    }
+
+    /****************************************************************
+     * Takes every datagram waiting on a socket and schedules its
+     * copies.
+     ***************************************************************/
+    private void receive(ByteBuffer buf, DatagramChannel channel,
+                         Map<DatagramChannel, SocketAddress> clients)
+            throws IOException {
+        while (true) {
+            buf.clear();
+
+            SocketAddress from = channel.receive(buf);
+
+            if (from == null) return;
+
+            buf.flip();
+
+            byte[] data = new byte[buf.remaining()];
+            buf.get(data);
+
+            long now = System.nanoTime();
+
+            DatagramChannel out;
+            SocketAddress to;
+            long[] times;
+
+            if (channel == front) {
+                out = upstream.get(from);
+
+                if (out == null) {
+                    out = open();
+                    upstream.put(from, out);
+                    clients.put(out, from);
+                }
+
+                to = server;
+                times = toServer.schedule(data.length, now);
+            } else {
+                out = front;
+                to = clients.get(channel);
+                times = toClient.schedule(data.length, now);
+            }
+
+            synchronized (this) {
+                if (times.length == 0) dropped++;
+            }
+
+            for (long time : times) {
+                pending.add(new Delivery(time, order++, data, out, to));
+            }
+        }
+    }
+
+    private void deliver() throws IOException {
+        long now = System.nanoTime();
+
+        while (!pending.isEmpty() && pending.peek().time <= now) {
+            Delivery d = pending.poll();
+            d.from.send(ByteBuffer.wrap(d.data), d.to);
+
+            synchronized (this) {
+                forwarded++;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (DatagramChannel channel : upstream.values()) {
+            channel.close();
+        }
+
+        front.close();
+        selector.close();
+    }
+}
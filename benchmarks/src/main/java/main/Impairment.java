@@ -0,0 +1,19 @@
+package main;
+
+/**
+ * What a simulated network does to each datagram crossing it in one
+ * direction. Implementations hold their own state, such as a queue
+ * filling up, and draw from a seeded generator so that runs repeat.
+ */
+public interface Impairment {
+
+    /****************************************************************
+     * Decides the fate of a datagram entering the network.
+     *
+     * @param length size of the datagram in bytes
+     * @param now time it entered in nanoseconds, from System.nanoTime
+     * @return times in nanoseconds at which copies of it arrive, none
+     * if it is lost
+     ***************************************************************/
+    long[] schedule(int length, long now);
+}
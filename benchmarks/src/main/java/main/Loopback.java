@@ -0,0 +1,181 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * End to end benchmark of the transfer protocol. A server and a client
+ * run in this process and talk over the loopback interface through an
+ * {@link ImpairedLink}, so that a seed and the udp.sim settings (see
+ * {@link NetworkProfile}) give the same network conditions every run.
+ * Each file size is downloaded in turn, reporting completion time,
+ * goodput and the share of data packets that were retransmissions.
+ *
+ * Sizes are set with udp.sim.sizes, such as 64k,1m,16m, runs of each
+ * with udp.sim.runs and the seed with udp.sim.seed. The other udp.*
+ * properties configure the client and server as usual.
+ */
+public final class Loopback {
+
+    private Loopback() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = Long.getLong("udp.sim.seed", 1);
+        int runs = Math.max(1, Integer.getInteger("udp.sim.runs", 1));
+        String[] sizes = System.getProperty("udp.sim.sizes",
+                "64k,1m,16m").split(",");
+
+        if (System.getProperty("udp.log") == null) {
+            Log.setLevel(Log.Level.WARN);
+        }
+
+        File root = Files.createTempDirectory("loopback").toFile();
+        File files = new File(root, "files");
+        files.mkdirs();
+
+        Server server = new Server.Builder().root(files.getPath()).build();
+        InetSocketAddress serverAddr = new InetSocketAddress(
+                "127.0.0.1", server.getPort());
+
+        server.start();
+
+        TransferClient client = new TransferClient();
+
+        Metrics.Counter sent = Metrics.global().counter("packets_sent_total",
+                "Data packets sent, resent ones included");
+        Metrics.Counter resent = Metrics.global().counter("retransmits_total",
+                "Data packets sent again");
+
+        System.out.printf("%10s %4s %10s %12s %10s %10s %8s%n", "size", "run",
+                "time (s)", "goodput MB/s", "packets", "resent", "ratio");
+
+        boolean failed = false;
+
+        try {
+            for (String size : sizes) {
+                long bytes = parseSize(size.trim());
+                String name = "file-" + bytes + ".bin";
+                File source = new File(files, name);
+
+                write(source, bytes, seed);
+
+                for (int run = 1; run <= runs; run++) {
+                    long packets = sent.get();
+                    long retransmits = resent.get();
+
+                    File dir = new File(root, "client-" + bytes + "-" + run);
+                    dir.mkdirs();
+
+                    /* Each direction draws from a seed of its own */
+                    long runSeed = seed * 1000003L + run;
+                    ImpairedLink link = new ImpairedLink(serverAddr,
+                            NetworkProfile.fromProperties(2 * runSeed),
+                            NetworkProfile.fromProperties(2 * runSeed + 1));
+
+                    long start = System.nanoTime();
+                    boolean ok = true;
+
+                    try {
+                        client.fetch(link.getAddress(), name, dir, null)
+                                .get();
+                    } catch (ExecutionException e) {
+                        ok = false;
+                    } finally {
+                        link.close();
+                    }
+
+                    double seconds = (System.nanoTime() - start) / 1e9;
+
+                    ok = ok && same(source, new File(dir, name));
+                    failed |= !ok;
+
+                    packets = sent.get() - packets;
+                    retransmits = resent.get() - retransmits;
+
+                    System.out.printf("%10s %4d %10.3f %12.2f %10d %10d " +
+                                    "%7.2f%%%s%n", size.trim(), run, seconds,
+                            bytes / seconds / 1e6, packets, retransmits,
+                            packets == 0 ? 0 : 100.0 * retransmits / packets,
+                            ok ? "" : "  FAILED");
+                }
+            }
+        } finally {
+            server.stop();
+            delete(root);
+            Log.flush();
+        }
+
+        if (failed) System.exit(1);
+    }
+
+    /****************************************************************
+     * @param size number of bytes, optionally ending in k, m or g
+     * @return the number of bytes
+     ***************************************************************/
+    private static long parseSize(String size) {
+        String s = size.toLowerCase();
+        int shift = 0;
+
+        if (s.endsWith("k")) {
+            shift = 10;
+        } else if (s.endsWith("m")) {
+            shift = 20;
+        } else if (s.endsWith("g")) {
+            shift = 30;
+        }
+
+        if (shift > 0) s = s.substring(0, s.length() - 1);
+
+        return Long.parseLong(s) << shift;
+    }
+
+    /****************************************************************
+     * Writes a file of random bytes, the same for the same seed.
+     ***************************************************************/
+    private static void write(File file, long size, long seed)
+            throws IOException {
+        Random random = new Random(seed ^ size);
+        byte[] chunk = new byte[1 << 20];
+
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (long done = 0; done < size; done += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length,
+                        size - done));
+            }
+        }
+    }
+
+    private static boolean same(File a, File b) throws IOException {
+        if (!b.isFile() || a.length() != b.length()) return false;
+
+        try (RandomAccessFile ra = new RandomAccessFile(a, "r");
+             RandomAccessFile rb = new RandomAccessFile(b, "r")) {
+            FileChannel ca = ra.getChannel();
+            FileChannel cb = rb.getChannel();
+
+            return Arrays.equals(FileDigest.compute(ca, a.length()),
+                    FileDigest.compute(cb, b.length()));
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+}
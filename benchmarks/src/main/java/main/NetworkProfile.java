@@ -0,0 +1,132 @@
+package main;
+
+import java.util.Random;
+
+/**
+ * Impairment with loss, duplication, reordering, a fixed delay and a
+ * bandwidth cap with a bounded queue, as seen on a congested path.
+ * Every datagram draws the same random numbers whatever happens to it,
+ * so a seed gives the same decisions for the same sequence of packets.
+ *
+ * Settings are read from system properties by {@link #fromProperties}:
+ * udp.sim.loss, udp.sim.duplicate and udp.sim.reorder as fractions of
+ * packets, udp.sim.delayMs, udp.sim.rateMbps (0 for no cap) and
+ * udp.sim.queueMs, the longest a packet waits for the link before it
+ * is dropped.
+ */
+public class NetworkProfile implements Impairment {
+
+    private static final long[] LOST = new long[0];
+
+    private final Random random;
+
+    private double loss;
+
+    private double duplicate;
+
+    private double reorder;
+
+    private long delay;
+
+    /**
+     * Nanoseconds per byte sent, 0 for no cap
+     */
+    private double perByte;
+
+    private long queueLimit = 100000000L;
+
+    /**
+     * Time the link finishes sending what is queued on it
+     */
+    private long busyUntil;
+
+    /****************************************************************
+     * @param seed seed of the random decisions
+     ***************************************************************/
+    public NetworkProfile(long seed) {
+        random = new Random(seed);
+    }
+
+    /****************************************************************
+     * @param seed seed of the random decisions
+     * @return a profile set from the udp.sim system properties
+     ***************************************************************/
+    public static NetworkProfile fromProperties(long seed) {
+        NetworkProfile p = new NetworkProfile(seed);
+
+        p.setLoss(getDouble("udp.sim.loss", 0));
+        p.setDuplicate(getDouble("udp.sim.duplicate", 0));
+        p.setReorder(getDouble("udp.sim.reorder", 0));
+        p.setDelayMs(getDouble("udp.sim.delayMs", 0));
+        p.setRateMbps(getDouble("udp.sim.rateMbps", 0));
+        p.setQueueMs(getDouble("udp.sim.queueMs", 100));
+
+        return p;
+    }
+
+    private static double getDouble(String key, double def) {
+        String value = System.getProperty(key);
+
+        return value == null ? def : Double.parseDouble(value);
+    }
+
+    public void setLoss(double loss) {
+        this.loss = loss;
+    }
+
+    public void setDuplicate(double duplicate) {
+        this.duplicate = duplicate;
+    }
+
+    /**
+     * @param reorder fraction of packets held back by up to one delay,
+     *                or a millisecond if there is none, and so overtaken
+     */
+    public void setReorder(double reorder) {
+        this.reorder = reorder;
+    }
+
+    public void setDelayMs(double ms) {
+        delay = (long) (ms * 1e6);
+    }
+
+    public void setRateMbps(double mbps) {
+        perByte = mbps <= 0 ? 0 : 8000.0 / mbps;
+    }
+
+    public void setQueueMs(double ms) {
+        queueLimit = (long) (ms * 1e6);
+    }
+
+    @Override
+    public long[] schedule(int length, long now) {
+        double lossDraw = random.nextDouble();
+        double duplicateDraw = random.nextDouble();
+        double reorderDraw = random.nextDouble();
+        double holdDraw = random.nextDouble();
+
+        long sent = now;
+
+        if (perByte > 0) {
+            long start = Math.max(now, busyUntil);
+
+            /* Drop-tail: the queue is full */
+            if (start - now > queueLimit) return LOST;
+
+            sent = start + (long) (length * perByte);
+            busyUntil = sent;
+        }
+
+        if (lossDraw < loss) return LOST;
+
+        long arrival = sent + delay;
+
+        if (reorderDraw < reorder) {
+            arrival += (long) (holdDraw * Math.max(delay, 1000000L));
+        }
+
+        if (duplicateDraw < duplicate) return new long[]{arrival, arrival};
+
+        return new long[]{arrival};
+    }
+}
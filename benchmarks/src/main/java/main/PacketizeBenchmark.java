@@ -0,0 +1,134 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Time to cut a whole file into data packets the way a session does
+ * before sending each one: header fields, payload read through the
+ * block cache or straight from the file, optional CRC32C and the
+ * checksum. Nothing is sent, so this is the server's CPU cost per file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketizeBenchmark {
+
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+    @Param({"1472", "8972"})
+    public int packetSize;
+
+    /**
+     * Block cache size in MB, 0 to read every payload from the file
+     */
+    @Param({"0", "64"})
+    public int cacheMb;
+
+    @Param({"false", "true"})
+    public boolean crc;
+
+    private File file;
+
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    private BlockCache.FileId id;
+
+    private BlockCache cache;
+
+    private ByteBuffer packet;
+
+    private Header head;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("packetize", ".bin");
+
+        byte[] data = new byte[FILE_SIZE];
+        new Random(1).nextBytes(data);
+
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.write(data);
+        }
+
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+        id = new BlockCache.FileId(file.getCanonicalPath(), FILE_SIZE,
+                file.lastModified());
+        cache = new BlockCache((long) cacheMb << 20);
+
+        packet = ByteBuffer.allocateDirect(packetSize);
+        head = new Header(packet);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        raf.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void packetize(Blackhole bh) throws IOException {
+        packet.clear();
+        head.clear();
+        head.setVersion(Header.VERSION);
+        head.setTimestampFlag(true);
+
+        final int start = head.getDataOffset();
+        final int payloadSize = packetSize - start -
+                (crc ? Header.CRC_FIELD_SIZE : 0);
+
+        long seq = 1;
+
+        for (long offset = 0; offset < FILE_SIZE; offset += payloadSize) {
+            packet.clear();
+
+            head.clear();
+            head.setSequenceNum((int) seq++);
+            head.setVersion(Header.VERSION);
+            head.setTimestampFlag(true);
+            head.setTimestamp((int) offset);
+            head.setFileOffset(offset);
+
+            int dataLen = (int) Math.min(FILE_SIZE - offset, payloadSize);
+
+            packet.limit(start + dataLen);
+            packet.position(start);
+
+            cache.read(id, channel, offset, packet);
+
+            packet.flip();
+
+            if (crc) head.appendCrc();
+
+            head.setChecksum();
+
+            bh.consume(head.getChecksum());
+        }
+    }
+}
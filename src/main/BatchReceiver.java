@@ -0,0 +1,204 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Places the packets of a batch of files. Each file starts with a
+ * framing packet giving its name, size and number of data packets, and
+ * its data packets follow it in sequence. Data packets that arrive
+ * before the framing packet of their file are held until it does.
+ */
+public class BatchReceiver implements Connection.Receiver {
+
+    /**
+     * A file of the batch whose framing packet arrived. Its channel is
+     * null once every packet of it is queued, or if it is skipped.
+     */
+    private static class Target {
+        String name;
+        long numPackets;
+        long remaining;
+        boolean skipped;
+        FileChannel channel;
+    }
+
+    /**
+     * A data packet waiting for the framing packet of its file
+     */
+    private static class Held {
+        ByteBuffer buf;
+        BufferPool pool;
+        long offset;
+    }
+
+    private final Path dir;
+
+    private final PositionalWriter writer;
+
+    /**
+     * Files whose framing packet arrived, keyed by its sequence number
+     */
+    private final TreeMap<Long, Target> files;
+
+    private final TreeMap<Long, Held> held;
+
+    private int filesDone;
+
+    /****************************************************************
+     * @param dir directory the files are written to, keeping the
+     *            directories they are in on the server
+     * @param writer writer shared by every file
+     ***************************************************************/
+    public BatchReceiver(File dir, PositionalWriter writer) {
+        this.dir = dir.toPath().toAbsolutePath().normalize();
+        this.writer = writer;
+
+        files = new TreeMap<Long, Target>();
+        held = new TreeMap<Long, Held>();
+    }
+
+    /**
+     * @return number of files received in full
+     */
+    public int getFilesDone() {
+        return filesDone;
+    }
+
+    @Override
+    public void receive(long seqNum, Header head, BufferPool pool)
+            throws IOException {
+        ByteBuffer buf = head.getBuffer();
+
+        if (head.getFileFlag()) {
+            try {
+                openFile(seqNum, buf);
+            } finally {
+                pool.release(buf);
+            }
+
+            return;
+        }
+
+        long offset = head.getFileOffset();
+        Map.Entry<Long, Target> entry = files.floorEntry(seqNum);
+
+        if (entry == null ||
+                seqNum > entry.getKey() + entry.getValue().numPackets) {
+            Held packet = new Held();
+            packet.buf = buf;
+            packet.pool = pool;
+            packet.offset = offset;
+
+            held.put(seqNum, packet);
+            return;
+        }
+
+        write(entry.getValue(), buf, pool, offset);
+    }
+
+    /****************************************************************
+     * Creates the file a framing packet starts and writes the packets
+     * of it that were held.
+     *
+     * @param seqNum sequence number of the framing packet
+     * @param frame buffer holding its payload between its position and
+     *              limit
+     * @throws IOException if the file cannot be created
+     ***************************************************************/
+    private void openFile(long seqNum, ByteBuffer frame) throws IOException {
+        int start = frame.position();
+
+        long fileSize = frame.getLong(start);
+        long numPackets = frame.getLong(start + 16);
+
+        Target target = new Target();
+        target.name = Header.readName(frame, start + Header.FRAME_PREAMBLE,
+                frame.limit());
+        target.numPackets = numPackets;
+        target.remaining = numPackets;
+
+        Path path = dir.resolve(target.name).normalize();
+
+        /* Never write outside the download directory */
+        if (!path.startsWith(dir) || path.equals(dir)) {
+            Log.warn("Skipping \"" + target.name +
+                    "\", it would be written outside " + dir);
+            target.skipped = true;
+        } else {
+            File parent = path.getParent().toFile();
+
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Could not create " + parent);
+            }
+
+            target.channel = FileChannel.open(path,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+
+            Log.info("Receiving \"" + target.name + "\", " +
+                    fileSize + " bytes");
+
+            if (numPackets == 0) finish(target);
+        }
+
+        files.put(seqNum, target);
+
+        Map<Long, Held> waiting = held.subMap(seqNum, false,
+                seqNum + numPackets, true);
+
+        for (Held packet : waiting.values()) {
+            write(target, packet.buf, packet.pool, packet.offset);
+        }
+
+        waiting.clear();
+    }
+
+    private void write(Target target, ByteBuffer buf, BufferPool pool,
+                       long offset) throws IOException {
+        if (target.skipped) {
+            pool.release(buf);
+            return;
+        }
+
+        writer.submit(buf, pool, target.channel, offset);
+
+        if (--target.remaining == 0) finish(target);
+    }
+
+    private void finish(Target target) throws IOException {
+        writer.closeWhenWritten(target.channel);
+        target.channel = null;
+        filesDone++;
+    }
+
+    /****************************************************************
+     * Releases the packets still held and closes the files left
+     * incomplete. Called once the writer is closed.
+     ***************************************************************/
+    public void close() {
+        for (Held packet : held.values()) {
+            packet.pool.release(packet.buf);
+        }
+
+        held.clear();
+
+        for (Target target : files.values()) {
+            if (target.channel == null) continue;
+
+            try {
+                target.channel.close();
+            } catch (IOException e) {
+                Log.warn(e.getMessage());
+            }
+
+            Log.warn("File \"" + target.name + "\" is incomplete");
+        }
+    }
+}
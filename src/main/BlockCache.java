@@ -0,0 +1,259 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Cache of file blocks shared by every session of the server, so that
+ * clients downloading the same file at the same time read it from disk
+ * once. Blocks are BLOCK_SIZE bytes held in direct buffers, allocated
+ * as they are first needed up to the capacity and then reused, and the
+ * least recently used block is evicted to make room. Blocks are keyed
+ * by the identity of the file, which changes along with its size or
+ * modification time, so a file that changes is never served from stale
+ * blocks.
+ *
+ * Only used from the server's event loop, so it is not thread safe,
+ * except for its counts, which may be read from any thread.
+ */
+public class BlockCache {
+
+    static final int BLOCK_SIZE = 256 * 1024;
+
+    /**
+     * Identity of a version of a file: the file system's key for the
+     * file, its size and its modification time
+     */
+    public static class FileId {
+
+        private final Object key;
+
+        private final long size;
+
+        private final long modified;
+
+        public FileId(Object key, long size, long modified) {
+            this.key = key;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileId)) return false;
+
+            FileId other = (FileId) o;
+
+            return key.equals(other.key) && size == other.size &&
+                    modified == other.modified;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() * 31 + Long.hashCode(modified);
+        }
+    }
+
+    private static class Key {
+        FileId file;
+        long index;
+
+        Key(FileId file, long index) {
+            this.file = file;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+
+            Key other = (Key) o;
+
+            return index == other.index && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return file.hashCode() * 31 + Long.hashCode(index);
+        }
+    }
+
+    private static class Block {
+        final ByteBuffer data;
+
+        /**
+         * View of the data reused for copying out of it
+         */
+        final ByteBuffer view;
+
+        int length;
+
+        Block() {
+            data = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            view = data.duplicate();
+        }
+    }
+
+    private final int maxBlocks;
+
+    /**
+     * Cached blocks, least recently used first
+     */
+    private final LinkedHashMap<Key, Block> blocks;
+
+    /**
+     * Key reused for lookups
+     */
+    private final Key probe;
+
+    private final Metrics.Counter hits = new Metrics.Counter(null);
+
+    private final Metrics.Counter misses = new Metrics.Counter(null);
+
+    private final Metrics.Counter evictions = new Metrics.Counter(null);
+
+    /**
+     * Blocks allocated, which are never freed
+     */
+    private volatile int allocated;
+
+    /****************************************************************
+     * @param capacity most bytes of blocks held, 0 to read every
+     *                 payload straight from its file
+     ***************************************************************/
+    public BlockCache(long capacity) {
+        maxBlocks = (int) Math.min(capacity / BLOCK_SIZE, Integer.MAX_VALUE);
+        blocks = new LinkedHashMap<Key, Block>(16, 0.75f, true);
+        probe = new Key(null, 0);
+    }
+
+    /****************************************************************
+     * Copies bytes of a file into a buffer from the blocks holding
+     * them, reading blocks that are not cached from the file first.
+     *
+     * @param file identity of the file
+     * @param channel file open for reading
+     * @param offset position in the file of the first byte
+     * @param dst buffer filled up to its limit, unless the file ends
+     * @throws IOException
+     ***************************************************************/
+    public void read(FileId file, FileChannel channel, long offset,
+                     ByteBuffer dst) throws IOException {
+        if (maxBlocks == 0) {
+            int start = dst.position();
+
+            while (dst.hasRemaining()) {
+                if (channel.read(dst, offset + dst.position() - start) < 0) {
+                    break;
+                }
+            }
+
+            return;
+        }
+
+        while (dst.hasRemaining()) {
+            long index = offset / BLOCK_SIZE;
+            int from = (int) (offset - index * BLOCK_SIZE);
+
+            Block block = getBlock(file, channel, index);
+
+            if (block.length <= from) return;
+
+            int len = Math.min(dst.remaining(), block.length - from);
+
+            block.view.limit(from + len).position(from);
+            dst.put(block.view);
+
+            offset += len;
+
+            /* Past the end of the file */
+            if (block.length < BLOCK_SIZE && from + len == block.length) {
+                return;
+            }
+        }
+    }
+
+    private Block getBlock(FileId file, FileChannel channel, long index)
+            throws IOException {
+        probe.file = file;
+        probe.index = index;
+
+        Block block = blocks.get(probe);
+
+        probe.file = null;
+
+        if (block != null) {
+            hits.increment();
+            return block;
+        }
+
+        misses.increment();
+
+        if (allocated < maxBlocks) {
+            block = new Block();
+            allocated++;
+        } else {
+            Iterator<Block> eldest = blocks.values().iterator();
+            block = eldest.next();
+            eldest.remove();
+            evictions.increment();
+        }
+
+        ByteBuffer data = block.data;
+        data.clear();
+
+        long position = index * BLOCK_SIZE;
+
+        while (data.hasRemaining()) {
+            if (channel.read(data, position + data.position()) < 0) break;
+        }
+
+        block.length = data.position();
+
+        blocks.put(new Key(file, index), block);
+
+        return block;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return bytes of blocks allocated
+     */
+    public long getSize() {
+        return (long) allocated * BLOCK_SIZE;
+    }
+
+    public long getCapacity() {
+        return (long) maxBlocks * BLOCK_SIZE;
+    }
+
+    @Override
+    public String toString() {
+        return "Block cache: " + getHits() + " hits, " + getMisses() +
+                " misses, " + getEvictions() + " evictions, " +
+                (getSize() >> 20) + " of " + (getCapacity() >> 20) +
+                " MB in use";
+    }
+}
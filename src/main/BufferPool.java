@@ -0,0 +1,52 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct packet buffers. Buffers are allocated up front and
+ * recycled, so receiving and sending packets in steady state allocates
+ * nothing. Buffers may be released from another thread than the one
+ * that acquired them.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+
+    private final int capacity;
+
+    private final ArrayDeque<ByteBuffer> free;
+
+    /****************************************************************
+     * @param bufferSize size of each buffer in bytes
+     * @param capacity number of buffers allocated up front, and the
+     *                 most kept once released
+     ***************************************************************/
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+
+        free = new ArrayDeque<ByteBuffer>(capacity);
+
+        for (int i = 0; i < capacity; i++) {
+            free.push(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    /****************************************************************
+     * @return a cleared buffer, newly allocated only if the pool is
+     * empty
+     ***************************************************************/
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+
+        if (buf == null) buf = ByteBuffer.allocateDirect(bufferSize);
+
+        buf.clear();
+        return buf;
+    }
+
+    public synchronized void release(ByteBuffer buf) {
+        if (free.size() < capacity) free.push(buf);
+    }
+}
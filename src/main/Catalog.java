@@ -0,0 +1,279 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Listing of the files in the served directory, kept between SYNs and
+ * only read again once a WatchService reports a change to the
+ * directory. The listing is sent to clients in pages, each small
+ * enough for one packet, laid out as a 4-byte generation, the 4-byte
+ * page index and the 4-byte number of pages, followed by one entry per
+ * file: a 2-byte name length, the name in UTF-8, the size and the
+ * modification time.
+ */
+public class Catalog {
+
+    /**
+     * Length of the generation, page index and number of pages that
+     * start every page
+     */
+    public static final int PAGE_PREAMBLE = 4 + 4 + 4;
+
+    /**
+     * A file in the listing
+     */
+    public static class Entry {
+
+        private final String name;
+
+        private final long size;
+
+        private final long modified;
+
+        public Entry(String name, long size, long modified) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return size in bytes, or -1 if the server did not say
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return modification time in milliseconds, or -1 if the server
+         * did not say
+         */
+        public long getModified() {
+            return modified;
+        }
+    }
+
+    private final Path dir;
+
+    /**
+     * Watcher of the directory, or null if it cannot be watched, in
+     * which case the directory is read again every time
+     */
+    private WatchService watcher;
+
+    private List<Entry> entries;
+
+    /**
+     * Number of times the directory was read, so that clients can tell
+     * pages of different listings apart
+     */
+    private int generation;
+
+    private String legacyList;
+
+    /**
+     * Encoded pages, by the room a packet has for them
+     */
+    private final Map<Integer, List<byte[]>> pages;
+
+    public Catalog(String path) {
+        dir = Paths.get(path);
+        pages = new HashMap<Integer, List<byte[]>>();
+
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            Log.warn("Not watching " + path + ": " +
+                    e.getMessage());
+            watcher = null;
+        }
+    }
+
+    /****************************************************************
+     * Reads the directory again if it changed since it was last read.
+     * Never blocks.
+     ***************************************************************/
+    private void refresh() {
+        boolean changed = watcher == null || entries == null;
+
+        if (watcher != null) {
+            WatchKey key;
+
+            while ((key = watcher.poll()) != null) {
+                if (!key.pollEvents().isEmpty()) changed = true;
+
+                key.reset();
+            }
+        }
+
+        if (!changed) return;
+
+        List<Entry> found = new ArrayList<Entry>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream) {
+                BasicFileAttributes attrs;
+
+                try {
+                    attrs = Files.readAttributes(p,
+                            BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue;
+                }
+
+                if (!attrs.isRegularFile()) continue;
+
+                found.add(new Entry(p.getFileName().toString(), attrs.size(),
+                        attrs.lastModifiedTime().toMillis()));
+            }
+        } catch (IOException e) {
+            Log.warn("Could not list " + dir + ": " +
+                    e.getMessage());
+        }
+
+        Collections.sort(found, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+
+        entries = found;
+        generation++;
+        legacyList = null;
+        pages.clear();
+    }
+
+    /****************************************************************
+     * @return the ';' separated list of file names sent to
+     * LEGACY_VERSION clients
+     ***************************************************************/
+    public String getLegacyList() {
+        refresh();
+
+        if (legacyList == null) {
+            StringBuilder list = new StringBuilder();
+
+            for (Entry entry : entries) {
+                list.append(entry.name).append(';');
+            }
+
+            legacyList = list.toString();
+        }
+
+        return legacyList;
+    }
+
+    /****************************************************************
+     * Encodes the listing into pages. Files whose entry would not fit
+     * in a page on its own are left out.
+     *
+     * @param room most bytes a page may take
+     * @return the pages, at least one even if the listing is empty
+     ***************************************************************/
+    public List<byte[]> getPages(int room) {
+        refresh();
+
+        List<byte[]> encoded = pages.get(room);
+
+        if (encoded != null) return encoded;
+
+        List<ByteBuffer> built = new ArrayList<ByteBuffer>();
+        ByteBuffer page = ByteBuffer.allocate(room);
+        page.position(PAGE_PREAMBLE);
+
+        for (Entry entry : entries) {
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            int len = 2 + name.length + 8 + 8;
+
+            if (PAGE_PREAMBLE + len > room) continue;
+
+            if (page.remaining() < len) {
+                built.add(page);
+                page = ByteBuffer.allocate(room);
+                page.position(PAGE_PREAMBLE);
+            }
+
+            page.putShort((short) name.length);
+            page.put(name);
+            page.putLong(entry.size);
+            page.putLong(entry.modified);
+        }
+
+        built.add(page);
+
+        encoded = new ArrayList<byte[]>(built.size());
+
+        for (int i = 0; i < built.size(); i++) {
+            ByteBuffer b = built.get(i);
+            b.putInt(0, generation);
+            b.putInt(4, i);
+            b.putInt(8, built.size());
+
+            byte[] bytes = new byte[b.position()];
+            System.arraycopy(b.array(), 0, bytes, 0, bytes.length);
+            encoded.add(bytes);
+        }
+
+        pages.put(room, encoded);
+
+        return encoded;
+    }
+
+    /****************************************************************
+     * Decodes the entries of a page.
+     *
+     * @param page buffer holding the page
+     * @param start index of the page in the buffer
+     * @param end index just past the page
+     * @return the entries
+     ***************************************************************/
+    public static List<Entry> readPage(ByteBuffer page, int start, int end) {
+        List<Entry> found = new ArrayList<Entry>();
+        int i = start + PAGE_PREAMBLE;
+
+        while (i + 2 <= end) {
+            int len = page.getShort(i) & 0xFFFF;
+
+            if (i + 2 + len + 16 > end) break;
+
+            byte[] name = new byte[len];
+
+            for (int k = 0; k < len; k++) {
+                name[k] = page.get(i + 2 + k);
+            }
+
+            i += 2 + len;
+
+            found.add(new Entry(new String(name, StandardCharsets.UTF_8),
+                    page.getLong(i), page.getLong(i + 8)));
+
+            i += 16;
+        }
+
+        return found;
+    }
+}
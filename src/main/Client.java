@@ -1,37 +1,190 @@
 package main;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Client {
 
-    private static final int RECV_WINDOW = 5;
-
-    /**
-     * Timeout in milliseconds
-     */
-    private static final int TIMEOUT = 5000;
-
     private String fileName;
-    private int numPackets;
-    private int fileSize;
+    private long fileSize;
+    private long modified;
     private int clientPort;
     private int serverPort;
     private InetAddress serverAddr;
-    private DatagramSocket clientSocket;
+    private InetSocketAddress server;
+
+    /**
+     * Settings of the download, see {@link TransferClient}
+     */
+    private TransferClient settings;
+
+    /**
+     * Largest packet size asked for, then the size agreed on with the
+     * server
+     */
+    private int packetSize;
+    private boolean probeMtu;
+    private boolean useCrc;
+
+    /**
+     * Number of connections the download is split over, each from its
+     * own port counting up from the client port
+     */
+    private int stripes;
+
+    private int fecGroup;
+    private int fecParity;
+    private int codec;
+
+    /**
+     * Told how far the download has come, or null
+     */
+    private ProgressListener listener;
+
+    /**
+     * Record of what has been written of the file, kept next to it as
+     * fileName.journal until the transfer completes
+     */
+    private Journal journal;
+
+    /**
+     * Whether the server is only sending the parts the journal lists as
+     * missing, and how many bytes those add up to
+     */
+    private boolean resuming;
+    private long bytesNeeded;
+
+    /**
+     * Ranges asked for when resuming, the rest of the file having been
+     * written by an earlier attempt
+     */
+    private long[] requested;
 
-    public Client() throws IOException {
+    /**
+     * Ranges of the file asked for over each connection, or null if
+     * the whole download goes over the first one
+     */
+    private long[][] parts;
+
+    /**
+     * Whether the name entered asks for a batch of files: several
+     * ';' separated names, a glob, or a directory ending in '/', and
+     * not the exact name of a file on the server
+     */
+    private boolean batch;
+
+    /**
+     * Names of the files the server lists
+     */
+    private Set<String> listed;
+
+    /**
+     * Whether to ask only for the differences from a copy of the file
+     * already in the directory
+     */
+    private boolean useDelta;
+
+    /**
+     * The old copy the differences are applied to, or null if the file
+     * is not being sent as a delta, and its size
+     */
+    private File deltaFrom;
+    private long oldSize;
+
+    /**
+     * Directory the file is written to
+     */
+    private File dir;
+
+    /****************************************************************
+     * Prompts for the ports and the server, to download into the
+     * working directory with the settings of the udp.* system
+     * properties. The file is chosen once the server lists them.
+     ***************************************************************/
+    public Client() {
         promptUser();
-        initializeClient();
 
-        if (!establishConnection()) return;
+        settings = new TransferClient();
+        settings.setClientPort(clientPort);
+        dir = new File(System.getProperty("user.dir"));
+    }
+
+    /****************************************************************
+     * Sets up a download that prompts for nothing, see
+     * {@link TransferClient#fetch}.
+     *
+     * @param settings settings of the download, the client port
+     *                 included
+     * @param server address and port of the server
+     * @param fileName name of the file, or of a batch, to download
+     * @param dir directory to write it to
+     * @param listener told how far the download has come, or null
+     ***************************************************************/
+    Client(TransferClient settings, InetSocketAddress server,
+           String fileName, File dir, ProgressListener listener) {
+        this.settings = settings;
+        this.clientPort = settings.getClientPort();
+        this.serverAddr = server.getAddress();
+        this.serverPort = server.getPort();
+        this.fileName = fileName;
+        this.dir = dir;
+        this.listener = listener;
+    }
+
+    /****************************************************************
+     * Downloads the file, or the batch of files, once the whole of it
+     * has arrived and checked out.
+     *
+     * @return the file downloaded, or the directory a batch went to
+     * @throws IOException saying why the download failed
+     ***************************************************************/
+    public File download() throws IOException {
+        useCrc = settings.getCrc();
+        probeMtu = settings.getProbeMtu();
+        packetSize = settings.getPacketSize();
+        stripes = settings.getStripes();
+        useDelta = settings.getDelta();
+        fecGroup = settings.getFecGroup();
+        fecParity = settings.getFecParity();
+        codec = settings.getCodec();
+
+        server = new InetSocketAddress(serverAddr, serverPort);
+
+        Connection first = new Connection(server, clientPort, useCrc);
+        first.setFec(fecGroup, fecParity);
+        first.setCodec(codec);
+
+        try {
+            establishConnection(first);
+            requestFile(first);
 
-        if (!requestFile()) return;
+            if (batch) {
+                acceptBatch(first);
+            } else if (deltaFrom != null) {
+                acceptDelta(first);
+            } else {
+                acceptFile(first);
+            }
+        } finally {
+            first.close();
+        }
 
-        acceptFile();
+        return batch ? dir : new File(dir, fileName);
     }
 
     private void promptUser() {
@@ -77,328 +230,688 @@ public class Client {
         } while (!serverPortSet);
     }
 
-    private void initializeClient() throws SocketException {
-      
-        try {
-            clientSocket = new DatagramSocket(clientPort);
-            clientSocket.setSoTimeout(TIMEOUT);
-        } catch (SocketException e) {
-            String message = "Problem starting client on port ";
-            message += clientPort;
-            message += "\nIs there another instance of this client?";
-            throw new SocketException(message);
-        }
-    }
-
-    private boolean establishConnection() throws IOException {
+    private void establishConnection(Connection first) throws IOException {
         String msg = "Attempting to connect to server at ";
         msg += serverAddr.getHostAddress();
         msg += " port " + serverPort;
-        System.out.println(msg);
+        Log.info(msg);
 
-        Header synHeader = new Header();
-        synHeader.setSynFlag(true);
-        synHeader.setChecksum();
+        if (probeMtu) packetSize = first.probePacketSize(packetSize);
 
-        byte[] sendHeader = synHeader.getBytes();
+        first.connect(packetSize);
 
-        final int attempts = 3;
+        Log.info("Got connection acknowledgement from server");
 
-        DatagramPacket packet = null;
+        packetSize = first.getPacketSize();
 
-		/* Waiting for SYN ACK */
-        for (int i = 0; i < attempts; i++) {
+        Log.info("Using " + packetSize + " byte packets");
 
-            send(sendHeader);
+        List<Catalog.Entry> files = first.listFiles();
 
-            try {
-                packet = receive();
-                byte[] data = packet.getData();
+        if (files.isEmpty()) {
+            throw new IOException("Server has no files to send");
+        }
 
-                Header head = new Header(data);
+        listed = new HashSet<String>();
 
-                if (!head.getAckFlag() || !head.getSynFlag()) {
-                    System.err.println("Received unexpected packet");
-                    packet = null;
-                    i--;
-                    continue;
-                }
+        for (Catalog.Entry file : files) {
+            listed.add(file.getName());
+        }
 
-                break;
+        /* Nothing to choose from when the name was given */
+        if (fileName != null) return;
+
+        /* The listing and the prompt go straight to the console, after
+         * what was logged before them */
+        Log.flush();
+
+        System.out.println(new String(new char[30]).replace('\0', '-'));
+        System.out.println("Available files on " +
+                serverAddr.getHostAddress() + ":");
 
-            } catch (SocketTimeoutException e) {
-                System.err.println("Connection attempt " +
-                        (i + 1) + " timed out.");
-            } catch (BadChecksumException bc) {
-                System.err.println(bc.getMessage());
+        for (Catalog.Entry file : files) {
+            if (file.getSize() < 0) {
+                System.out.println("\t" + file.getName());
+            } else {
+                System.out.println("\t" + file.getName() + "\t" +
+                        file.getSize() + " bytes");
             }
         }
+    }
 
-        if (packet == null) {
-            msg = "Unable to establish connection";
-            System.err.println(msg);
-            return false;
+    private void requestFile(Connection first) throws IOException {
+        if (fileName == null) {
+            Scanner scan = new Scanner(System.in);
+
+            System.out.print("\nSelect a file: ");
+            fileName = scan.next();
+            scan.close();
         }
 
-        System.out.println("Got connection acknowledgement from server");
+        /* A file named like a glob, such as report[1].pdf, is still
+         * fetched on its own */
+        batch = (fileName.matches(".*[;*?\\[{].*") ||
+                fileName.endsWith("/")) && !listed.contains(fileName);
+
+        if (batch) {
+            requestBatch(first);
+            return;
+        }
 
-        byte[] bytes = packet.getData();
+        File target = new File(dir, fileName);
+        File journalFile = new File(target.getPath() + ".journal");
 
-        StringBuilder availableFiles = new StringBuilder();
-		
-		/* Loop through data field */
-        for (int i = Header.HEADER_SIZE; i < bytes.length; i++) {
-            availableFiles.append((char) bytes[i]);
+        journal = target.isFile() ? Journal.load(journalFile) : null;
+
+        /* A copy with a journal is a partial download, resumed instead */
+        if (useDelta && journal == null && target.isFile()) {
+            byte[][] packets = createDeltaRequest(target);
+
+            if (packets != null) {
+                requestDelta(first, target, packets);
+                return;
+            }
+
+            Log.warn("The signature of \"" + fileName + "\" does not " +
+                    "fit in " + packetSize + " byte requests, requesting " +
+                    "the whole file");
         }
 
-        if (availableFiles.length() == 0) {
+        long[] ranges = null;
+        byte[] packData;
+
+        if (journal != null) {
+            int room = packetSize - Header.HEADER_SIZE -
+                    Header.nameLength(fileName) -
+                    Header.REQ_RANGES_PREAMBLE;
 
-            System.err.println("Server has no files to send");
-            return false;
+            /* Splitting adds at most one range to each part */
+            ranges = journal.getMissingRanges(Math.max(1, room / 16 - 1));
+            parts = Ranges.split(ranges, stripes, Journal.BLOCK_SIZE);
+
+            packData = Header.createRequestPacket(fileName,
+                    journal.getFileSize(), journal.getModified(), parts[0]);
+        } else if (stripes > 1) {
+            packData = Header.createRequestPacket(fileName, 0, stripes);
+        } else {
+            packData = Header.createRequestPacket(fileName);
         }
 
+        Log.info("Requesting file \"" + fileName + "\"");
 
-        String[] files = availableFiles.toString().split(";");
+        first.request(packData);
 
+        fileSize = first.getFileSize();
+        modified = first.getModified();
 
-        System.out.println(new String(new char[30]).replace('\0', '-'));
-        System.out.println("Available files on " +
-                serverAddr.getHostAddress() + ":");
+        Log.info("Got acknowledgement from server");
+        String msg = "File \"" + fileName + "\" is " + fileSize + " bytes";
+        Log.info(msg);
+
+        /* The server checks the same size and time before using the
+         * ranges, so a match means only the ranges are coming */
+        resuming = journal != null && journal.getFileSize() == fileSize &&
+                journal.getModified() == modified;
+
+        bytesNeeded = fileSize;
 
-        for (String file : files) {
-            System.out.println("\t" + file);
+        if (resuming) {
+            requested = ranges;
+            bytesNeeded = Ranges.length(ranges);
+
+            Log.info("Resuming, " + bytesNeeded + " bytes still needed");
+        } else {
+            if (journal != null) journal.delete();
+
+            journal = new Journal(journalFile, fileSize, modified);
+
+            /* The whole file is coming over the first connection, or
+             * the first stripe of it */
+            parts = null;
+
+            if (ranges == null && stripes > 1) {
+                parts = Ranges.split(new long[]{0, fileSize}, stripes,
+                        Journal.BLOCK_SIZE);
+            }
         }
+    }
 
-        return true;
+    /****************************************************************
+     * Signs the copy of the file in the working directory and spreads
+     * the signature over as many REQs as it takes.
+     *
+     * @param target the old copy
+     * @return the REQs, or null if the signature does not fit in them
+     ***************************************************************/
+    private byte[][] createDeltaRequest(File target) throws IOException {
+        Delta.Signature sig;
+
+        oldSize = target.length();
+
+        try (FileChannel old = FileChannel.open(target.toPath(),
+                StandardOpenOption.READ)) {
+            sig = Delta.sign(old, oldSize);
+        }
+
+        return Header.createDeltaRequestPackets(fileName, sig, packetSize);
     }
 
-    private boolean requestFile() throws IOException {
-        Scanner scan = new Scanner(System.in);
+    /****************************************************************
+     * Asks for the differences between the file and the copy of it in
+     * the working directory. Differences come over the first connection
+     * only.
+     *
+     * @param target the old copy
+     * @param packets the REQs carrying the signature of the copy
+     ***************************************************************/
+    private void requestDelta(Connection first, File target,
+                              byte[][] packets) throws IOException {
+        Log.info("Requesting the differences from the local " +
+                "copy of \"" + fileName + "\" in " + packets.length +
+                " requests");
+
+        first.request(packets);
+
+        fileSize = first.getFileSize();
+        modified = first.getModified();
+        deltaFrom = target;
+
+        Log.info("Got acknowledgement from server");
+        Log.info("File \"" + fileName + "\" is " + fileSize + " bytes");
+    }
+
+    private void requestBatch(Connection first) throws IOException {
+        byte[][] packets = Header.createBatchRequestPackets(fileName,
+                packetSize);
 
-        System.out.print("\nSelect a file: ");
-        fileName = scan.next();
-        scan.close();
+        Log.info("Requesting files \"" + fileName + "\" in " +
+                packets.length + " requests");
 
-        Header head = new Header();
-        head.setReqFlag(true);
-        head.setChecksum(fileName.getBytes());
+        first.request(packets);
 
-        byte[] headData = head.getBytes();
+        fileSize = first.getFileSize();
 
-        int reqPackLen = headData.length + fileName.length();
+        Log.info("Got acknowledgement from server");
+        Log.info("Batch is " + first.getNumFiles() + " files, " +
+                fileSize + " bytes");
+    }
 
-        byte[] packData = new byte[reqPackLen];
+    private void acceptFile(Connection first) throws IOException {
+        File file = new File(dir, fileName);
 
-		/* Populate REQ data array with header data */
-        for (int i = 0; i < headData.length; i++) {
-            packData[i] = headData[i];
+        if (file.exists() && !resuming) {
+            file.delete();
         }
 
-		/* Populate ACK data array with requested file */
-        for (int i = 0; i < fileName.length(); i++) {
-            packData[i + headData.length] = (byte) fileName.charAt(i);
+        /* Sized up front so that payloads can land anywhere in it */
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(fileSize);
+
+        int numStripes = parts == null ? 1 : parts.length;
+
+        PositionalWriter writer = new PositionalWriter(raf.getChannel(),
+                first.getRecvWindow() * numStripes, journal);
+
+        if (resuming) writer.markWritten(Ranges.complement(requested,
+                fileSize));
+
+        FileDigest check = null;
+
+        if (first.hasDigest()) {
+            check = new FileDigest(file, fileSize, writer);
         }
 
-        System.out.println("Requesting file \"" + fileName + "\"");
+        AtomicLong bytesReceived = new AtomicLong(fileSize - bytesNeeded);
+        AtomicBoolean complete = new AtomicBoolean(true);
 
-        final int attempts = 3;
+        List<Thread> threads = new ArrayList<Thread>();
 
-        DatagramPacket reqAckPack = null;
+        for (int k = 1; k < numStripes; k++) {
+            if (parts[k].length == 0) continue;
 
-		/* Waiting for REQ ACK */
-        for (int i = 0; i < attempts; i++) {
+            Thread thread = new Thread(new Stripe(k, writer, bytesReceived,
+                    complete), "stripe-" + k);
+            thread.start();
+            threads.add(thread);
+        }
 
-            send(packData);
+        if (numStripes > 1) {
+            Log.info("Downloading over " + (threads.size() + 1) +
+                    " connections");
+        }
 
-            try {
-                reqAckPack = receive();
-                byte[] data = reqAckPack.getData();
+        Progress progress = new Progress(bytesReceived, fileSize, listener);
 
-                Header recvHead = new Header(data);
+        byte[] expected = null;
+        boolean received = false;
 
-                if (!recvHead.getAckFlag() || !recvHead.getReqFlag() ||
-                        recvHead.getSynFlag()) {
-                    System.err.println("Received unexpected packet");
-                    reqAckPack = null;
-                    i--;
-                    continue;
-                }
+        try {
+            /* Asked for while the server still expects it, ahead of the
+             * stripes finishing */
+            if (!first.receiveFile(writer, bytesReceived)) {
+                complete.set(false);
+            } else if (check != null) {
+                expected = fetchDigest(first);
+            }
+
+            received = true;
+        } finally {
+            progress.stop();
+
+            if (!received) complete.set(false);
 
-                break;
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    complete.set(false);
+                }
+            }
 
-            } catch (SocketTimeoutException e) {
-                System.err.println("Request " + (i + 1) + " timed out.");
-            } catch (BadChecksumException bc) {
-                System.err.println(bc.getMessage());
-                i--;
-                continue;
+            try {
+                writer.close();
+            } finally {
+                if (!complete.get()) {
+                    try {
+                        journal.save();
+                    } finally {
+                        if (check != null) check.finish();
+                    }
+                }
             }
         }
 
-        if (reqAckPack == null) {
-            String msg = "Server not responding to request";
-            System.err.println(msg);
-            return false;
+        if (!complete.get()) {
+            throw new IOException("Transfer incomplete, run again to " +
+                    "resume");
         }
 
-        byte[] reqAckData = reqAckPack.getData();
+        journal.delete();
+
+        if (!verify(check, expected)) {
+            throw new IOException("File does not match the SHA-256 sent " +
+                    "by the server, run again to download it again");
+        }
+
+        Log.info("File transfer complete.");
+    }
+
+    /****************************************************************
+     * Rebuilds the file next to the old copy out of the copies and
+     * literal data sent by the server, then puts it in the copy's
+     * place. An incomplete transfer leaves the old copy as it was.
+     ***************************************************************/
+    private void acceptDelta(Connection first) throws IOException {
+        File temp = new File(deltaFrom.getPath() + ".delta");
 
-        int statusCode = (int) reqAckData[Header.HEADER_SIZE] & 0xFF;
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        raf.setLength(fileSize);
 
-		/* Checks for non "good" status */
-        if (statusCode != (1 << 7)) {
-            String msg = "Server does not recognize requested file";
-            System.err.println(msg);
-            return false;
+        FileChannel old = FileChannel.open(deltaFrom.toPath(),
+                StandardOpenOption.READ);
+
+        PositionalWriter writer = new PositionalWriter(raf.getChannel(),
+                first.getRecvWindow(), null);
+
+        FileDigest check = null;
+
+        if (first.hasDigest()) {
+            check = new FileDigest(temp, fileSize, writer);
         }
 
-        numPackets = (int) ((reqAckData[Header.HEADER_SIZE + 1] & 0xFF) << 24 |
-                (reqAckData[Header.HEADER_SIZE + 2] & 0xFF) << 16 |
-                (reqAckData[Header.HEADER_SIZE + 3] & 0xFF) << 8 |
-                (reqAckData[Header.HEADER_SIZE + 4] & 0xFF));
+        AtomicLong bytesReceived = new AtomicLong();
+        DeltaReceiver receiver = new DeltaReceiver(writer, old, oldSize,
+                fileSize, bytesReceived);
 
-        fileSize = (int) ((reqAckData[Header.HEADER_SIZE + 5] & 0xFF) << 24 |
-                (reqAckData[Header.HEADER_SIZE + 6] & 0xFF) << 16 |
-                (reqAckData[Header.HEADER_SIZE + 7] & 0xFF) << 8 |
-                (reqAckData[Header.HEADER_SIZE + 8] & 0xFF));
+        Progress progress = new Progress(bytesReceived, fileSize, listener);
+        boolean complete = false;
 
-        System.out.println("Got acknowledgement from server");
-        String msg = "File \"" + fileName + "\" is " + fileSize + " bytes";
-        System.out.println(msg + "\n");
+        byte[] expected = null;
 
-        return true;
+        try {
+            complete = first.receive(receiver, bytesReceived);
 
-    }
+            if (complete && check != null) expected = fetchDigest(first);
+        } finally {
+            progress.stop();
 
-    private void acceptFile() throws IOException {
-        int lastReceived = 0;
-        int bytesReceived = 0;
+            try {
+                writer.close();
+            } finally {
+                old.close();
+            }
+        }
 
-        int attempted = 0;
-        final int attempts = 3;
+        if (!complete && check != null) check.finish();
 
-        final String path = System.getProperty("user.dir") + "/" + fileName;
+        if (!complete) {
+            temp.delete();
+            throw new IOException("Transfer incomplete, the local copy " +
+                    "is left as it was");
+        }
 
-        File file = new File(path);
+        if (!verify(check, expected)) {
+            temp.delete();
+            throw new IOException("File does not match the SHA-256 sent " +
+                    "by the server, the local copy is left as it was");
+        }
 
-        if (file.exists()) {
-            file.delete();
+        Files.move(temp.toPath(), deltaFrom.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+
+        Log.info("Took " + receiver.getCopiedBytes() + " of " +
+                fileSize + " bytes from the local copy.");
+        Log.info("File transfer complete.");
+    }
+
+    /****************************************************************
+     * Gets the digest of the file once the first connection has every
+     * packet it was sent.
+     *
+     * @return the digest, or null if the server sent none
+     ***************************************************************/
+    private static byte[] fetchDigest(Connection first) {
+        try {
+            return first.fetchDigest();
+        } catch (IOException e) {
+            Log.warn(e.getMessage());
+            return null;
         }
+    }
 
-        file.createNewFile();
+    /****************************************************************
+     * Checks the file just written against the digest the server sent.
+     * A file the server sent no digest for is left unchecked.
+     *
+     * @param check hashing of the file, or null if the server offered
+     *              no digest
+     * @param expected the digest from the server, or null
+     * @return whether the file matches, or there was nothing to check
+     ***************************************************************/
+    private boolean verify(FileDigest check, byte[] expected)
+            throws IOException {
+        if (check == null) return true;
+
+        byte[] actual = check.finish();
+
+        if (expected == null) {
+            Log.warn("No SHA-256 from the server, the file is not " +
+                    "checked.");
+            return true;
+        }
 
-        FileOutputStream fos = new FileOutputStream(path, true);
+        if (!Arrays.equals(actual, expected)) return false;
 
-        while (lastReceived != numPackets) {
-            int recvd = lastReceived;
+        Log.info("SHA-256 verified: " + FileDigest.toHex(actual));
 
-            for (int i = 0; i < RECV_WINDOW; i++) {
-                DatagramPacket recvPack = null;
+        return true;
+    }
 
-                try {
-                    recvPack = receive();
-                } catch (SocketTimeoutException e) {
-                    break;
-                } catch (BadChecksumException bc) {
-                    System.err.println(bc.getMessage());
-                    i--;
-                    continue;
-                }
+    /****************************************************************
+     * Receives every file of a batch over the first connection,
+     * writing each into the working directory as it arrives.
+     ***************************************************************/
+    private void acceptBatch(Connection first) throws IOException {
+        PositionalWriter writer = new PositionalWriter(null,
+                first.getRecvWindow(), null);
 
-                Header head = new Header(recvPack.getData());
-                int seqNum = head.getSequenceNum();
+        BatchReceiver receiver = new BatchReceiver(dir, writer);
 
-                if (seqNum != lastReceived + 1) {
-                    String msg = "Got unexpected packet. Sequence number: ";
-                    msg += seqNum;
-                    System.err.println(msg);
-                    continue;
-                }
+        AtomicLong bytesReceived = new AtomicLong();
+        Progress progress = new Progress(bytesReceived, fileSize, listener);
 
-                lastReceived = seqNum;
+        boolean complete;
 
-                byte[] bytes = recvPack.getData();
-                int hSize = Header.HEADER_SIZE;
+        try {
+            complete = first.receive(receiver, bytesReceived);
+        } finally {
+            progress.stop();
 
-                if (lastReceived == numPackets) {
-                    byte[] temp = new byte[fileSize - bytesReceived + hSize];
+            try {
+                writer.close();
+            } finally {
+                receiver.close();
+            }
+        }
 
-                    System.arraycopy(bytes, 0, temp, 0, temp.length);
+        Log.info("Received " + receiver.getFilesDone() + " of " +
+                first.getNumFiles() + " files.");
 
-                    bytes = temp;
-                }
+        if (!complete) throw new IOException("Batch incomplete");
 
-                fos.write(bytes, hSize, bytes.length - hSize);
+        Log.info("File transfer complete.");
+    }
 
-                bytesReceived += bytes.length - hSize;
+    /**
+     * Download of one part of the file over a connection of its own
+     */
+    private class Stripe implements Runnable {
 
-                double percentage = (((double) bytesReceived) /
-                        ((double) fileSize)) * 100;
+        private final int index;
 
-                String msg = String.format("%s %d \t%4.2f%%",
-                        "- Received packet number", lastReceived, percentage);
-                System.out.println(msg);
+        private final PositionalWriter writer;
 
-                if (lastReceived == numPackets) break;
-            }
+        private final AtomicLong bytesReceived;
 
-            if (recvd == lastReceived) {
-                attempted++;
-            } else {
-                attempted = 0;
-            }
+        private final AtomicBoolean complete;
 
-            if (attempted >= attempts) {
-                System.err.println("Server not responding.");
-                return;
+        Stripe(int index, PositionalWriter writer, AtomicLong bytesReceived,
+               AtomicBoolean complete) {
+            this.index = index;
+            this.writer = writer;
+            this.bytesReceived = bytesReceived;
+            this.complete = complete;
+        }
+
+        @Override
+        public void run() {
+            Connection conn = null;
+
+            try {
+                /* Any free port when the first one was, too */
+                int port = clientPort == 0 ? 0 : clientPort + index;
+
+                conn = new Connection(server, port, useCrc);
+                conn.setFec(fecGroup, fecParity);
+                conn.setCodec(codec);
+
+                conn.connect(packetSize);
+                conn.request(Header.createRequestPacket(fileName, fileSize,
+                        modified, parts[index]));
+
+                /* The file changed since the first connection's REQ, so
+                 * this one is being sent all of it */
+                if (conn.getFileSize() != fileSize ||
+                        conn.getModified() != modified) {
+                    Log.warn("File changed during the transfer");
+                    complete.set(false);
+                } else if (!conn.receiveFile(writer, bytesReceived)) {
+                    complete.set(false);
+                }
+            } catch (IOException e) {
+                Log.warn("Stripe " + index + ": " + e.getMessage());
+                complete.set(false);
+            } finally {
+                if (conn != null) conn.close();
             }
+        }
+    }
+
+    /****************************************************************
+     * Prompts for everything when run without arguments. Otherwise
+     * downloads without prompting, see {@link #USAGE}, exiting with 0
+     * once the file is complete, 1 if the download failed and 2 for bad
+     * arguments.
+     ***************************************************************/
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            int status = 0;
 
-            Header ackPack = new Header();
-            ackPack.setAckFlag(true);
-            ackPack.setSequenceNum(lastReceived);
-            ackPack.setChecksum();
+            try {
+                new Client().download();
+            } catch (IOException e) {
+                Log.error(e.getMessage());
+                status = 1;
+            } finally {
+                Log.flush();
+            }
 
-            send(ackPack.getBytes());
-            System.out.println("Sending acknowledgement of packet "
-                    + lastReceived + "\n");
+            System.exit(status);
         }
 
-        System.out.println("File transfer complete.");
+        int status;
 
-        fos.close();
+        try {
+            status = run(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            status = 2;
+        } finally {
+            Log.flush();
+        }
+
+        System.exit(status);
     }
 
-    private void send(byte[] data) throws IOException {
-        DatagramPacket sendPacket = new DatagramPacket(data, data.length,
-                serverAddr, serverPort);
+    static final String USAGE = "Usage: Client --server host:port " +
+            "--file name [options]\n" +
+            "  --file name         file, ';' separated names, glob or " +
+            "directory ending in /\n" +
+            "  --dir path          directory to write to, the working one " +
+            "by default\n" +
+            "  --port n            port to receive on, any free one by " +
+            "default\n" +
+            "  --packet-size n     largest packet size to ask for\n" +
+            "  --stripes n         connections to split the download over\n" +
+            "  --fec group:parity  forward error correction, such as 16:2\n" +
+            "  --compress codec    codec to compress payloads with\n" +
+            "  --crc               ask for a CRC32C on every packet\n" +
+            "  --probe-mtu         probe for the largest packet size\n" +
+            "  --delta             send only the differences from a " +
+            "local copy\n" +
+            "Options not given come from the udp.* system properties.\n";
+
+    /****************************************************************
+     * Downloads the file the arguments ask for.
+     *
+     * @param args flags and their values, see {@link #USAGE}
+     * @return exit status, 0 if the file is complete
+     * @throws IllegalArgumentException for bad arguments
+     ***************************************************************/
+    private static int run(String[] args) {
+        TransferClient settings = new TransferClient();
+        InetSocketAddress server = null;
+        String file = null;
+        File dir = new File(System.getProperty("user.dir"));
+
+        for (int i = 0; i < args.length; i++) {
+            String flag = args[i];
+
+            switch (flag) {
+                case "--crc":
+                    settings.setCrc(true);
+                    continue;
+                case "--probe-mtu":
+                    settings.setProbeMtu(true);
+                    continue;
+                case "--delta":
+                    settings.setDelta(true);
+                    continue;
+                default:
+                    break;
+            }
+
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " +
+                        flag);
+            }
 
-        clientSocket.send(sendPacket);
-    }
+            String value = args[++i];
 
-    private DatagramPacket receive() throws IOException, BadChecksumException {
+            switch (flag) {
+                case "--server":
+                    server = parseAddress(value);
+                    break;
+                case "--file":
+                    file = value;
+                    break;
+                case "--dir":
+                    dir = new File(value);
+                    break;
+                case "--port":
+                    settings.setClientPort(parseNumber(flag, value));
+                    break;
+                case "--packet-size":
+                    settings.setPacketSize(parseNumber(flag, value));
+                    break;
+                case "--stripes":
+                    settings.setStripes(parseNumber(flag, value));
+                    break;
+                case "--fec":
+                    settings.setFec(value);
+                    break;
+                case "--compress":
+                    settings.setCompression(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " +
+                            flag);
+            }
+        }
+
+        if (server == null || file == null) {
+            throw new IllegalArgumentException("--server and --file are " +
+                    "required");
+        }
+
+        if (!dir.isDirectory()) {
+            throw new IllegalArgumentException("Not a directory: " + dir);
+        }
 
-        byte[] recvData = new byte[1024];
+        try {
+            settings.fetch(server, file, dir, null).get();
+            return 0;
+        } catch (ExecutionException e) {
+            Log.error(e.getCause().getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+    }
 
-        DatagramPacket recvPacket =
-                new DatagramPacket(recvData, recvData.length);
+    /****************************************************************
+     * @param address host and port separated by a colon
+     * @return the address, resolved
+     ***************************************************************/
+    static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
 
-        clientSocket.receive(recvPacket);
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected host:port, got " +
+                    address);
+        }
 
-        int expected = Header.calculateChecksum(recvData);
-        int received = new Header(recvData).getChecksum();
+        InetSocketAddress resolved = new InetSocketAddress(
+                address.substring(0, colon),
+                parseNumber("port", address.substring(colon + 1)));
 
-        if (expected != received)
-            throw new BadChecksumException(expected, received);
+        if (resolved.isUnresolved()) {
+            throw new IllegalArgumentException("Unknown host " +
+                    resolved.getHostString());
+        }
 
-        return recvPacket;
+        return resolved;
     }
 
-    public static void main(String[] args) {
+    static int parseNumber(String name, String value) {
         try {
-            new Client();
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " +
+                    value);
         }
     }
 }
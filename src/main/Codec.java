@@ -0,0 +1,45 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses the payloads of data packets one at a time, so that every
+ * packet can be decompressed on its own in whatever order it arrives.
+ * A codec is used by one thread at a time. New codecs are added to
+ * {@link Codecs} under an identifier of their own, which the client
+ * asks for in its SYN.
+ */
+public interface Codec {
+
+    /**
+     * @return identifier of the codec in the handshake, never
+     * {@link Codecs#NONE}
+     */
+    int getId();
+
+    /****************************************************************
+     * Compresses a payload.
+     *
+     * @param src payload between its position and limit, left
+     *            positioned at its limit
+     * @param dst buffer written from its position, up to its limit
+     * @return whether the payload fit in dst compressed, otherwise it
+     * is sent as it is
+     ***************************************************************/
+    boolean compress(ByteBuffer src, ByteBuffer dst);
+
+    /****************************************************************
+     * Decompresses a payload compressed by the same kind of codec.
+     *
+     * @param src compressed payload between its position and limit
+     * @param dst buffer written from its position, up to its limit
+     * @throws IOException if the payload is malformed or does not fit
+     ***************************************************************/
+    void decompress(ByteBuffer src, ByteBuffer dst) throws IOException;
+
+    /**
+     * Releases the memory held by the codec.
+     */
+    void close();
+}
@@ -0,0 +1,54 @@
+package main;
+
+import java.util.zip.Deflater;
+
+/**
+ * The compression codecs a client may ask for, by the identifier sent
+ * in the handshake and by the name given in the udp.compress system
+ * property.
+ */
+public final class Codecs {
+
+    /**
+     * No compression
+     */
+    public static final int NONE = 0;
+
+    /**
+     * {@link DeflateCodec} at its fastest level, since the server
+     * compresses every packet on its event loop
+     */
+    public static final int DEFLATE = 1;
+
+    private Codecs() {
+    }
+
+    /****************************************************************
+     * @param id identifier of the codec
+     * @return a new codec, or null for NONE or an unknown identifier
+     ***************************************************************/
+    public static Codec create(int id) {
+        switch (id) {
+            case DEFLATE:
+                return new DeflateCodec(Deflater.BEST_SPEED);
+            default:
+                return null;
+        }
+    }
+
+    /****************************************************************
+     * @param name name of the codec, ignoring case
+     * @return identifier of the codec, or -1 if there is none by that
+     * name
+     ***************************************************************/
+    public static int forName(String name) {
+        switch (name.toLowerCase()) {
+            case "none":
+                return NONE;
+            case "deflate":
+                return DEFLATE;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package main;
+
+/**
+ * Decides how many packets a session may have in flight. The session
+ * reports acknowledgements and losses, and never sends past the window
+ * returned by {@link #getWindow()} or the window advertised by the
+ * client, whichever is smaller.
+ */
+public interface CongestionControl {
+
+    /**
+     * @return number of packets allowed in flight
+     */
+    int getWindow();
+
+    /**
+     * Called when the cumulative acknowledgement advances.
+     *
+     * @param numAcked number of packets newly acknowledged
+     */
+    void onAck(int numAcked);
+
+    /**
+     * Called once per window when the SACK bitmap shows a lost packet.
+     */
+    void onLoss();
+
+    /**
+     * Called when the retransmission timer expires.
+     */
+    void onTimeout();
+}
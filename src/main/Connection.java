@@ -0,0 +1,1147 @@
+package main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One connection of the client to the server, from its own port: the
+ * handshake, a single REQ, or the REQs of a batch, and the data that
+ * answers it. A download split into stripes runs one connection per
+ * stripe, each on its own thread, all writing through the same
+ * {@link PositionalWriter}.
+ */
+public class Connection {
+
+    /**
+     * Number of packets past the last one received in order that the
+     * client buffers, advertised to the server in every acknowledgement
+     */
+    static final int RECV_WINDOW = 1024;
+
+    /**
+     * Bytes of packets the client buffers at most, which shrinks the
+     * window when large packets are agreed on
+     */
+    private static final int RECV_BUFFER = 4 * 1024 * 1024;
+
+    /**
+     * Number of times a path MTU probe is sent before its size is
+     * considered too large
+     */
+    private static final int PROBE_ATTEMPTS = 2;
+
+    /**
+     * Most pages of the server's catalog asked for at once
+     */
+    private static final int LIST_WINDOW = 32;
+
+    /**
+     * Most REQs of a request sent past those the server has in order
+     */
+    private static final int REQ_WINDOW = 16;
+
+    /**
+     * Number of packets received in order before an acknowledgement
+     * is sent. Out of order packets are acknowledged immediately.
+     */
+    private static final int ACK_EVERY = 2;
+
+    /**
+     * Time in milliseconds without hearing from the server, per attempt,
+     * before giving up on it
+     */
+    private static final int TIMEOUT = 5000;
+
+    /**
+     * Takes the data packets received by a connection, in any order but
+     * each only once
+     */
+    interface Receiver {
+
+        /**
+         * @param seqNum packet number, starting at 1
+         * @param head view over the packet, only valid during the call,
+         *             whose buffer holds the payload between its
+         *             position and limit
+         * @param pool pool the buffer is released to once used
+         * @throws IOException
+         */
+        void receive(long seqNum, Header head, BufferPool pool)
+                throws IOException;
+    }
+
+    /**
+     * Totals over every connection of the client
+     */
+    private static final Metrics.Counter PACKETS_RECEIVED =
+            Metrics.global().counter("packets_received_total",
+                    "Data packets received, duplicates included");
+
+    private static final Metrics.Counter BYTES_RECEIVED =
+            Metrics.global().counter("bytes_received_total",
+                    "File bytes received in data packets");
+
+    private static final Metrics.Counter DUPLICATES =
+            Metrics.global().counter("duplicates_total",
+                    "Data packets received twice or outside the window");
+
+    private static final Metrics.Counter CHECKSUM_FAILURES =
+            Metrics.global().counter("checksum_failures_total",
+                    "Packets dropped for a bad checksum");
+
+    private static final Metrics.Counter TIMEOUTS =
+            Metrics.global().counter("timeouts_total",
+                    "Times the server was silent for a retransmission " +
+                    "timeout");
+
+    private static final Metrics.Counter ACKS_SENT =
+            Metrics.global().counter("acks_sent_total",
+                    "Acknowledgements sent");
+
+    private static final Metrics.Counter REBUILT =
+            Metrics.global().counter("packets_rebuilt_total",
+                    "Lost data packets rebuilt from parity");
+
+    private final InetSocketAddress server;
+    private DatagramChannel clientChannel;
+    private Selector selector;
+
+    private long numPackets;
+    private long fileSize;
+    private long modified;
+    private byte[] digest;
+
+    /**
+     * Whether the status packet left out the digest, which the server
+     * then sends in answer to a REQ_DIGEST once every packet arrived
+     */
+    private boolean digestLater;
+
+    /**
+     * Pages of the server's catalog received so far, by index, and the
+     * number of pages and generation of the catalog. A LEGACY_VERSION
+     * server lists every file in its SYN-ACK, as a single page.
+     */
+    private Map<Integer, List<Catalog.Entry>> pages;
+    private int numPages;
+    private int generation;
+
+    /**
+     * Time in milliseconds to wait for a packet
+     */
+    private int timeout;
+
+    /**
+     * Packet size agreed on with the server
+     */
+    private int packetSize;
+
+    /**
+     * Window in packets advertised to the server
+     */
+    private int recvWindow;
+
+    /**
+     * Receive buffers, enough for the writer's queue and the batch it
+     * is writing once the packet size is agreed on
+     */
+    private BufferPool pool;
+
+    /**
+     * Buffer and view reused for every acknowledgement sent, and view
+     * reused for every packet received
+     */
+    private ByteBuffer ackBuffer;
+    private Header ackHead;
+    private Header recvHead;
+
+    /**
+     * Whether to ask the server for a CRC32C on every data packet
+     */
+    private final boolean useCrc;
+
+    /**
+     * Round trip time to the server, sampled during the handshake
+     */
+    private RttEstimator rtt;
+
+    /**
+     * Forward error correction asked for, data packets per group and
+     * most parity packets per group, 0 for none
+     */
+    private int fecGroup;
+    private int fecParity;
+
+    /**
+     * Compression codec asked for, then the one agreed on, or null
+     */
+    private int codecId;
+    private Codec codec;
+
+    /**
+     * Whether the SYN carries forward error correction and a codec,
+     * which the SYN-ACK then answers ahead of the file listing
+     */
+    private boolean fecField;
+    private boolean codecField;
+
+    /**
+     * Whether the SYN-ACK carries the agreed packet size, which servers
+     * older than Header.VERSION leave out
+     */
+    private boolean sizeField;
+
+    /**
+     * Buffer payloads are decompressed into
+     */
+    private ByteBuffer inflated;
+
+    /**
+     * Number of packets rebuilt from parity during the transfer
+     */
+    private long repaired;
+
+    /****************************************************************
+     * Opens the connection's socket.
+     *
+     * @param server address and port of the server
+     * @param clientPort port to receive on
+     * @param useCrc whether to ask for a CRC32C on every data packet
+     * @throws SocketException if the port cannot be bound
+     ***************************************************************/
+    public Connection(InetSocketAddress server, int clientPort,
+                      boolean useCrc) throws SocketException {
+        this.server = server;
+        this.useCrc = useCrc;
+
+        try {
+            clientChannel = DatagramChannel.open();
+            clientChannel.configureBlocking(false);
+            clientChannel.setOption(StandardSocketOptions.SO_RCVBUF,
+                    RECV_BUFFER);
+            clientChannel.bind(new InetSocketAddress(clientPort));
+
+            selector = Selector.open();
+            clientChannel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            String message = "Problem starting client on port ";
+            message += clientPort;
+            message += "\nIs there another instance of this client?";
+            throw new SocketException(message);
+        }
+
+        /* Large enough for any packet until the size is agreed on */
+        pool = new BufferPool(Server.MAX_PACKET_SIZE, 1);
+        ackBuffer = ByteBuffer.allocateDirect(Header.SACK_OFFSET +
+                RECV_WINDOW / 8);
+        ackHead = new Header(ackBuffer);
+        recvHead = new Header();
+
+        rtt = new RttEstimator();
+        setTimeout();
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    public int getRecvWindow() {
+        return recvWindow;
+    }
+
+    public long getNumPackets() {
+        return numPackets;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    /**
+     * @return whether the server sent the SHA-256 of the whole file, or
+     * sends it once asked with {@link #fetchDigest()}
+     */
+    public boolean hasDigest() {
+        return digest != null || digestLater;
+    }
+
+    /****************************************************************
+     * Asks the server for parity packets after every group of data
+     * packets, from which lost packets are rebuilt without waiting for
+     * them to be sent again. Set before connecting.
+     *
+     * @param group number of data packets per group
+     * @param parity most parity packets per group, 0 for none
+     ***************************************************************/
+    public void setFec(int group, int parity) {
+        fecGroup = group;
+        fecParity = parity;
+    }
+
+    /****************************************************************
+     * Asks the server to compress payloads that shrink. Set before
+     * connecting.
+     *
+     * @param id identifier of the codec in {@link Codecs}
+     ***************************************************************/
+    public void setCodec(int id) {
+        codecId = id;
+    }
+
+    /**
+     * @return number of packets rebuilt from parity
+     */
+    public long getRepaired() {
+        return repaired;
+    }
+
+    /**
+     * @return number of files in the batch, after a batch request, whose
+     * status carries it in place of the modification time
+     */
+    public long getNumFiles() {
+        return modified;
+    }
+
+    /****************************************************************
+     * Sets the receive timeout to the current retransmission timeout.
+     ***************************************************************/
+    private void setTimeout() {
+        timeout = (int) Math.max(1, rtt.getTimeout() / 1000);
+    }
+
+    /****************************************************************
+     * Sends a SYN asking for the given packet size and waits for the
+     * SYN-ACK, which carries the first page of the server's catalog.
+     * The SYN also asks for forward error correction and compression if
+     * they were set, and the SYN-ACK says what the server agreed on.
+     *
+     * @param size largest packet size to ask for
+     * @throws IOException if the server did not answer
+     ***************************************************************/
+    public void connect(int size) throws IOException {
+        codecField = codecId != Codecs.NONE;
+        fecField = fecParity > 0 || codecField;
+        sizeField = true;
+
+        Header synHeader = new Header(new byte[getListStart()]);
+        synHeader.setSynFlag(true);
+        synHeader.setVersion(Header.VERSION);
+        synHeader.setCrcFlag(useCrc);
+        synHeader.setPacketSize(size);
+
+        if (fecField) synHeader.setFec(fecGroup, fecParity);
+
+        if (codecField) synHeader.setCodec(codecId);
+        synHeader.setChecksum();
+
+        byte[] sendHeader = synHeader.getBytes();
+
+        final int attempts = 4;
+
+        ByteBuffer packet = null;
+
+		/* Waiting for SYN ACK */
+        for (int i = 0; i < attempts; i++) {
+
+            long sentAt = System.nanoTime() / 1000;
+            send(sendHeader);
+
+            try {
+                packet = receive();
+
+                Header head = recvHead.wrap(packet);
+
+                if (!head.getAckFlag() || !head.getSynFlag()) {
+                    Log.warn("Received unexpected packet");
+                    pool.release(packet);
+                    packet = null;
+                    i--;
+                    continue;
+                }
+
+                /* Only unambiguous when the SYN was not resent */
+                if (i == 0) rtt.addSample(System.nanoTime() / 1000 - sentAt);
+
+                break;
+
+            } catch (SocketTimeoutException e) {
+                Log.warn("Connection attempt " +
+                        (i + 1) + " timed out.");
+                rtt.backoff();
+                setTimeout();
+            } catch (BadChecksumException bc) {
+                Log.warn(bc.getMessage());
+            }
+        }
+
+        if (packet == null) {
+            throw new IOException("Unable to establish connection");
+        }
+
+        Header head = recvHead.wrap(packet);
+
+        if (head.getVersion() < Header.VERSION) {
+            sizeField = false;
+            fecField = false;
+            codecField = false;
+        }
+
+        packetSize = sizeField ? head.getPacketSize()
+                : Server.DEFAULT_PACKET_SIZE;
+
+        fecParity = fecField ? Math.max(0, head.getFecParity()) : 0;
+        fecGroup = fecField ? Math.max(0, head.getFecGroup()) : 0;
+
+        if (codec != null) codec.close();
+
+        codec = codecField ? Codecs.create(head.getCodec()) : null;
+
+        if (codec != null) {
+            inflated = ByteBuffer.allocate(packetSize);
+            Log.info("Server compresses payloads that shrink");
+        }
+
+        final int start = getListStart();
+
+        pages = new HashMap<Integer, List<Catalog.Entry>>();
+        numPages = 1;
+
+        if (head.getVersion() >= Header.VERSION &&
+                packet.limit() >= start + Catalog.PAGE_PREAMBLE) {
+            generation = packet.getInt(start);
+            numPages = packet.getInt(start + 8);
+            pages.put(0, Catalog.readPage(packet, start, packet.limit()));
+        } else {
+            String availableFiles = Header.readName(packet, start,
+                    packet.limit());
+
+            List<Catalog.Entry> files = new ArrayList<Catalog.Entry>();
+
+            for (String name : availableFiles.split(";")) {
+                if (!name.isEmpty()) {
+                    files.add(new Catalog.Entry(name, -1, -1));
+                }
+            }
+
+            pages.put(0, files);
+        }
+
+        pool.release(packet);
+
+        recvWindow = Math.min(RECV_WINDOW, RECV_BUFFER / packetSize);
+        pool = new BufferPool(packetSize, 2 * recvWindow + 1);
+    }
+
+    /****************************************************************
+     * Fetches the pages of the server's catalog the SYN-ACK did not
+     * carry, keeping up to LIST_WINDOW of them asked for at a time.
+     * Every page comes from the listing the SYN-ACK was taken from, so
+     * pages of another generation are stale answers to an earlier
+     * connection.
+     *
+     * @return every file on the server
+     * @throws IOException if the server stopped answering
+     ***************************************************************/
+    public List<Catalog.Entry> listFiles() throws IOException {
+        final int start = getListStart();
+        final int attempts = 4;
+        int timeouts = 0;
+        int next = 1;
+
+        /* Time each page asked for was sent, in microseconds, or 0 once
+         * it was sent again and its answer no longer makes a sample */
+        Map<Integer, Long> asked = new LinkedHashMap<Integer, Long>();
+
+        setTimeout();
+
+        while (pages.size() < numPages) {
+            while (asked.size() < LIST_WINDOW && next < numPages) {
+                send(Header.createListRequestPacket(next));
+                asked.put(next++, System.nanoTime() / 1000);
+            }
+
+            ByteBuffer packet;
+
+            try {
+                packet = receive();
+            } catch (SocketTimeoutException e) {
+                if (++timeouts >= attempts) {
+                    throw new IOException("Server not sending the file " +
+                            "list");
+                }
+
+                rtt.backoff();
+                setTimeout();
+
+                for (Map.Entry<Integer, Long> page : asked.entrySet()) {
+                    send(Header.createListRequestPacket(page.getKey()));
+                    page.setValue(0L);
+                }
+
+                continue;
+            } catch (BadChecksumException bc) {
+                Log.warn(bc.getMessage());
+                continue;
+            }
+
+            Header head = recvHead.wrap(packet);
+
+            if (head.getSynFlag() && head.getAckFlag() &&
+                    packet.limit() >= start + Catalog.PAGE_PREAMBLE &&
+                    packet.getInt(start) == generation) {
+                Long sentAt = asked.remove(packet.getInt(start + 4));
+
+                if (sentAt != null) {
+                    pages.put(packet.getInt(start + 4), Catalog.readPage(
+                            packet, start, packet.limit()));
+                    timeouts = 0;
+
+                    if (sentAt != 0) {
+                        rtt.addSample(System.nanoTime() / 1000 - sentAt);
+                        setTimeout();
+                    }
+                }
+            }
+
+            pool.release(packet);
+        }
+
+        List<Catalog.Entry> files = new ArrayList<Catalog.Entry>();
+
+        for (int p = 0; p < numPages; p++) {
+            files.addAll(pages.get(p));
+        }
+
+        return files;
+    }
+
+    /**
+     * @return offset of the file listing in a SYN-ACK
+     */
+    private int getListStart() {
+        return Header.HEADER_SIZE +
+                (sizeField ? Header.PACKET_SIZE_FIELD_SIZE : 0) +
+                (fecField ? Header.FEC_FIELD_SIZE : 0) +
+                (codecField ? Header.CODEC_FIELD_SIZE : 0);
+    }
+
+    /****************************************************************
+     * Finds the largest packet size, up to the given one, that gets to
+     * the server and back, with a binary search over probes padded to
+     * each size. The default size is assumed to get through.
+     *
+     * @param max largest size to try
+     * @return the largest size that got through
+     * @throws IOException
+     ***************************************************************/
+    public int probePacketSize(int max) throws IOException {
+        int low = Math.min(max, Server.DEFAULT_PACKET_SIZE);
+        int high = max;
+        int id = 0;
+
+        /* Samples the round trip time to time out the larger probes */
+        probe(low, ++id);
+
+        while (low < high) {
+            int size = (low + high + 1) / 2;
+
+            if (probe(size, ++id)) {
+                low = size;
+            } else {
+                high = size - 1;
+            }
+        }
+
+        Log.info("Largest packet through the path is " + low +
+                " bytes");
+
+        return low;
+    }
+
+    /****************************************************************
+     * Sends a probe padded to the given size and waits for the server
+     * to echo it. A probe that is lost is not backed off, since that
+     * is the expected outcome for sizes that are too large.
+     *
+     * @param size size of the probe in bytes
+     * @param id sequence number telling the probe apart from others
+     * @return whether the echo came back
+     * @throws IOException
+     ***************************************************************/
+    private boolean probe(int size, int id) throws IOException {
+        ByteBuffer probe = ByteBuffer.allocate(size);
+
+        Header head = new Header(probe);
+        head.setProbeFlag(true);
+        head.setSequenceNum(id);
+        head.setChecksum();
+
+        for (int i = 0; i < PROBE_ATTEMPTS; i++) {
+
+            long sentAt = System.nanoTime() / 1000;
+            probe.clear();
+            clientChannel.send(probe, server);
+
+            try {
+                ByteBuffer echo = receive();
+
+                recvHead.wrap(echo);
+
+                boolean match = recvHead.getProbeFlag() &&
+                        recvHead.getAckFlag() &&
+                        recvHead.getSequenceNum() == id &&
+                        echo.limit() == size;
+
+                pool.release(echo);
+
+                /* Late echo of an earlier probe */
+                if (!match) continue;
+
+                if (i == 0) {
+                    rtt.addSample(System.nanoTime() / 1000 - sentAt);
+                    setTimeout();
+                }
+
+                return true;
+
+            } catch (SocketTimeoutException e) {
+                Log.debug(size + " byte probe " + (i + 1) +
+                        " timed out.");
+            } catch (BadChecksumException bc) {
+                Log.warn(bc.getMessage());
+            }
+        }
+
+        return false;
+    }
+
+    /****************************************************************
+     * Sends a REQ, or the REQs a request is spread over, and waits for
+     * the status packet answering it. The server answers each REQ with
+     * a pending status counting the REQs it has in order, so at most
+     * {@link #REQ_WINDOW} REQs are sent past those and only the first
+     * one missing is sent again when nothing comes. A pending status
+     * after the last REQ means the server is still working the answer
+     * out.
+     *
+     * @param packets the REQs
+     * @throws IOException if the server did not answer or will not send
+     *                     the file
+     ***************************************************************/
+    public void request(byte[]... packets) throws IOException {
+        final int attempts = 4;
+        int timeouts = 0;
+
+        int received = 0;
+        int sent = Math.min(REQ_WINDOW, packets.length);
+
+        setTimeout();
+
+        for (int i = 0; i < sent; i++) {
+            send(packets[i]);
+        }
+
+        ByteBuffer reqAckPack;
+
+		/* Waiting for REQ ACK */
+        while (true) {
+            try {
+                reqAckPack = receive();
+            } catch (SocketTimeoutException e) {
+                if (received == packets.length && timeouts == 0) {
+                    Log.debug("Server is still working out the answer");
+                } else {
+                    Log.warn("Request " + (timeouts + 1) + " timed out.");
+                }
+
+                if (++timeouts >= attempts) {
+                    throw new IOException("Server not responding to " +
+                            "request");
+                }
+
+                /* The first silence after a pending answer is expected */
+                if (timeouts > 1) rtt.backoff();
+
+                setTimeout();
+                send(packets[Math.min(received, packets.length - 1)]);
+                continue;
+            } catch (BadChecksumException bc) {
+                Log.warn(bc.getMessage());
+                continue;
+            }
+
+            recvHead.wrap(reqAckPack);
+
+            if (!recvHead.getAckFlag() || !recvHead.getReqFlag() ||
+                    recvHead.getSynFlag()) {
+                Log.warn("Received unexpected packet");
+                pool.release(reqAckPack);
+                continue;
+            }
+
+            int statusCode = reqAckPack.get(Header.HEADER_SIZE) & 0xFF;
+
+            if (statusCode != Header.STATUS_PENDING) break;
+
+            int count = reqAckPack.getShort(Header.HEADER_SIZE + 1) & 0xFFFF;
+            pool.release(reqAckPack);
+
+            received = Math.max(received, Math.min(count, packets.length));
+            timeouts = 0;
+
+            for (int end = Math.min(received + REQ_WINDOW, packets.length);
+                 sent < end; sent++) {
+                send(packets[sent]);
+            }
+        }
+
+        int statusCode = (int) reqAckPack.get(Header.HEADER_SIZE) & 0xFF;
+
+		/* Checks for non "good" status */
+        if (statusCode != (1 << 7)) {
+            pool.release(reqAckPack);
+            throw new IOException("Server does not recognize requested " +
+                    "file");
+        }
+
+        if (recvHead.getVersion() >= Header.VERSION) {
+            numPackets = reqAckPack.getLong(Header.HEADER_SIZE + 1);
+            fileSize = reqAckPack.getLong(Header.HEADER_SIZE + 9);
+            modified = reqAckPack.getLong(Header.HEADER_SIZE + 17);
+
+            digest = readDigest(reqAckPack);
+            digestLater = digest == null;
+        } else {
+            numPackets = reqAckPack.getInt(Header.HEADER_SIZE + 1);
+            fileSize = reqAckPack.getInt(Header.HEADER_SIZE + 5);
+        }
+
+        pool.release(reqAckPack);
+    }
+
+    /**
+     * @return the SHA-256 following a status packet, or null
+     */
+    private static byte[] readDigest(ByteBuffer status) {
+        if (status.limit() < Header.HEADER_SIZE + 25 + FileDigest.SIZE) {
+            return null;
+        }
+
+        byte[] sha = new byte[FileDigest.SIZE];
+        status.position(Header.HEADER_SIZE + 25);
+        status.get(sha);
+
+        return sha;
+    }
+
+    /****************************************************************
+     * Gets the SHA-256 of the whole file once every packet of it has
+     * arrived, from the status packet if it carried one or else by
+     * asking the server, waiting for as long as the server says it is
+     * still hashing the file.
+     *
+     * @return the digest, or null if the server has none
+     * @throws IOException if the server stopped answering
+     ***************************************************************/
+    public byte[] fetchDigest() throws IOException {
+        if (!digestLater) return digest;
+
+        final int attempts = 4;
+        int timeouts = 0;
+
+        byte[] req = Header.createDigestRequestPacket();
+
+        setTimeout();
+        send(req);
+
+        while (true) {
+            ByteBuffer packet;
+
+            try {
+                packet = receive();
+            } catch (SocketTimeoutException e) {
+                if (++timeouts >= attempts) {
+                    throw new IOException("Server not sending the SHA-256");
+                }
+
+                /* The first silence after a pending answer is expected */
+                if (timeouts > 1) rtt.backoff();
+
+                setTimeout();
+                send(req);
+                continue;
+            } catch (BadChecksumException bc) {
+                Log.warn(bc.getMessage());
+                continue;
+            }
+
+            recvHead.wrap(packet);
+
+            /* Data packets resent before the last acknowledgement */
+            if (!recvHead.getAckFlag() || !recvHead.getReqFlag() ||
+                    recvHead.getSynFlag()) {
+                pool.release(packet);
+                continue;
+            }
+
+            int statusCode = packet.get(Header.HEADER_SIZE) & 0xFF;
+
+            if (statusCode == Header.STATUS_PENDING) {
+                Log.debug("Server is still hashing the file");
+                pool.release(packet);
+                timeouts = 0;
+                continue;
+            }
+
+            digest = statusCode == (1 << 7) ? readDigest(packet) : null;
+            digestLater = false;
+            pool.release(packet);
+
+            return digest;
+        }
+    }
+
+    /****************************************************************
+     * Receives the packets answering the REQ and hands their payloads
+     * to the writer as they arrive.
+     *
+     * @param writer writer of the downloaded file
+     * @param bytesReceived bytes of the file received so far over every
+     *                      connection
+     * @return whether every packet was received
+     * @throws IOException
+     ***************************************************************/
+    public boolean receiveFile(final PositionalWriter writer,
+                               AtomicLong bytesReceived) throws IOException {
+        return receive(new Receiver() {
+            @Override
+            public void receive(long seqNum, Header head, BufferPool pool)
+                    throws IOException {
+                ByteBuffer payload = head.getBuffer();
+                long offset;
+
+                if (head.getVersion() >= Header.VERSION) {
+                    offset = head.getFileOffset();
+                } else {
+                    offset = (seqNum - 1) * (packetSize -
+                            head.getDataOffset() - (head.getCrcFlag() ?
+                            Header.CRC_FIELD_SIZE : 0));
+                }
+
+                writer.submit(payload, pool, offset);
+            }
+        }, bytesReceived);
+    }
+
+    /****************************************************************
+     * Receives the packets answering the REQ and hands each one to the
+     * receiver as it arrives, decompressed. Packets rebuilt from parity
+     * are handed over as if they had arrived.
+     *
+     * @param receiver taker of the packets
+     * @param bytesReceived bytes of file data received so far over every
+     *                      connection
+     * @return whether every packet was received
+     * @throws IOException
+     ***************************************************************/
+    public boolean receive(Receiver receiver, AtomicLong bytesReceived)
+            throws IOException {
+        long lastReceived = 0;
+        long highestReceived = 0;
+        int unacked = 0;
+
+        long lastHeard = System.currentTimeMillis();
+        final int attempts = 3;
+
+        /* Resend the acknowledgement every retransmission timeout while
+         * the server is silent, in case it was lost */
+        setTimeout();
+
+        /* Packets received out of order, indexed by sequence number
+         * modulo the window size. Their payloads are already queued
+         * for writing. */
+        boolean[] window = new boolean[RECV_WINDOW];
+
+        Fec.Decoder fec = null;
+        ArrayDeque<ByteBuffer> rebuilt = new ArrayDeque<ByteBuffer>();
+
+        if (fecParity > 0) {
+            fec = new Fec.Decoder(fecGroup, fecParity, packetSize,
+                    numPackets, pool);
+        }
+
+        while (lastReceived != numPackets) {
+            ByteBuffer recvPack = rebuilt.poll();
+
+            if (recvPack == null) {
+                try {
+                    recvPack = receive();
+                } catch (SocketTimeoutException e) {
+                    long idle = System.currentTimeMillis() - lastHeard;
+
+                    if (idle >= TIMEOUT * attempts) {
+                        Log.error("Server not responding.");
+                        return false;
+                    }
+
+                    TIMEOUTS.increment();
+                    sendAck(lastReceived, highestReceived, 0, window);
+                    continue;
+                } catch (BadChecksumException bc) {
+                    Log.warn(bc.getMessage());
+                    CHECKSUM_FAILURES.increment();
+                    continue;
+                }
+
+                lastHeard = System.currentTimeMillis();
+            }
+
+            Header head = recvHead.wrap(recvPack);
+            long seqNum = Header.unwrap(head.getSequenceNum(), lastReceived);
+            int echo = 0;
+
+            if (head.getTimestampFlag()) echo = head.getTimestamp();
+
+            /* Resent status packet, the transfer already started */
+            if (head.getAckFlag() || head.getReqFlag() || head.getSynFlag()) {
+                pool.release(recvPack);
+                continue;
+            }
+
+            if (head.getParityFlag()) {
+                if (fec != null) fec.addParity(head, lastReceived, rebuilt);
+
+                pool.release(recvPack);
+                continue;
+            }
+
+            int slot = (int) (seqNum % RECV_WINDOW);
+
+            PACKETS_RECEIVED.increment();
+
+            if (seqNum <= lastReceived || seqNum > lastReceived + recvWindow
+                    || window[slot]) {
+                if (Log.isEnabled(Log.Level.DEBUG)) {
+                    Log.debug("Got unexpected packet. Sequence number: " +
+                            seqNum);
+                }
+
+                DUPLICATES.increment();
+                pool.release(recvPack);
+                sendAck(lastReceived, highestReceived, echo, window);
+                continue;
+            }
+
+            if (fec != null) fec.addData(seqNum, head, rebuilt);
+
+            recvPack.limit(head.getDataEnd());
+            recvPack.position(head.getDataOffset());
+
+            if (head.getCompressedFlag()) decompress(seqNum, recvPack);
+
+            /* Framing packets of a batch and the copies of a delta carry
+             * no file data */
+            if (!head.getFileFlag()) {
+                bytesReceived.addAndGet(recvPack.remaining());
+                BYTES_RECEIVED.add(recvPack.remaining());
+            }
+
+            receiver.receive(seqNum, head, pool);
+
+            window[slot] = true;
+            highestReceived = Math.max(highestReceived, seqNum);
+
+            if (seqNum != lastReceived + 1) {
+                if (Log.isEnabled(Log.Level.TRACE)) {
+                    Log.trace("- Buffered packet number " + seqNum);
+                }
+
+                sendAck(lastReceived, highestReceived, echo, window);
+                continue;
+            }
+
+            /* Slide past the packet and every packet following it */
+            while (window[(int) ((lastReceived + 1) % RECV_WINDOW)]) {
+                window[(int) ((lastReceived + 1) % RECV_WINDOW)] = false;
+
+                lastReceived++;
+                unacked++;
+
+                if (Log.isEnabled(Log.Level.TRACE)) {
+                    Log.trace("- Received packet number " + lastReceived);
+                }
+            }
+
+            if (fec != null) fec.forget(lastReceived);
+
+            if (unacked >= ACK_EVERY || lastReceived == numPackets) {
+                sendAck(lastReceived, highestReceived, echo, window);
+                unacked = 0;
+            }
+        }
+
+        if (fec != null) {
+            repaired = fec.getRepaired();
+            REBUILT.add(repaired);
+            Log.info("Rebuilt " + repaired + " packets from parity");
+        }
+
+        return true;
+    }
+
+    /****************************************************************
+     * Replaces a compressed payload with the payload it stands for.
+     *
+     * @param seqNum number of the packet
+     * @param packet buffer holding the payload between its position and
+     *               limit, left holding the decompressed one
+     * @throws IOException if the payload cannot be decompressed
+     ***************************************************************/
+    private void decompress(long seqNum, ByteBuffer packet)
+            throws IOException {
+        if (codec == null) {
+            throw new IOException("Packet " + seqNum + " is compressed " +
+                    "but no codec was agreed on");
+        }
+
+        int start = packet.position();
+
+        inflated.clear();
+        inflated.limit(packet.capacity() - start);
+
+        try {
+            codec.decompress(packet, inflated);
+        } catch (IOException e) {
+            throw new IOException("Packet " + seqNum + ": " + e.getMessage());
+        }
+
+        inflated.flip();
+
+        packet.clear();
+        packet.position(start);
+        packet.put(inflated);
+        packet.flip();
+        packet.position(start);
+    }
+
+    /****************************************************************
+     * Acknowledges the last packet received in order, along with a
+     * SACK bitmap of the packets received past it.
+     *
+     * @param lastReceived last packet received in order
+     * @param highestReceived highest packet received
+     * @param echo timestamp of the packet being acknowledged, or 0
+     * @param window packets received out of order
+     * @throws IOException
+     ***************************************************************/
+    private void sendAck(long lastReceived, long highestReceived, int echo,
+                         boolean[] window) throws IOException {
+        ackBuffer.clear();
+
+        Header head = ackHead;
+        head.clear();
+        head.setAckFlag(true);
+        head.setSequenceNum((int) lastReceived);
+        head.setVersion(Header.VERSION);
+        head.setAdvertisedWindow(recvWindow);
+        head.setEchoedTimestamp(echo);
+
+        /* Bitmap only reaches the last packet received */
+        int numBits = (int) Math.max(0, highestReceived - lastReceived - 1);
+        head.setSackLength(numBits);
+
+        for (int i = 0; i < numBits; i++) {
+            long seq = lastReceived + 2 + i;
+
+            if (window[(int) (seq % RECV_WINDOW)]) head.setSacked(i);
+        }
+
+        head.setChecksum();
+
+        clientChannel.send(ackBuffer, server);
+        ACKS_SENT.increment();
+
+        if (Log.isEnabled(Log.Level.TRACE)) {
+            Log.trace("Sending acknowledgement of packet " + lastReceived);
+        }
+    }
+
+    private void send(byte[] data) throws IOException {
+        clientChannel.send(ByteBuffer.wrap(data), server);
+    }
+
+    /****************************************************************
+     * Waits for the next packet from the server.
+     *
+     * @return buffer from the pool holding the packet, to be released
+     * by the caller
+     * @throws SocketTimeoutException if no packet arrives in time
+     * @throws BadChecksumException if the packet is corrupt
+     ***************************************************************/
+    private ByteBuffer receive() throws IOException, BadChecksumException {
+        ByteBuffer recvData = pool.acquire();
+
+        while (clientChannel.receive(recvData) == null) {
+
+            if (selector.select(timeout) == 0) {
+                pool.release(recvData);
+                throw new SocketTimeoutException();
+            }
+
+            selector.selectedKeys().clear();
+        }
+
+        recvData.flip();
+
+        int expected = Header.calculateChecksum(recvData);
+        int received = recvHead.wrap(recvData).getChecksum();
+
+        if (expected != received) {
+            pool.release(recvData);
+            throw new BadChecksumException(expected, received);
+        }
+
+        if (!recvHead.checkCrc()) {
+            expected = recvHead.calculateCrc();
+            received = recvHead.getCrc();
+
+            pool.release(recvData);
+            throw new BadChecksumException(expected, received);
+        }
+
+        return recvData;
+    }
+
+    /****************************************************************
+     * Closes the connection's socket.
+     ***************************************************************/
+    public void close() {
+        if (codec != null) codec.close();
+
+        try {
+            selector.close();
+            clientChannel.close();
+        } catch (IOException e) {
+            Log.warn(e.getMessage());
+        }
+    }
+}
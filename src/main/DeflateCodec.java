@@ -0,0 +1,80 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw Deflate from the JDK, without the zlib header and checksum since
+ * every packet already has a checksum of its own.
+ */
+public class DeflateCodec implements Codec {
+
+    private final Deflater deflater;
+
+    private final Inflater inflater;
+
+    /****************************************************************
+     * @param level Deflate compression level, from
+     *              {@link Deflater#BEST_SPEED} to
+     *              {@link Deflater#BEST_COMPRESSION}
+     ***************************************************************/
+    public DeflateCodec(int level) {
+        deflater = new Deflater(level, true);
+        inflater = new Inflater(true);
+    }
+
+    @Override
+    public int getId() {
+        return Codecs.DEFLATE;
+    }
+
+    @Override
+    public boolean compress(ByteBuffer src, ByteBuffer dst) {
+        deflater.reset();
+        deflater.setInput(src);
+        deflater.finish();
+
+        while (!deflater.finished()) {
+            if (deflater.deflate(dst) == 0 && !dst.hasRemaining()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public void decompress(ByteBuffer src, ByteBuffer dst)
+            throws IOException {
+        inflater.reset();
+        inflater.setInput(src);
+
+        try {
+            while (!inflater.finished()) {
+                if (inflater.inflate(dst) == 0) {
+                    if (!dst.hasRemaining()) {
+                        throw new IOException("Decompressed payload " +
+                                "does not fit in a packet");
+                    }
+
+                    if (inflater.needsInput()) {
+                        throw new IOException("Compressed payload is " +
+                                "truncated");
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed payload is malformed: " +
+                    e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+        inflater.end();
+    }
+}
@@ -0,0 +1,479 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Differences between a client's old copy of a file and the server's
+ * current one, found the way rsync finds them. The client splits its
+ * copy into blocks and sends a weak rolling checksum and a strong hash
+ * of each. The server slides a window of one block over its file a
+ * byte at a time, rolling the weak checksum along, and wherever it
+ * matches a block and the strong hash agrees, the client already has
+ * those bytes. Everything else is sent as literal data.
+ *
+ * The result is a list of copies, each a range of the new file that
+ * the client takes from its old copy, and a list of literal ranges the
+ * server sends.
+ */
+public class Delta {
+
+    /**
+     * Bounds of the block size, which grows with the square root of the
+     * file size so that signatures and literal data stay small
+     */
+    public static final int MIN_BLOCK_SIZE = 1024;
+
+    public static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * Most blocks in a signature, past which blocks are made larger
+     */
+    static final int MAX_BLOCKS = 1 << 20;
+
+    /**
+     * Length of the weak checksum and strong hash of a block
+     */
+    public static final int SIGNATURE_SIZE = 4 + 8;
+
+    /**
+     * Length of a copy sent to the client: the offset in the new file,
+     * the offset in the old copy and the length
+     */
+    public static final int COPY_SIZE = 8 + 8 + 8;
+
+    /**
+     * Bytes of the file read at once
+     */
+    private static final int READ_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Weak checksums and strong hashes of the blocks of a file
+     */
+    public static class Signature {
+
+        private final int blockSize;
+
+        private final long fileSize;
+
+        private final int[] weak;
+
+        private final long[] strong;
+
+        public Signature(int blockSize, long fileSize) {
+            this.blockSize = blockSize;
+            this.fileSize = fileSize;
+
+            int numBlocks = (int) ((fileSize + blockSize - 1) / blockSize);
+
+            weak = new int[numBlocks];
+            strong = new long[numBlocks];
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public int getNumBlocks() {
+            return weak.length;
+        }
+
+        public int getWeak(int block) {
+            return weak[block];
+        }
+
+        public long getStrong(int block) {
+            return strong[block];
+        }
+
+        public void set(int block, int weakSum, long strongHash) {
+            weak[block] = weakSum;
+            strong[block] = strongHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Signature)) return false;
+
+            Signature other = (Signature) o;
+
+            return blockSize == other.blockSize &&
+                    fileSize == other.fileSize &&
+                    Arrays.equals(weak, other.weak) &&
+                    Arrays.equals(strong, other.strong);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(strong) * 31 + blockSize;
+        }
+    }
+
+    /**
+     * Copies as offset in the new file, offset in the old copy and
+     * length, three longs each, in order of the new file
+     */
+    private long[] copies;
+
+    private int numCopies;
+
+    /**
+     * Literal ranges as start and end, in order
+     */
+    private long[] literals;
+
+    private int numLiterals;
+
+    private Delta() {
+        copies = new long[3 * 16];
+        literals = new long[2 * 16];
+    }
+
+    public int getNumCopies() {
+        return numCopies;
+    }
+
+    public long getCopyTarget(int i) {
+        return copies[3 * i];
+    }
+
+    public long getCopySource(int i) {
+        return copies[3 * i + 1];
+    }
+
+    public long getCopyLength(int i) {
+        return copies[3 * i + 2];
+    }
+
+    /**
+     * @return bytes of the new file the client takes from its old copy
+     */
+    public long getCopiedBytes() {
+        long total = 0;
+
+        for (int i = 0; i < numCopies; i++) {
+            total += copies[3 * i + 2];
+        }
+
+        return total;
+    }
+
+    /**
+     * @return literal ranges as start and end offsets, in pairs
+     */
+    public long[] getLiterals() {
+        return Arrays.copyOf(literals, 2 * numLiterals);
+    }
+
+    private void addCopy(long target, long source, long length) {
+        int last = 3 * (numCopies - 1);
+
+        /* Extends the last copy when the blocks follow on in both files */
+        if (numCopies > 0 && copies[last] + copies[last + 2] == target &&
+                copies[last + 1] + copies[last + 2] == source) {
+            copies[last + 2] += length;
+            return;
+        }
+
+        if (3 * numCopies == copies.length) {
+            copies = Arrays.copyOf(copies, 2 * copies.length);
+        }
+
+        copies[3 * numCopies] = target;
+        copies[3 * numCopies + 1] = source;
+        copies[3 * numCopies + 2] = length;
+        numCopies++;
+    }
+
+    private void addLiteral(long start, long end) {
+        if (2 * numLiterals == literals.length) {
+            literals = Arrays.copyOf(literals, 2 * literals.length);
+        }
+
+        literals[2 * numLiterals] = start;
+        literals[2 * numLiterals + 1] = end;
+        numLiterals++;
+    }
+
+    /****************************************************************
+     * @param fileSize size of the file to sign
+     * @return block size for the file, a power of two near the square
+     * root of its size
+     ***************************************************************/
+    public static int chooseBlockSize(long fileSize) {
+        int size = MIN_BLOCK_SIZE;
+
+        while (size < MAX_BLOCK_SIZE && ((long) size * size < fileSize ||
+                fileSize / size >= MAX_BLOCKS)) {
+            size *= 2;
+        }
+
+        return size;
+    }
+
+    /****************************************************************
+     * Signs every block of a file.
+     *
+     * @param file file open for reading
+     * @param fileSize size of the file
+     * @return the signature
+     * @throws IOException if the file cannot be read
+     ***************************************************************/
+    public static Signature sign(FileChannel file, long fileSize)
+            throws IOException {
+        int blockSize = chooseBlockSize(fileSize);
+        Signature sig = new Signature(blockSize, fileSize);
+        MessageDigest md5 = newDigest();
+
+        byte[] block = new byte[blockSize];
+        ByteBuffer buf = ByteBuffer.wrap(block);
+
+        for (int j = 0; j < sig.getNumBlocks(); j++) {
+            long start = (long) j * blockSize;
+            int len = (int) Math.min(blockSize, fileSize - start);
+
+            buf.clear().limit(len);
+
+            while (buf.hasRemaining()) {
+                if (file.read(buf, start + buf.position()) < 0) {
+                    throw new IOException("File ended while signing it");
+                }
+            }
+
+            sig.set(j, weakSum(block, 0, len), strongHash(md5, block, 0,
+                    len));
+        }
+
+        return sig;
+    }
+
+    /****************************************************************
+     * Finds the differences between a file and the signature of an old
+     * copy of it. Only whole blocks of the old copy are matched, so a
+     * short last block is always sent again.
+     *
+     * @param file the current file, open for reading
+     * @param fileSize its size
+     * @param sig signature of the old copy
+     * @return copies and literal ranges that make up the file
+     * @throws IOException if the file cannot be read
+     ***************************************************************/
+    public static Delta compute(FileChannel file, long fileSize,
+                                Signature sig) throws IOException {
+        Delta delta = new Delta();
+        int blockSize = sig.getBlockSize();
+        int numFull = (int) (sig.getFileSize() / blockSize);
+
+        /* Hash table of the weak checksums of the whole blocks, chained
+         * through next */
+        int buckets = Integer.highestOneBit(Math.max(1, numFull) * 2);
+        int mask = buckets - 1;
+        int[] heads = new int[buckets];
+        int[] next = new int[Math.max(1, numFull)];
+
+        Arrays.fill(heads, -1);
+
+        for (int j = numFull - 1; j >= 0; j--) {
+            int bucket = spread(sig.getWeak(j)) & mask;
+            next[j] = heads[bucket];
+            heads[bucket] = j;
+        }
+
+        MessageDigest md5 = newDigest();
+        Window window = new Window(file, fileSize,
+                Math.max(READ_SIZE, 4 * blockSize));
+
+        long pos = 0;
+        long literalStart = 0;
+        int previous = -2;
+
+        int a = 0;
+        int b = 0;
+
+        if (numFull > 0 && fileSize >= blockSize) {
+            window.ensure(0, blockSize);
+            a = window.sumA(0, blockSize);
+            b = window.sumB(0, blockSize);
+        }
+
+        while (numFull > 0 && pos + blockSize <= fileSize) {
+            int weak = (a & 0xFFFF) | (b << 16);
+            int match = -1;
+            long strong = 0;
+            boolean hashed = false;
+
+            for (int j = heads[spread(weak) & mask]; j >= 0; j = next[j]) {
+                if (sig.getWeak(j) != weak) continue;
+
+                if (!hashed) {
+                    window.ensure(pos, pos + blockSize);
+                    strong = window.hash(md5, pos, blockSize);
+                    hashed = true;
+                }
+
+                if (sig.getStrong(j) != strong) continue;
+
+                match = j;
+
+                /* Blocks that follow on from the last match merge into
+                 * one copy */
+                if (j == previous + 1) break;
+            }
+
+            if (match >= 0) {
+                if (pos > literalStart) delta.addLiteral(literalStart, pos);
+
+                delta.addCopy(pos, (long) match * blockSize, blockSize);
+                previous = match;
+
+                pos += blockSize;
+                literalStart = pos;
+
+                if (pos + blockSize <= fileSize) {
+                    window.ensure(pos, pos + blockSize);
+                    a = window.sumA(pos, blockSize);
+                    b = window.sumB(pos, blockSize);
+                }
+
+                continue;
+            }
+
+            if (pos + blockSize < fileSize) {
+                window.ensure(pos, pos + blockSize + 1);
+
+                int out = window.get(pos);
+                int in = window.get(pos + blockSize);
+
+                a = (a - out + in) & 0xFFFF;
+                b = (b - blockSize * out + a) & 0xFFFF;
+            }
+
+            pos++;
+        }
+
+        if (fileSize > literalStart) delta.addLiteral(literalStart, fileSize);
+
+        return delta;
+    }
+
+    /**
+     * @return rsync's weak checksum of bytes of an array
+     */
+    static int weakSum(byte[] data, int from, int len) {
+        int a = 0;
+        int b = 0;
+
+        for (int i = 0; i < len; i++) {
+            a += data[from + i] & 0xFF;
+            b += (len - i) * (data[from + i] & 0xFF);
+        }
+
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * @return first 8 bytes of the MD5 of bytes of an array
+     */
+    static long strongHash(MessageDigest md5, byte[] data, int from,
+                           int len) {
+        md5.reset();
+        md5.update(data, from, len);
+
+        return ByteBuffer.wrap(md5.digest()).getLong();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16) * 0x45D9F3B;
+    }
+
+    /**
+     * Part of a file held in memory, read again further on once the
+     * bytes asked for run past it
+     */
+    private static class Window {
+
+        private final FileChannel file;
+
+        private final long fileSize;
+
+        private final byte[] data;
+
+        /**
+         * Offset in the file of the first byte held, and bytes held
+         */
+        private long base;
+
+        private int length;
+
+        Window(FileChannel file, long fileSize, int capacity) {
+            this.file = file;
+            this.fileSize = fileSize;
+
+            data = new byte[(int) Math.min(capacity, Math.max(1, fileSize))];
+        }
+
+        /**
+         * Makes sure bytes from start up to end are held
+         */
+        void ensure(long start, long end) throws IOException {
+            if (start >= base && end <= base + length) return;
+
+            base = start;
+            length = (int) Math.min(data.length, fileSize - start);
+
+            ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+
+            while (buf.hasRemaining()) {
+                if (file.read(buf, base + buf.position()) < 0) {
+                    throw new IOException("File ended while reading it");
+                }
+            }
+        }
+
+        int get(long pos) {
+            return data[(int) (pos - base)] & 0xFF;
+        }
+
+        int sumA(long pos, int len) {
+            int from = (int) (pos - base);
+            int a = 0;
+
+            for (int i = 0; i < len; i++) {
+                a += data[from + i] & 0xFF;
+            }
+
+            return a & 0xFFFF;
+        }
+
+        int sumB(long pos, int len) {
+            int from = (int) (pos - base);
+            int b = 0;
+
+            for (int i = 0; i < len; i++) {
+                b += (len - i) * (data[from + i] & 0xFF);
+            }
+
+            return b & 0xFFFF;
+        }
+
+        long hash(MessageDigest md5, long pos, int len) {
+            return strongHash(md5, data, (int) (pos - base), len);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds a file out of the client's old copy of it and the
+ * differences sent by the server. The first packets list ranges to copy
+ * from the old copy, the rest are literal data placed at their offsets.
+ */
+public class DeltaReceiver implements Connection.Receiver {
+
+    private final PositionalWriter writer;
+
+    private final FileChannel old;
+
+    private final long oldSize;
+
+    private final long fileSize;
+
+    private final AtomicLong bytesReceived;
+
+    private long copiedBytes;
+
+    /****************************************************************
+     * @param writer writer of the new file, already sized
+     * @param old the old copy, open for reading
+     * @param oldSize size of the old copy
+     * @param fileSize size of the new file
+     * @param bytesReceived bytes of the new file received so far, which
+     *                      copies count toward
+     ***************************************************************/
+    public DeltaReceiver(PositionalWriter writer, FileChannel old,
+                         long oldSize, long fileSize,
+                         AtomicLong bytesReceived) {
+        this.writer = writer;
+        this.old = old;
+        this.oldSize = oldSize;
+        this.fileSize = fileSize;
+        this.bytesReceived = bytesReceived;
+    }
+
+    /**
+     * @return bytes of the new file taken from the old copy
+     */
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    @Override
+    public void receive(long seqNum, Header head, BufferPool pool)
+            throws IOException {
+        ByteBuffer buf = head.getBuffer();
+
+        if (!head.getFileFlag()) {
+            writer.submit(buf, pool, head.getFileOffset());
+            return;
+        }
+
+        try {
+            while (buf.remaining() >= Delta.COPY_SIZE) {
+                long target = buf.getLong();
+                long source = buf.getLong();
+                long length = buf.getLong();
+
+                if (length <= 0 || target < 0 || source < 0 ||
+                        target + length > fileSize ||
+                        source + length > oldSize) {
+                    throw new IOException("Server sent a copy outside " +
+                            "the file");
+                }
+
+                writer.copy(old, source, target, length);
+                copiedBytes += length;
+                bytesReceived.addAndGet(length);
+            }
+        } finally {
+            pool.release(buf);
+        }
+    }
+}
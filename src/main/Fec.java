@@ -0,0 +1,512 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Forward error correction with XOR parity, so that a lost packet can
+ * be rebuilt by the client without waiting for it to be sent again.
+ * Data packets are taken in groups of consecutive sequence numbers, and
+ * after the last packet of a group the server sends k parity packets
+ * for it. Parity packet j is the XOR of the packets whose index in the
+ * group is j modulo k, so any one of those can be rebuilt from the
+ * others, and up to k losses in a group can be repaired if they fall
+ * in different classes.
+ *
+ * What is protected of a data packet is its unit: the FILE and
+ * compressed flags, the payload length as sent, the file offset and
+ * the payload. A parity packet has the parity flag, the first sequence
+ * number of its group, and k and j ahead of the XOR of the units,
+ * shorter units being padded with zeroes.
+ *
+ * The handshake agrees on the group size and on the most parity
+ * packets per group. The server then sends fewer while no losses are
+ * seen, always a divisor of the agreed number so that the client can
+ * keep one XOR per class of the agreed number and combine them.
+ */
+public final class Fec {
+
+    /**
+     * Flags, payload length and file offset that start a unit
+     */
+    static final int UNIT_PREAMBLE = 1 + 2 + 8;
+
+    /**
+     * Flags of a unit
+     */
+    private static final int FILE = 1;
+
+    private static final int COMPRESSED = 2;
+
+    /**
+     * Length of k and j, which start the data of a parity packet
+     */
+    static final int PARITY_PREAMBLE = 1 + 1;
+
+    /**
+     * Largest group, so that what a group has received fits in a long
+     */
+    static final int MAX_GROUP = 64;
+
+    static final int MAX_PARITY = 16;
+
+    /**
+     * Bytes a parity packet takes beyond the data packets it covers,
+     * which their payloads are made shorter by
+     */
+    static final int OVERHEAD = PARITY_PREAMBLE + UNIT_PREAMBLE -
+            Header.TIMESTAMP_FIELD_SIZE - Header.OFFSET_FIELD_SIZE;
+
+    /**
+     * Number of groups sent without losses after which the server sends
+     * fewer parity packets
+     */
+    private static final int CLEAN_GROUPS = 8;
+
+    private Fec() {
+    }
+
+    /****************************************************************
+     * XORs the unit of a data packet into an accumulator.
+     *
+     * @param head view over the packet, its buffer's limit at the end
+     *             of the packet
+     * @param acc accumulator
+     * @return length of the unit
+     ***************************************************************/
+    static int xorUnit(Header head, ByteBuffer acc) {
+        int start = head.getDataOffset();
+        int len = head.getDataEnd() - start;
+
+        int flags = (head.getFileFlag() ? FILE : 0) |
+                (head.getCompressedFlag() ? COMPRESSED : 0);
+
+        acc.put(0, (byte) (acc.get(0) ^ flags));
+        acc.putShort(1, (short) (acc.getShort(1) ^ len));
+        acc.putLong(3, acc.getLong(3) ^ head.getFileOffset());
+
+        xor(acc, UNIT_PREAMBLE, head.getBuffer(), start, len);
+
+        return UNIT_PREAMBLE + len;
+    }
+
+    /**
+     * XORs bytes of one buffer into another, a long at a time
+     */
+    static void xor(ByteBuffer dst, int at, ByteBuffer src, int from,
+                    int len) {
+        int i = 0;
+
+        for (; i + 8 <= len; i += 8) {
+            dst.putLong(at + i, dst.getLong(at + i) ^ src.getLong(from + i));
+        }
+
+        for (; i < len; i++) {
+            dst.put(at + i, (byte) (dst.get(at + i) ^ src.get(from + i)));
+        }
+    }
+
+    private static void zero(ByteBuffer buf, int len) {
+        for (int i = 0; i < len; i++) {
+            buf.put(i, (byte) 0);
+        }
+    }
+
+    /**
+     * Parity sent by the server
+     */
+    static class Encoder {
+
+        private final int groupSize;
+
+        private final int maxParity;
+
+        /**
+         * XOR of the units of the current group, by index in the group
+         * modulo maxParity, and the length of the longest unit in each
+         */
+        private final ByteBuffer[] acc;
+
+        private final int[] used;
+
+        /**
+         * Parity packets sent per group
+         */
+        private int parity;
+
+        private int losses;
+
+        private int cleanGroups;
+
+        /****************************************************************
+         * @param groupSize data packets per group
+         * @param maxParity most parity packets per group
+         * @param packetSize size of the largest packet
+         ***************************************************************/
+        Encoder(int groupSize, int maxParity, int packetSize) {
+            this.groupSize = groupSize;
+            this.maxParity = maxParity;
+
+            acc = new ByteBuffer[maxParity];
+            used = new int[maxParity];
+
+            for (int c = 0; c < maxParity; c++) {
+                acc[c] = ByteBuffer.allocate(packetSize);
+            }
+
+            parity = maxParity;
+        }
+
+        /****************************************************************
+         * Adds a data packet sent for the first time to its group.
+         *
+         * @param seq sequence number of the packet, from 1
+         * @param head view over the packet
+         * @param numPackets number of data packets in the transfer
+         * @return whether the packet ends its group
+         ***************************************************************/
+        boolean add(long seq, Header head, long numPackets) {
+            int index = (int) ((seq - 1) % groupSize);
+            int c = index % maxParity;
+
+            used[c] = Math.max(used[c], xorUnit(head, acc[c]));
+
+            return index == groupSize - 1 || seq == numPackets;
+        }
+
+        /**
+         * Counts a packet the client reported lost
+         */
+        void onLoss() {
+            losses++;
+        }
+
+        /**
+         * @return number of parity packets for the group just ended
+         */
+        int getParity() {
+            return parity;
+        }
+
+        /****************************************************************
+         * Writes parity packet j of the group just ended into a packet
+         * after its header.
+         *
+         * @param j index of the parity packet
+         * @param packet buffer positioned after the header, left
+         *               positioned past the parity
+         ***************************************************************/
+        void putParity(int j, ByteBuffer packet) {
+            int start = packet.position() + PARITY_PREAMBLE;
+            int len = 0;
+
+            packet.put((byte) parity);
+            packet.put((byte) j);
+
+            for (int c = j; c < maxParity; c += parity) {
+                len = Math.max(len, used[c]);
+            }
+
+            for (int i = 0; i < len; i++) {
+                packet.put(start + i, (byte) 0);
+            }
+
+            for (int c = j; c < maxParity; c += parity) {
+                xor(packet, start, acc[c], 0, used[c]);
+            }
+
+            packet.position(start + len);
+        }
+
+        /****************************************************************
+         * Starts the next group, sending one step more parity packets
+         * per group if losses were seen since the last group ended, or
+         * one step fewer after CLEAN_GROUPS groups without any.
+         ***************************************************************/
+        void nextGroup() {
+            for (int c = 0; c < maxParity; c++) {
+                zero(acc[c], used[c]);
+                used[c] = 0;
+            }
+
+            if (losses > 0) {
+                cleanGroups = 0;
+
+                do {
+                    parity++;
+                } while (parity < maxParity && maxParity % parity != 0);
+            } else if (++cleanGroups >= CLEAN_GROUPS && parity > 0) {
+                cleanGroups = 0;
+
+                do {
+                    parity--;
+                } while (parity > 0 && maxParity % parity != 0);
+            }
+
+            parity = Math.min(parity, maxParity);
+            losses = 0;
+        }
+    }
+
+    /**
+     * Repair done by the client
+     */
+    static class Decoder {
+
+        private static class Group {
+            long first;
+            int size;
+
+            /**
+             * Packets of the group received, by index
+             */
+            long received;
+
+            ByteBuffer[] acc;
+            int[] used;
+
+            /**
+             * Parity packets of the group received, by j, and their k
+             */
+            ByteBuffer[] parity;
+            int k;
+        }
+
+        private final int groupSize;
+
+        private final int maxParity;
+
+        private final int packetSize;
+
+        private final long numPackets;
+
+        private final BufferPool pool;
+
+        /**
+         * Groups with packets received, by index
+         */
+        private final Map<Long, Group> groups;
+
+        private final ArrayDeque<Group> free;
+
+        private final Header head;
+
+        private long repaired;
+
+        /****************************************************************
+         * @param groupSize data packets per group
+         * @param maxParity most parity packets per group
+         * @param packetSize size of the largest packet
+         * @param numPackets number of data packets in the transfer
+         * @param pool pool the rebuilt packets are taken from
+         ***************************************************************/
+        Decoder(int groupSize, int maxParity, int packetSize,
+                long numPackets, BufferPool pool) {
+            this.groupSize = groupSize;
+            this.maxParity = maxParity;
+            this.packetSize = packetSize;
+            this.numPackets = numPackets;
+            this.pool = pool;
+
+            groups = new HashMap<Long, Group>();
+            free = new ArrayDeque<Group>();
+            head = new Header();
+        }
+
+        /**
+         * @return number of packets rebuilt
+         */
+        long getRepaired() {
+            return repaired;
+        }
+
+        private Group getGroup(long seq) {
+            long index = (seq - 1) / groupSize;
+            Group group = groups.get(index);
+
+            if (group != null) return group;
+
+            group = free.poll();
+
+            if (group == null) {
+                group = new Group();
+                group.acc = new ByteBuffer[maxParity];
+                group.used = new int[maxParity];
+                group.parity = new ByteBuffer[maxParity];
+
+                for (int c = 0; c < maxParity; c++) {
+                    group.acc[c] = ByteBuffer.allocate(packetSize);
+                }
+            }
+
+            group.first = index * groupSize + 1;
+            group.size = (int) Math.min(groupSize,
+                    numPackets - group.first + 1);
+            group.received = 0;
+            group.k = 0;
+
+            groups.put(index, group);
+
+            return group;
+        }
+
+        /****************************************************************
+         * Adds a data packet received for the first time to its group,
+         * and rebuilds the packet missing from its class if it was the
+         * last but one.
+         *
+         * @param seq sequence number of the packet
+         * @param data view over the packet, its buffer's limit at the
+         *             end of the packet
+         * @param rebuilt queue the rebuilt packet is added to
+         ***************************************************************/
+        void addData(long seq, Header data, Queue<ByteBuffer> rebuilt) {
+            Group group = getGroup(seq);
+            int index = (int) (seq - group.first);
+
+            if ((group.received & 1L << index) != 0) return;
+
+            group.received |= 1L << index;
+
+            int c = index % maxParity;
+            group.used[c] = Math.max(group.used[c],
+                    xorUnit(data, group.acc[c]));
+
+            if (group.k > 0) repair(group, index % group.k, rebuilt);
+        }
+
+        /****************************************************************
+         * Adds a parity packet to its group and rebuilds the packet it
+         * covers if only one is missing.
+         *
+         * @param parity view over the parity packet
+         * @param lastReceived last packet received in order
+         * @param rebuilt queue the rebuilt packet is added to
+         ***************************************************************/
+        void addParity(Header parity, long lastReceived,
+                       Queue<ByteBuffer> rebuilt) {
+            ByteBuffer buf = parity.getBuffer();
+            int start = Header.HEADER_SIZE;
+            int end = parity.getDataEnd();
+
+            if (end - start < PARITY_PREAMBLE + UNIT_PREAMBLE) return;
+
+            long first = Header.unwrap(parity.getSequenceNum(), lastReceived);
+            int k = buf.get(start) & 0xFF;
+            int j = buf.get(start + 1) & 0xFF;
+
+            if ((first - 1) % groupSize != 0 || k == 0 || k > maxParity ||
+                    maxParity % k != 0 || j >= k) {
+                return;
+            }
+
+            /* Every packet of the group already arrived */
+            if (first + groupSize - 1 <= lastReceived) return;
+
+            Group group = getGroup(first);
+
+            if (group.k != 0 && group.k != k) return;
+
+            group.k = k;
+
+            if (group.parity[j] != null) return;
+
+            int len = end - start - PARITY_PREAMBLE;
+            ByteBuffer copy = ByteBuffer.allocate(len);
+            xor(copy, 0, buf, start + PARITY_PREAMBLE, len);
+
+            group.parity[j] = copy;
+
+            repair(group, j, rebuilt);
+        }
+
+        /****************************************************************
+         * Rebuilds the packet missing from class j of a group, if its
+         * parity arrived and it is the only one missing.
+         ***************************************************************/
+        private void repair(Group group, int j, Queue<ByteBuffer> rebuilt) {
+            ByteBuffer parity = group.parity[j];
+
+            if (parity == null) return;
+
+            int missing = -1;
+
+            for (int i = j; i < group.size; i += group.k) {
+                if ((group.received & 1L << i) != 0) continue;
+
+                if (missing >= 0) return;
+
+                missing = i;
+            }
+
+            if (missing < 0) return;
+
+            /* The parity XOR the other packets' units is the missing
+             * unit, built in place in the parity's copy */
+            for (int c = j; c < maxParity; c += group.k) {
+                xor(parity, 0, group.acc[c], 0,
+                        Math.min(group.used[c], parity.capacity()));
+            }
+
+            int len = parity.getShort(1) & 0xFFFF;
+
+            if (UNIT_PREAMBLE + len > parity.capacity()) return;
+
+            ByteBuffer packet = pool.acquire();
+
+            Header out = head.wrap(packet);
+            out.clear();
+            out.setSequenceNum((int) (group.first + missing));
+            out.setVersion(Header.VERSION);
+            out.setFileFlag((parity.get(0) & FILE) != 0);
+            out.setCompressedFlag((parity.get(0) & COMPRESSED) != 0);
+            out.setFileOffset(parity.getLong(3));
+
+            parity.limit(UNIT_PREAMBLE + len).position(UNIT_PREAMBLE);
+            packet.position(out.getDataOffset());
+            packet.put(parity);
+            packet.flip();
+
+            /* The unit is part of the group now, as if received */
+            group.received |= 1L << missing;
+            group.parity[j] = null;
+
+            int c = missing % maxParity;
+            group.used[c] = Math.max(group.used[c],
+                    xorUnit(out, group.acc[c]));
+
+            repaired++;
+            rebuilt.add(packet);
+        }
+
+        /****************************************************************
+         * Drops the groups every packet of which has been received in
+         * order.
+         *
+         * @param lastReceived last packet received in order
+         ***************************************************************/
+        void forget(long lastReceived) {
+            Iterator<Group> it = groups.values().iterator();
+
+            while (it.hasNext()) {
+                Group group = it.next();
+
+                if (group.first + group.size - 1 > lastReceived) continue;
+
+                it.remove();
+
+                for (int c = 0; c < maxParity; c++) {
+                    zero(group.acc[c], group.used[c]);
+                    group.used[c] = 0;
+                    group.parity[c] = null;
+                }
+
+                free.push(group);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 of a whole file, which the server sends in the status packet
+ * and the client checks the file it assembled against. The client
+ * hashes on a thread of its own while the download goes on, reading
+ * back each part of the file as soon as every byte before it has been
+ * written, so that checking the file costs little once the last packet
+ * arrives.
+ */
+public class FileDigest implements Runnable {
+
+    /**
+     * Length in bytes of a digest
+     */
+    public static final int SIZE = 32;
+
+    /**
+     * Bytes of the file read at once
+     */
+    private static final int READ_SIZE = 1024 * 1024;
+
+    /**
+     * Time in milliseconds to wait for more of the file to be written
+     * before looking again
+     */
+    private static final int POLL_INTERVAL = 100;
+
+    private final File file;
+
+    private final long fileSize;
+
+    private final PositionalWriter writer;
+
+    private final Thread thread;
+
+    private volatile boolean stopping;
+
+    private byte[] digest;
+
+    private IOException failure;
+
+    /****************************************************************
+     * Starts hashing a file as it is written.
+     *
+     * @param file the file
+     * @param fileSize its size once complete
+     * @param writer writer of the file, which tells how much of it is
+     *               written
+     ***************************************************************/
+    public FileDigest(File file, long fileSize, PositionalWriter writer) {
+        this.file = file;
+        this.fileSize = fileSize;
+        this.writer = writer;
+
+        thread = new Thread(this, "file-digest");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /****************************************************************
+     * Waits for the rest of the file to be hashed. The writer must be
+     * closed first.
+     *
+     * @return the digest, or null if the file was not written in full
+     * @throws IOException if the file could not be read back
+     ***************************************************************/
+    public byte[] finish() throws IOException {
+        stopping = true;
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        if (failure != null) throw failure;
+
+        return digest;
+    }
+
+    @Override
+    public void run() {
+        MessageDigest sha = newDigest();
+        ByteBuffer buf = ByteBuffer.allocate(READ_SIZE);
+        long hashed = 0;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            while (hashed < fileSize) {
+                boolean last = stopping;
+                long written = writer.awaitWritten(hashed, POLL_INTERVAL);
+
+                if (written == hashed) {
+                    if (last) return;
+                    continue;
+                }
+
+                while (hashed < written) {
+                    buf.clear();
+                    buf.limit((int) Math.min(READ_SIZE, written - hashed));
+
+                    readFully(channel, buf, hashed);
+                    buf.flip();
+
+                    sha.update(buf);
+                    hashed += buf.limit();
+                }
+            }
+
+            digest = sha.digest();
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /****************************************************************
+     * Hashes a whole file.
+     *
+     * @param file file open for reading
+     * @param fileSize its size
+     * @return the digest
+     * @throws IOException if the file cannot be read
+     ***************************************************************/
+    public static byte[] compute(FileChannel file, long fileSize)
+            throws IOException {
+        MessageDigest sha = newDigest();
+        ByteBuffer buf = ByteBuffer.allocateDirect(READ_SIZE);
+
+        for (long pos = 0; pos < fileSize; ) {
+            buf.clear();
+            buf.limit((int) Math.min(READ_SIZE, fileSize - pos));
+
+            readFully(file, buf, pos);
+            buf.flip();
+
+            sha.update(buf);
+            pos += buf.limit();
+        }
+
+        return sha.digest();
+    }
+
+    /**
+     * @return a digest as hexadecimal
+     */
+    public static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder();
+
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+
+        return hex.toString();
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer buf,
+                                  long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            if (file.read(buf, offset + buf.position()) < 0) {
+                throw new IOException("File ended while hashing it");
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,5 +1,17 @@
 package main;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * View over the header of a packet. The header is backed by a buffer
+ * holding the whole packet, from index 0 to the buffer's limit, so the
+ * same instance can be pointed at packet after packet with
+ * {@link #wrap(ByteBuffer)} without allocating.
+ */
 public class Header {
 
     /**
@@ -7,16 +19,540 @@ public class Header {
      */
     public static final int HEADER_SIZE = 8;
 
-    private byte[] data;
+    /**
+     * Format of the original protocol, whose headers leave byte 7 zero.
+     * Its status packets carry 32-bit sizes and its data packets are
+     * placed by sequence number alone.
+     */
+    public static final int LEGACY_VERSION = 1;
+
+    /**
+     * Current format, set in the low bits of byte 7 of every header.
+     * Status packets carry 64-bit sizes, and data packets carry the
+     * 64-bit offset of their payload in the file, so sequence numbers
+     * are free to wrap.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Bits of byte 7 holding the version, the rest being flags
+     */
+    private static final int VERSION_MASK = 0x3F;
+
+    /**
+     * Length in bytes of the receive window, in packets, that starts the
+     * data field of every acknowledgement
+     */
+    public static final int WINDOW_FIELD_SIZE = 2;
+
+    /**
+     * Length in bytes of the send time, in microseconds, that starts the
+     * data field of packets with the timestamp flag. Acknowledgements
+     * echo it after the receive window.
+     */
+    public static final int TIMESTAMP_FIELD_SIZE = 4;
+
+    /**
+     * Offset of the SACK bitmap in an acknowledgement
+     */
+    public static final int SACK_OFFSET = HEADER_SIZE + WINDOW_FIELD_SIZE +
+            TIMESTAMP_FIELD_SIZE;
+
+    /**
+     * Length in bytes of the CRC32C that ends packets with the CRC flag
+     */
+    public static final int CRC_FIELD_SIZE = 4;
+
+    /**
+     * Length in bytes of the packet size, in bytes, that starts the data
+     * field of a SYN and of the SYN-ACK answering it
+     */
+    public static final int PACKET_SIZE_FIELD_SIZE = 2;
+
+    /**
+     * Length in bytes of the file offset that follows the timestamp of
+     * data packets of VERSION or later
+     */
+    public static final int OFFSET_FIELD_SIZE = 8;
+
+    /**
+     * Byte ending the file name of a REQ that asks for byte ranges, as
+     * the file size and modification time they were listed against, a
+     * 2-byte count, and the start and end offset of each range
+     */
+    public static final int REQ_RANGES = 0;
+
+    /**
+     * Byte ending the file name of a REQ that asks for one stripe of the
+     * file, as the 2-byte stripe index and the 2-byte number of stripes
+     */
+    public static final int REQ_STRIPE = 1;
+
+    /**
+     * Length of a REQ_RANGES request before the ranges, counting the
+     * byte that ends the file name
+     */
+    public static final int REQ_RANGES_PREAMBLE = 1 + 8 + 8 + 2;
+
+    /**
+     * Byte ending the ';' separated names of a REQ that asks for several
+     * files at once, as the 2-byte index of the REQ and the 2-byte number
+     * of REQs the names are spread over. A name may be a glob or a
+     * directory, which stand for every file they match.
+     */
+    public static final int REQ_BATCH = 2;
+
+    /**
+     * Byte starting a REQ, with no file name, that asks for a page of
+     * the server's {@link Catalog}, as the 4-byte page index. The page
+     * comes back in a SYN-ACK laid out as the one answering the SYN.
+     */
+    public static final int REQ_LIST = 3;
+
+    /**
+     * Length of the options of a REQ_BATCH request, counting the byte
+     * that ends the names
+     */
+    public static final int REQ_BATCH_OPTIONS = 1 + 2 + 2;
+
+    /**
+     * Byte ending the file name of a REQ that asks for the differences
+     * from the client's copy of the file, as the 2-byte index of the REQ,
+     * the 2-byte number of REQs the signature is spread over, the 4-byte
+     * block size, the 8-byte size of the copy, the 4-byte index of the
+     * first block in this REQ, and the signature of each block, see
+     * {@link Delta}
+     */
+    public static final int REQ_DELTA = 4;
+
+    /**
+     * Length of the options of a REQ_DELTA request before the block
+     * signatures, counting the byte that ends the file name
+     */
+    public static final int REQ_DELTA_OPTIONS = 1 + 2 + 2 + 4 + 8 + 4;
+
+    /**
+     * Byte starting a REQ, with no file name, that asks for the SHA-256
+     * of the file sent once every packet of it has arrived, when the
+     * status packet did not carry it. It is answered by a status packet
+     * carrying the digest, bad if the server has none, or by a pending
+     * one while the server is still hashing the file.
+     */
+    public static final int REQ_DIGEST = 5;
+
+    /**
+     * Status telling the client that the server has the REQs up to the
+     * 2-byte count that follows and is still working on its answer, so
+     * the client waits for it instead of giving up
+     */
+    public static final int STATUS_PENDING = 1 << 6;
+
+    /**
+     * Length in bytes of the forward error correction a SYN asks for,
+     * after its packet size, and the SYN-ACK agrees on, after its own:
+     * the number of data packets in a group and the most parity packets
+     * sent for each group
+     */
+    public static final int FEC_FIELD_SIZE = 2;
+
+    /**
+     * Length in bytes of the compression codec a SYN asks for, after its
+     * forward error correction, and the SYN-ACK agrees on, see
+     * {@link Codecs}
+     */
+    public static final int CODEC_FIELD_SIZE = 1;
+
+    /**
+     * Length of the size, modification time and number of data packets
+     * of a file that start the data field of its framing packet, ahead
+     * of its name
+     */
+    public static final int FRAME_PREAMBLE = 8 + 8 + 8;
+
+    private ByteBuffer buf;
+
+    private CRC32C crc;
 
     public Header() {
-        data = new byte[HEADER_SIZE];
+        buf = ByteBuffer.allocate(HEADER_SIZE);
     }
 
     public Header(byte[] data) {
-        this.data = data;
+        buf = ByteBuffer.wrap(data);
     }
 
+    public Header(ByteBuffer packet) {
+        buf = packet;
+    }
+
+    /****************************************************************
+     * Points this header at another packet.
+     *
+     * @param packet buffer holding the packet from index 0 to its limit
+     * @return this header
+     ***************************************************************/
+    public Header wrap(ByteBuffer packet) {
+        buf = packet;
+        return this;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buf;
+    }
+
+    /****************************************************************
+     * Zeroes the header fields, for reusing a buffer.
+     ***************************************************************/
+    public void clear() {
+        buf.putLong(0, 0);
+    }
+
+    /****************************************************************
+     * Creates a REQ for a whole file.
+     *
+     * @param fileName name of the requested file
+     * @return the packet
+     ***************************************************************/
+    public static byte[] createRequestPacket(String fileName) {
+        return finishRequest(createRequest(fileName, -1, 0));
+    }
+
+    /****************************************************************
+     * Creates a REQ for byte ranges of a file. The server only sends
+     * the ranges if the file still has the given size and modification
+     * time, and the whole file otherwise.
+     *
+     * @param fileName name of the requested file
+     * @param fileSize size of the file when the ranges were listed
+     * @param modified modification time of the file then
+     * @param ranges start and end of each range, in pairs
+     * @return the packet
+     ***************************************************************/
+    public static byte[] createRequestPacket(String fileName, long fileSize,
+                                             long modified, long[] ranges) {
+        ByteBuffer req = createRequest(fileName, REQ_RANGES,
+                8 + 8 + 2 + ranges.length * 8);
+
+        req.putLong(fileSize);
+        req.putLong(modified);
+        req.putShort((short) (ranges.length / 2));
+
+        for (long offset : ranges) {
+            req.putLong(offset);
+        }
+
+        return finishRequest(req);
+    }
+
+    /****************************************************************
+     * Creates a REQ for one stripe of a file, the part
+     * {@link Ranges#split(long[], int, long)} assigns to it when the
+     * file is split into the given number of stripes.
+     *
+     * @param fileName name of the requested file
+     * @param stripe index of the stripe, from 0
+     * @param stripes number of stripes
+     * @return the packet
+     ***************************************************************/
+    public static byte[] createRequestPacket(String fileName, int stripe,
+                                             int stripes) {
+        ByteBuffer req = createRequest(fileName, REQ_STRIPE, 2 + 2);
+
+        req.putShort((short) stripe);
+        req.putShort((short) stripes);
+
+        return finishRequest(req);
+    }
+
+    /****************************************************************
+     * Creates the REQs for a batch of files, spreading the names over
+     * as many packets as it takes to keep each within the packet size.
+     * The server starts sending once it has every one of them.
+     *
+     * @param names ';' separated names, globs or directories
+     * @param packetSize largest size of a REQ
+     * @return the packets
+     ***************************************************************/
+    public static byte[][] createBatchRequestPackets(String names,
+                                                     int packetSize) {
+        int room = packetSize - HEADER_SIZE - REQ_BATCH_OPTIONS;
+
+        List<String> parts = new ArrayList<String>();
+        StringBuilder part = new StringBuilder();
+        int partLength = 0;
+
+        for (String name : names.split(";")) {
+            if (name.isEmpty()) continue;
+
+            int length = nameLength(name);
+
+            if (part.length() > 0 && partLength + 1 + length > room) {
+                parts.add(part.toString());
+                part.setLength(0);
+                partLength = 0;
+            }
+
+            if (part.length() > 0) {
+                part.append(';');
+                partLength++;
+            }
+
+            part.append(name);
+            partLength += length;
+        }
+
+        parts.add(part.toString());
+
+        byte[][] packets = new byte[parts.size()][];
+
+        for (int i = 0; i < packets.length; i++) {
+            ByteBuffer req = createRequest(parts.get(i), REQ_BATCH, 2 + 2);
+
+            req.putShort((short) i);
+            req.putShort((short) packets.length);
+
+            packets[i] = finishRequest(req);
+        }
+
+        return packets;
+    }
+
+    /****************************************************************
+     * Creates the REQs for the differences between a file and the
+     * client's copy of it, spreading the signature of the copy over as
+     * many packets as it takes to keep each within the packet size.
+     *
+     * @param fileName name of the requested file
+     * @param sig signature of the client's copy
+     * @param packetSize largest size of a REQ
+     * @return the packets, or null if the name leaves no room for
+     * signatures or they would take more REQs than can be numbered
+     ***************************************************************/
+    public static byte[][] createDeltaRequestPackets(String fileName,
+                                                     Delta.Signature sig,
+                                                     int packetSize) {
+        int perPacket = (packetSize - HEADER_SIZE - nameLength(fileName) -
+                REQ_DELTA_OPTIONS) / Delta.SIGNATURE_SIZE;
+
+        if (perPacket < 1) return null;
+
+        int numBlocks = sig.getNumBlocks();
+        int count = Math.max(1, (numBlocks + perPacket - 1) / perPacket);
+
+        if (count > 0xFFFF) return null;
+
+        byte[][] packets = new byte[count][];
+
+        for (int i = 0; i < count; i++) {
+            int first = i * perPacket;
+            int blocks = Math.min(perPacket, numBlocks - first);
+
+            ByteBuffer req = createRequest(fileName, REQ_DELTA,
+                    REQ_DELTA_OPTIONS - 1 + blocks * Delta.SIGNATURE_SIZE);
+
+            req.putShort((short) i);
+            req.putShort((short) count);
+            req.putInt(sig.getBlockSize());
+            req.putLong(sig.getFileSize());
+            req.putInt(first);
+
+            for (int j = first; j < first + blocks; j++) {
+                req.putInt(sig.getWeak(j));
+                req.putLong(sig.getStrong(j));
+            }
+
+            packets[i] = finishRequest(req);
+        }
+
+        return packets;
+    }
+
+    /****************************************************************
+     * Creates a REQ for a page of the server's catalog.
+     *
+     * @param page index of the page, from 0
+     * @return the packet
+     ***************************************************************/
+    public static byte[] createListRequestPacket(int page) {
+        ByteBuffer req = createRequest("", REQ_LIST, 4);
+
+        req.putInt(page);
+
+        return finishRequest(req);
+    }
+
+    /****************************************************************
+     * Creates a REQ for the digest of the file just received.
+     *
+     * @return the packet
+     ***************************************************************/
+    public static byte[] createDigestRequestPacket() {
+        return finishRequest(createRequest("", REQ_DIGEST, 0));
+    }
+
+    /****************************************************************
+     * Starts a REQ holding the file name, followed by the kind of
+     * options and room for them unless the kind is negative.
+     *
+     * @return buffer positioned at the options
+     ***************************************************************/
+    private static ByteBuffer createRequest(String fileName, int kind,
+                                            int optionsLen) {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        int len = HEADER_SIZE + name.length;
+
+        if (kind >= 0) len += 1 + optionsLen;
+
+        ByteBuffer req = ByteBuffer.allocate(len);
+
+        Header head = new Header(req);
+        head.setReqFlag(true);
+        head.setVersion(VERSION);
+
+        req.position(HEADER_SIZE);
+        req.put(name);
+
+        if (kind >= 0) req.put((byte) kind);
+
+        return req;
+    }
+
+    /**
+     * @return length of a file name in a packet, where names are UTF-8
+     */
+    public static int nameLength(String name) {
+        return name.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /****************************************************************
+     * Reads a UTF-8 file name out of part of a packet.
+     *
+     * @param packet buffer holding the name
+     * @param start index of the first byte of the name
+     * @param end index past its last byte
+     * @return the name
+     ***************************************************************/
+    public static String readName(ByteBuffer packet, int start, int end) {
+        byte[] name = new byte[end - start];
+
+        for (int i = 0; i < name.length; i++) {
+            name[i] = packet.get(start + i);
+        }
+
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] finishRequest(ByteBuffer req) {
+        req.clear();
+        new Header(req).setChecksum();
+
+        return req.array();
+    }
+
+    /****************************************************************
+     * Creates a status packet of the current version, answering a REQ
+     * with the number of packets that will be sent and the size and
+     * modification time of the file.
+     *
+     * @param good whether the requested file can be sent
+     * @param numPackets number of data packets
+     * @param numBytes size of the file
+     * @param modified modification time of the file in milliseconds
+     * @return the packet
+     ***************************************************************/
+    public static byte[] createStatusPacket(boolean good, long numPackets,
+                                            long numBytes, long modified) {
+        return createStatusPacket(good, numPackets, numBytes, modified,
+                null);
+    }
+
+    /****************************************************************
+     * Creates a status packet of the current version followed by the
+     * SHA-256 of the whole file, which the client checks the file it
+     * assembles against, see {@link FileDigest}. A digest the server is
+     * still working out when it starts sending is left out, and sent
+     * in answer to a {@link #REQ_DIGEST} instead.
+     *
+     * @param digest the digest, or null to leave it out
+     ***************************************************************/
+    public static byte[] createStatusPacket(boolean good, long numPackets,
+                                            long numBytes, long modified,
+                                            byte[] digest) {
+        final int dataLen = 25;
+        byte[] packet = new byte[HEADER_SIZE + dataLen +
+                (good && digest != null ? digest.length : 0)];
+
+        Header head = new Header(packet);
+        head.setAckFlag(true);
+        head.setReqFlag(true);
+        head.setVersion(VERSION);
+
+        ByteBuffer buf = head.getBuffer();
+        buf.put(HEADER_SIZE, (byte) ((good ? 1 : 0) << 7));
+
+        if (good) {
+            buf.putLong(HEADER_SIZE + 1, numPackets);
+            buf.putLong(HEADER_SIZE + 9, numBytes);
+            buf.putLong(HEADER_SIZE + 17, modified);
+
+            if (digest != null) {
+                System.arraycopy(digest, 0, packet, HEADER_SIZE + dataLen,
+                        digest.length);
+            }
+        }
+
+        head.setChecksum();
+
+        return packet;
+    }
+
+    /****************************************************************
+     * Creates a status packet telling the client to keep waiting for
+     * the answer to its REQs.
+     *
+     * @param received number of REQs the server has, counted from the
+     *                 first up to the first one missing
+     * @return the packet
+     ***************************************************************/
+    public static byte[] createPendingPacket(int received) {
+        byte[] packet = new byte[HEADER_SIZE + 1 + 2];
+
+        Header head = new Header(packet);
+        head.setAckFlag(true);
+        head.setReqFlag(true);
+        head.setVersion(VERSION);
+
+        ByteBuffer buf = head.getBuffer();
+        buf.put(HEADER_SIZE, (byte) STATUS_PENDING);
+        buf.putShort(HEADER_SIZE + 1, (short) received);
+
+        head.setChecksum();
+
+        return packet;
+    }
+
+    /****************************************************************
+     * Creates the status packet answering a batch of REQs, laid out as
+     * the one for a single file with the number of files in place of
+     * the modification time.
+     *
+     * @param good whether any of the requested files can be sent
+     * @param numPackets number of packets in the batch, framing packets
+     *                   included
+     * @param numBytes total size of the files
+     * @param numFiles number of files
+     * @return the packet
+     ***************************************************************/
+    public static byte[] createBatchStatusPacket(boolean good,
+                                                 long numPackets,
+                                                 long numBytes,
+                                                 long numFiles) {
+        return createStatusPacket(good, numPackets, numBytes, numFiles);
+    }
+
+    /****************************************************************
+     * Creates a LEGACY_VERSION status packet, whose sizes are 32-bit.
+     ***************************************************************/
     public static byte[] createStatusPacket(boolean good, int numPackets,
                                             int numBytes) {
 
@@ -53,106 +589,577 @@ public class Header {
     }
 
     public static int calculateChecksum(final byte[] data) {
-        byte[] buf = new byte[data.length];
-        System.arraycopy(data, 0, buf, 0, buf.length);
+        return calculateChecksum(data, 0, data.length);
+    }
+
+    /****************************************************************
+     * Calculates the checksum of a packet held in part of an array,
+     * without copying it. The checksum field itself is skipped.
+     *
+     * @param data array holding the packet
+     * @param offset index of the first byte of the packet
+     * @param length length of the packet
+     * @return the checksum
+     ***************************************************************/
+    public static int calculateChecksum(byte[] data, int offset,
+                                        int length) {
+        return calculateChecksum(ByteBuffer.wrap(data), offset, length);
+    }
+
+    /****************************************************************
+     * Calculates the checksum of the packet held in a buffer, from
+     * index 0 to its limit, without copying it.
+     *
+     * @param packet buffer holding the packet
+     * @return the checksum
+     ***************************************************************/
+    public static int calculateChecksum(ByteBuffer packet) {
+        return calculateChecksum(packet, 0, packet.limit());
+    }
 
-        buf[4] = 0;
-        buf[5] = 0;
+    /****************************************************************
+     * Calculates the checksum of a packet held in part of a buffer,
+     * without copying it. The checksum field itself is skipped.
+     *
+     * @param packet buffer holding the packet
+     * @param offset index of the first byte of the packet
+     * @param length length of the packet, at least HEADER_SIZE
+     * @return the checksum
+     ***************************************************************/
+    public static int calculateChecksum(ByteBuffer packet, int offset,
+                                        int length) {
+        long sum = sumWords(packet, offset, length, true);
+
+        long carryFix = ((sum & 0xFFFF) + (sum >>> 16));
+        return (int) ~carryFix & 0xFFFF;
+    }
+
+    /****************************************************************
+     * Adds up the big endian 16-bit words of part of a buffer, eight
+     * bytes at a time. The sum is exact, not folded, so sums of
+     * consecutive even length parts can be added together.
+     *
+     * @param buf buffer to sum
+     * @param offset index of the first byte, the start of a word
+     * @param length number of bytes, the last one padded with zero if
+     *               the length is odd
+     * @param skipChecksum whether bytes 4 and 5 from the offset hold the
+     *                     checksum field and count as zero
+     * @return sum of the words
+     ***************************************************************/
+    private static long sumWords(ByteBuffer buf, int offset, int length,
+                                 boolean skipChecksum) {
+        final long lanes = 0x0000FFFF0000FFFFL;
 
         long sum = 0;
+        long acc = 0;
+        int i = offset;
+        int end = offset + length;
+        int n = 0;
+
+        for (; i + 8 <= end; i += 8) {
+            long v = buf.getLong(i);
 
-        for (int i = 0; i < buf.length; i++) {
-            sum += (buf[i++] & 0xFF) << 8;
+            if (skipChecksum && i == offset) v &= 0xFFFFFFFF0000FFFFL;
 
-			/* Check for odd length */
-            if (i == buf.length) break;
+            /* Two lanes, each adding two words */
+            acc += ((v >>> 16) & lanes) + (v & lanes);
 
-            sum += (buf[i] & 0xFF);
+            /* Empty the lanes before they can overflow into each other */
+            if (++n == 16384) {
+                sum += (acc >>> 32) + (acc & 0xFFFFFFFFL);
+                acc = 0;
+                n = 0;
+            }
         }
 
-        long carryFix = ((sum & 0xFFFF) + (sum >>> 16));
-        return (int) ~carryFix & 0xFFFF;
+        sum += (acc >>> 32) + (acc & 0xFFFFFFFFL);
+
+        for (; i < end; i += 2) {
+
+            /* Checksum field of a packet shorter than a long */
+            if (skipChecksum && i == offset + 4) continue;
+
+            sum += (buf.get(i) & 0xFF) << 8;
+
+            /* Check for odd length */
+            if (i + 1 == end) break;
+
+            sum += (buf.get(i + 1) & 0xFF);
+        }
+
+        return sum;
+    }
+
+    /****************************************************************
+     * Appends a CRC32C of the packet, computed with the checksum field
+     * as zero, and sets the CRC flag. Must be called after every other
+     * field is set and before {@link #setChecksum()}.
+     ***************************************************************/
+    public void appendCrc() {
+        setCrcFlag(true);
+
+        int end = buf.limit();
+        buf.limit(end + CRC_FIELD_SIZE);
+        buf.putInt(end, computeCrc(end));
+    }
+
+    /****************************************************************
+     * Verifies the CRC32C ending a packet with the CRC flag.
+     *
+     * @return whether the CRC matches, always true without the flag
+     ***************************************************************/
+    public boolean checkCrc() {
+        if (!getCrcFlag()) return true;
+
+        if (buf.limit() < HEADER_SIZE + CRC_FIELD_SIZE) return false;
+
+        return getCrc() == calculateCrc();
+    }
+
+    /**
+     * @return CRC32C ending a packet with the CRC flag
+     */
+    public int getCrc() {
+        return buf.getInt(buf.limit() - CRC_FIELD_SIZE);
+    }
+
+    /**
+     * @return CRC32C of a packet with the CRC flag, computed over
+     * everything but its last CRC_FIELD_SIZE bytes
+     */
+    public int calculateCrc() {
+        return computeCrc(buf.limit() - CRC_FIELD_SIZE);
+    }
+
+    private int computeCrc(int end) {
+        if (crc == null) crc = new CRC32C();
+
+        crc.reset();
+
+        int position = buf.position();
+        int limit = buf.limit();
+
+        buf.limit(4).position(0);
+        crc.update(buf);
+
+        crc.update(0);
+        crc.update(0);
+
+        buf.limit(end).position(6);
+        crc.update(buf);
+
+        buf.limit(limit).position(position);
+
+        return (int) crc.getValue();
     }
 
     public boolean getSynFlag() {
         int x = (1 << 7);
-        return (data[6] & x) == x;
+        return (buf.get(6) & x) == x;
     }
 
     public void setSynFlag(boolean flag) {
         if (flag) {
-            data[6] |= 1 << 7;
+            buf.put(6, (byte) (buf.get(6) | 1 << 7));
         } else {
-            data[6] &= ~(1 << 7);
+            buf.put(6, (byte) (buf.get(6) & ~(1 << 7)));
         }
     }
 
     public boolean getAckFlag() {
         int x = (1 << 6);
-        return (data[6] & x) == x;
+        return (buf.get(6) & x) == x;
     }
 
     public void setAckFlag(boolean flag) {
         if (flag) {
-            data[6] |= 1 << 6;
+            buf.put(6, (byte) (buf.get(6) | 1 << 6));
         } else {
-            data[6] &= ~(1 << 6);
+            buf.put(6, (byte) (buf.get(6) & ~(1 << 6)));
         }
     }
 
     public boolean getReqFlag() {
         int x = (1 << 5);
-        return (data[6] & x) == x;
+        return (buf.get(6) & x) == x;
     }
 
     public void setReqFlag(boolean flag) {
         if (flag) {
-            data[6] |= 1 << 5;
+            buf.put(6, (byte) (buf.get(6) | 1 << 5));
         } else {
-            data[6] &= ~(1 << 5);
+            buf.put(6, (byte) (buf.get(6) & ~(1 << 5)));
         }
     }
 
-    public int getSequenceNum() {
-        return (int) (data[0] << 24 | data[1] << 16 | data[2] << 8
-                | data[3] & 0xFF);
+    /**
+     * Set on acknowledgements that carry a SACK bitmap
+     */
+    public boolean getSackFlag() {
+        int x = (1 << 4);
+        return (buf.get(6) & x) == x;
     }
 
-    public void setSequenceNum(int seqNum) {
-        byte[] converted = intToByteArr(4, seqNum);
+    public void setSackFlag(boolean flag) {
+        if (flag) {
+            buf.put(6, (byte) (buf.get(6) | 1 << 4));
+        } else {
+            buf.put(6, (byte) (buf.get(6) & ~(1 << 4)));
+        }
+    }
 
-        for (int i = 0; i < converted.length; i++) {
-            data[i] = converted[i];
+    /**
+     * Set on data packets whose data field starts with a timestamp
+     */
+    public boolean getTimestampFlag() {
+        int x = (1 << 3);
+        return (buf.get(6) & x) == x;
+    }
+
+    public void setTimestampFlag(boolean flag) {
+        if (flag) {
+            buf.put(6, (byte) (buf.get(6) | 1 << 3));
+        } else {
+            buf.put(6, (byte) (buf.get(6) & ~(1 << 3)));
         }
     }
 
+    /**
+     * Set on packets that end with a CRC32C. On a SYN it asks the
+     * server to add one to every data packet.
+     */
+    public boolean getCrcFlag() {
+        int x = (1 << 2);
+        return (buf.get(6) & x) == x;
+    }
+
+    public void setCrcFlag(boolean flag) {
+        if (flag) {
+            buf.put(6, (byte) (buf.get(6) | 1 << 2));
+        } else {
+            buf.put(6, (byte) (buf.get(6) & ~(1 << 2)));
+        }
+    }
+
+    /**
+     * Set on path MTU probes, padded to the size being probed, and on
+     * the server's echo of each probe
+     */
+    public boolean getProbeFlag() {
+        int x = (1 << 1);
+        return (buf.get(6) & x) == x;
+    }
+
+    public void setProbeFlag(boolean flag) {
+        if (flag) {
+            buf.put(6, (byte) (buf.get(6) | 1 << 1));
+        } else {
+            buf.put(6, (byte) (buf.get(6) & ~(1 << 1)));
+        }
+    }
+
+    /**
+     * Set on the packet of a batch that starts each file, carrying its
+     * size, modification time, number of data packets and name in
+     * place of file data. The file's data packets follow it.
+     */
+    public boolean getFileFlag() {
+        int x = 1;
+        return (buf.get(6) & x) == x;
+    }
+
+    public void setFileFlag(boolean flag) {
+        if (flag) {
+            buf.put(6, (byte) (buf.get(6) | 1));
+        } else {
+            buf.put(6, (byte) (buf.get(6) & ~1));
+        }
+    }
+
+    /**
+     * Set on the parity packets of forward error correction, which
+     * carry the XOR of a group of data packets, see {@link Fec}
+     */
+    public boolean getParityFlag() {
+        int x = (1 << 7);
+        return (buf.get(7) & x) == x;
+    }
+
+    public void setParityFlag(boolean flag) {
+        if (flag) {
+            buf.put(7, (byte) (buf.get(7) | 1 << 7));
+        } else {
+            buf.put(7, (byte) (buf.get(7) & ~(1 << 7)));
+        }
+    }
+
+    /**
+     * Set on data packets whose payload is compressed with the codec
+     * agreed on in the handshake
+     */
+    public boolean getCompressedFlag() {
+        int x = (1 << 6);
+        return (buf.get(7) & x) == x;
+    }
+
+    public void setCompressedFlag(boolean flag) {
+        if (flag) {
+            buf.put(7, (byte) (buf.get(7) | 1 << 6));
+        } else {
+            buf.put(7, (byte) (buf.get(7) & ~(1 << 6)));
+        }
+    }
+
+    /**
+     * @return format of the packet, LEGACY_VERSION if the version bits
+     * of byte 7 are zero
+     */
+    public int getVersion() {
+        int version = buf.get(7) & VERSION_MASK;
+        return version == 0 ? LEGACY_VERSION : version;
+    }
+
+    public void setVersion(int version) {
+        int bits = version == LEGACY_VERSION ? 0 : version;
+        buf.put(7, (byte) (buf.get(7) & ~VERSION_MASK | bits));
+    }
+
+    /****************************************************************
+     * Tells how far a 32-bit sequence number is past a reference one,
+     * in serial number arithmetic, so that comparisons keep working
+     * after sequence numbers wrap.
+     *
+     * @param seq sequence number from a packet
+     * @param reference full packet count it is compared to
+     * @return the packet count seq stands for, the one closest to the
+     * reference
+     ***************************************************************/
+    public static long unwrap(int seq, long reference) {
+        return reference + (seq - (int) reference);
+    }
+
+    public int getSequenceNum() {
+        return buf.getInt(0);
+    }
+
+    public void setSequenceNum(int seqNum) {
+        buf.putInt(0, seqNum);
+    }
+
     public int getChecksum() {
-        return (int) (data[4] << 8 | data[5] & 0xFF) & 0xFFFF;
+        return buf.getShort(4) & 0xFFFF;
     }
 
+    /****************************************************************
+     * Calculates the checksum over this header followed by the given
+     * data field and stores it, without concatenating the two.
+     *
+     * @param dataField data that will follow the header in the packet
+     ***************************************************************/
     public void setChecksum(byte[] dataField) {
-        int hLen = data.length;
-        int dLen = dataField.length;
+        long sum = sumWords(buf, 0, HEADER_SIZE, true) +
+                sumWords(ByteBuffer.wrap(dataField), 0, dataField.length,
+                        false);
 
-        byte[] checksumData = new byte[hLen + dLen];
-        System.arraycopy(data, 0, checksumData, 0, hLen);
-        System.arraycopy(dataField, 0, checksumData, hLen, dLen);
-
-        int checksum = calculateChecksum(checksumData);
+        long carryFix = ((sum & 0xFFFF) + (sum >>> 16));
+        buf.putShort(4, (short) (~carryFix & 0xFFFF));
+    }
 
-        data[4] = (byte) (checksum >>> 8);
-        data[5] = (byte) (checksum);
+    /****************************************************************
+     * Calculates the checksum over the whole packet and stores it.
+     ***************************************************************/
+    public void setChecksum() {
+        buf.putShort(4, (short) calculateChecksum(buf));
     }
 
+    /**
+     * @return the backing array of a header not built over a direct
+     * buffer
+     */
     public byte[] getBytes() {
-        return data;
+        return buf.array();
     }
 
-    public void setChecksum() {
-        int checksum = calculateChecksum(data);
+    /**
+     * @return offset of the file data in a data packet
+     */
+    public int getDataOffset() {
+        return getOffsetFieldStart() +
+                (getVersion() >= VERSION ? OFFSET_FIELD_SIZE : 0);
+    }
+
+    /**
+     * @return offset in the file of the payload of a data packet of
+     * VERSION or later
+     */
+    public long getFileOffset() {
+        return buf.getLong(getOffsetFieldStart());
+    }
+
+    public void setFileOffset(long offset) {
+        buf.putLong(getOffsetFieldStart(), offset);
+    }
+
+    private int getOffsetFieldStart() {
+        return getTimestampFlag() ? HEADER_SIZE + TIMESTAMP_FIELD_SIZE
+                : HEADER_SIZE;
+    }
+
+    /**
+     * @return offset just past the file data in a data packet
+     */
+    public int getDataEnd() {
+        return getCrcFlag() ? buf.limit() - CRC_FIELD_SIZE : buf.limit();
+    }
+
+    /**
+     * @return send time of a data packet with the timestamp flag
+     */
+    public int getTimestamp() {
+        return buf.getInt(HEADER_SIZE);
+    }
+
+    public void setTimestamp(int timestamp) {
+        buf.putInt(HEADER_SIZE, timestamp);
+    }
+
+    /****************************************************************
+     * Reads the largest packet size asked for by a SYN, or agreed on
+     * by a SYN-ACK.
+     *
+     * @return size in bytes, or -1 for a bare SYN that does not ask for
+     * one
+     ***************************************************************/
+    public int getPacketSize() {
+        if (buf.limit() < HEADER_SIZE + PACKET_SIZE_FIELD_SIZE) return -1;
+
+        return buf.getShort(HEADER_SIZE) & 0xFFFF;
+    }
+
+    public void setPacketSize(int size) {
+        buf.putShort(HEADER_SIZE, (short) size);
+    }
+
+    /****************************************************************
+     * Reads the number of data packets per forward error correction
+     * group asked for by a SYN, or agreed on by a SYN-ACK, after the
+     * packet size.
+     *
+     * @return number of packets, or -1 if the packet has no such field
+     ***************************************************************/
+    public int getFecGroup() {
+        int at = HEADER_SIZE + PACKET_SIZE_FIELD_SIZE;
+
+        if (buf.limit() < at + FEC_FIELD_SIZE) return -1;
+
+        return buf.get(at) & 0xFF;
+    }
+
+    /**
+     * @return most parity packets per group, or -1 if the packet has no
+     * such field
+     */
+    public int getFecParity() {
+        int at = HEADER_SIZE + PACKET_SIZE_FIELD_SIZE;
+
+        if (buf.limit() < at + FEC_FIELD_SIZE) return -1;
+
+        return buf.get(at + 1) & 0xFF;
+    }
+
+    public void setFec(int group, int parity) {
+        int at = HEADER_SIZE + PACKET_SIZE_FIELD_SIZE;
+
+        buf.put(at, (byte) group);
+        buf.put(at + 1, (byte) parity);
+    }
+
+    /****************************************************************
+     * Reads the compression codec asked for by a SYN, or agreed on by
+     * a SYN-ACK, after the forward error correction.
+     *
+     * @return identifier of the codec, or -1 if the packet has no such
+     * field
+     ***************************************************************/
+    public int getCodec() {
+        int at = HEADER_SIZE + PACKET_SIZE_FIELD_SIZE + FEC_FIELD_SIZE;
+
+        if (buf.limit() < at + CODEC_FIELD_SIZE) return -1;
+
+        return buf.get(at) & 0xFF;
+    }
+
+    public void setCodec(int codec) {
+        buf.put(HEADER_SIZE + PACKET_SIZE_FIELD_SIZE + FEC_FIELD_SIZE,
+                (byte) codec);
+    }
+
+    /****************************************************************
+     * Reads the receive window advertised by an acknowledgement.
+     *
+     * @return window in packets, or -1 for a bare acknowledgement that
+     * does not advertise one
+     ***************************************************************/
+    public int getAdvertisedWindow() {
+        if (buf.limit() < HEADER_SIZE + WINDOW_FIELD_SIZE) return -1;
+
+        return buf.getShort(HEADER_SIZE) & 0xFFFF;
+    }
+
+    public void setAdvertisedWindow(int window) {
+        buf.putShort(HEADER_SIZE, (short) window);
+    }
+
+    /****************************************************************
+     * Reads the timestamp echoed by an acknowledgement.
+     *
+     * @return the echoed timestamp, or 0 if there is none
+     ***************************************************************/
+    public int getEchoedTimestamp() {
+        if (buf.limit() < SACK_OFFSET) return 0;
+
+        return buf.getInt(HEADER_SIZE + WINDOW_FIELD_SIZE);
+    }
+
+    public void setEchoedTimestamp(int echo) {
+        buf.putInt(HEADER_SIZE + WINDOW_FIELD_SIZE, echo);
+    }
+
+    /**
+     * @return number of bits in the SACK bitmap of an acknowledgement
+     */
+    public int getSackLength() {
+        return Math.max(0, buf.limit() - SACK_OFFSET) * 8;
+    }
+
+    /****************************************************************
+     * Sizes the SACK bitmap of an acknowledgement, setting the limit
+     * of the buffer to the end of the bitmap and clearing it. Bit i
+     * (most significant bit first) of the bitmap tells the sender that
+     * packet getSequenceNum() + 2 + i was received out of order.
+     *
+     * @param numBits number of bits in the bitmap
+     ***************************************************************/
+    public void setSackLength(int numBits) {
+        int end = SACK_OFFSET + (numBits + 7) / 8;
+
+        buf.limit(end);
+
+        for (int i = SACK_OFFSET; i < end; i++) {
+            buf.put(i, (byte) 0);
+        }
+
+        setSackFlag(numBits > 0);
+    }
+
+    public boolean isSacked(int bit) {
+        return (buf.get(SACK_OFFSET + bit / 8) & (0x80 >>> bit % 8)) != 0;
+    }
 
-        data[4] = (byte) (checksum >>> 8);
-        data[5] = (byte) (checksum);
+    public void setSacked(int bit) {
+        int i = SACK_OFFSET + bit / 8;
+        buf.put(i, (byte) (buf.get(i) | 0x80 >>> bit % 8));
     }
 
     private byte[] intToByteArr(int numBytes, int toConvert) {
@@ -164,4 +1171,4 @@ public class Header {
 
         return data;
     }
-}
\ No newline at end of file
+}
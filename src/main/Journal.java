@@ -0,0 +1,209 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Sidecar record of the parts of a file already received, so that an
+ * interrupted transfer can ask the server for only what is missing.
+ * The file is split into blocks of BLOCK_SIZE bytes, and a block counts
+ * as received once every byte of it has been written. The journal also
+ * keeps the size and modification time the server reported, so a file
+ * that changed on the server is never resumed.
+ */
+public class Journal {
+
+    private static final int MAGIC = 0x55445047;
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * Magic, file size, modification time and block size
+     */
+    private static final int PREAMBLE_SIZE = 4 + 8 + 8 + 4;
+
+    private final File file;
+
+    private final long fileSize;
+
+    private final long modified;
+
+    private final int numBlocks;
+
+    private final BitSet received;
+
+    /**
+     * Bytes written to each block during this run
+     */
+    private final int[] counts;
+
+    public Journal(File file, long fileSize, long modified) {
+        this(file, fileSize, modified, new BitSet());
+    }
+
+    private Journal(File file, long fileSize, long modified,
+                    BitSet received) {
+        this.file = file;
+        this.fileSize = fileSize;
+        this.modified = modified;
+        this.received = received;
+
+        numBlocks = (int) ((fileSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        counts = new int[numBlocks];
+    }
+
+    /****************************************************************
+     * Reads the journal kept for a download.
+     *
+     * @param file the journal's file
+     * @return the journal, or null if there is none or it is unreadable
+     ***************************************************************/
+    public static Journal load(File file) {
+        if (!file.isFile()) return null;
+
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(
+                    file.toPath()));
+
+            if (buf.remaining() < PREAMBLE_SIZE || buf.getInt() != MAGIC) {
+                return null;
+            }
+
+            long fileSize = buf.getLong();
+            long modified = buf.getLong();
+
+            if (buf.getInt() != BLOCK_SIZE) return null;
+
+            return new Journal(file, fileSize, modified,
+                    BitSet.valueOf(buf));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /****************************************************************
+     * Writes the journal out, replacing the previous copy only once
+     * the new one is complete.
+     *
+     * @throws IOException
+     ***************************************************************/
+    public void save() throws IOException {
+        byte[] bits = received.toByteArray();
+
+        ByteBuffer buf = ByteBuffer.allocate(PREAMBLE_SIZE + bits.length);
+        buf.putInt(MAGIC);
+        buf.putLong(fileSize);
+        buf.putLong(modified);
+        buf.putInt(BLOCK_SIZE);
+        buf.put(bits);
+        buf.flip();
+
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try (FileChannel out = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            while (buf.hasRemaining()) out.write(buf);
+        }
+
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void delete() {
+        file.delete();
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    /****************************************************************
+     * Records bytes written to the file. Every byte must be recorded
+     * at most once per run.
+     *
+     * @param offset position of the first byte
+     * @param length number of bytes
+     ***************************************************************/
+    public void markWritten(long offset, int length) {
+        long end = offset + length;
+
+        for (long pos = offset; pos < end; ) {
+            int block = (int) (pos / BLOCK_SIZE);
+            long blockEnd = Math.min((long) (block + 1) * BLOCK_SIZE,
+                    fileSize);
+            long chunk = Math.min(end, blockEnd) - pos;
+
+            counts[block] += (int) chunk;
+
+            if (counts[block] == blockEnd - (long) block * BLOCK_SIZE) {
+                received.set(block);
+            }
+
+            pos += chunk;
+        }
+    }
+
+    /****************************************************************
+     * Lists the byte ranges still missing, merging the ranges closest
+     * together until no more than the given number are left. Merging
+     * asks for some received bytes again, which is harmless.
+     *
+     * @param maxRanges most ranges returned, at least 1
+     * @return start and end of each range, in pairs
+     ***************************************************************/
+    public long[] getMissingRanges(int maxRanges) {
+        List<long[]> ranges = new ArrayList<long[]>();
+
+        int block = received.nextClearBit(0);
+
+        while (block < numBlocks) {
+            int next = received.nextSetBit(block);
+
+            if (next < 0 || next > numBlocks) next = numBlocks;
+
+            ranges.add(new long[]{(long) block * BLOCK_SIZE,
+                    Math.min((long) next * BLOCK_SIZE, fileSize)});
+
+            block = received.nextClearBit(next);
+        }
+
+        while (ranges.size() > maxRanges) {
+            int closest = 0;
+
+            for (int i = 1; i < ranges.size() - 1; i++) {
+                long gap = ranges.get(i + 1)[0] - ranges.get(i)[1];
+
+                if (gap < ranges.get(closest + 1)[0] -
+                        ranges.get(closest)[1]) {
+                    closest = i;
+                }
+            }
+
+            ranges.get(closest)[1] = ranges.remove(closest + 1)[1];
+        }
+
+        long[] pairs = new long[ranges.size() * 2];
+
+        for (int i = 0; i < ranges.size(); i++) {
+            pairs[2 * i] = ranges.get(i)[0];
+            pairs[2 * i + 1] = ranges.get(i)[1];
+        }
+
+        return pairs;
+    }
+}
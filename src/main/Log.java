@@ -0,0 +1,230 @@
+package main;
+
+/**
+ * Logging for the client and the server. Lines are queued in a ring
+ * buffer and printed by a thread of its own, so that a slow terminal
+ * never holds up sending or receiving packets. Lines past the ring's
+ * size, or past udp.logRate lines per second, are dropped and counted.
+ *
+ * The level is set with the udp.log system property, one of error,
+ * warn, info, debug or trace. Every packet is logged at trace level, so
+ * callers check {@link #isEnabled(Level)} before building those lines.
+ */
+public final class Log {
+
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG, TRACE
+    }
+
+    /**
+     * Lines queued at most
+     */
+    private static final int RING_SIZE = 8192;
+
+    /**
+     * Most lines queued per second, set with the udp.logRate system
+     * property
+     */
+    private static final int RATE = Math.max(1,
+            Integer.getInteger("udp.logRate", 10000));
+
+    private static volatile Level level = parse(System.getProperty(
+            "udp.log", "info"));
+
+    private static final Object LOCK = new Object();
+
+    private static final String[] lines = new String[RING_SIZE];
+
+    private static final boolean[] errors = new boolean[RING_SIZE];
+
+    /**
+     * Lines queued and lines printed since the start, and lines dropped
+     * since the last report of them, guarded by LOCK
+     */
+    private static long queued;
+
+    private static long printed;
+
+    private static long dropped;
+
+    /**
+     * Lines that may still be queued this second, and when the second
+     * started in nanoseconds, guarded by LOCK
+     */
+    private static int allowance = RATE;
+
+    private static long second = System.nanoTime();
+
+    static {
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                print();
+            }
+        }, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    /****************************************************************
+     * @param name name of a level, ignoring case
+     * @return the level, or INFO for an unknown name
+     ***************************************************************/
+    public static Level parse(String name) {
+        for (Level l : Level.values()) {
+            if (l.name().equalsIgnoreCase(name)) return l;
+        }
+
+        return Level.INFO;
+    }
+
+    public static void setLevel(Level l) {
+        level = l;
+    }
+
+    /**
+     * @return whether lines at the given level are logged
+     */
+    public static boolean isEnabled(Level l) {
+        return l.ordinal() <= level.ordinal();
+    }
+
+    public static void error(String msg) {
+        log(Level.ERROR, msg);
+    }
+
+    public static void warn(String msg) {
+        log(Level.WARN, msg);
+    }
+
+    public static void info(String msg) {
+        log(Level.INFO, msg);
+    }
+
+    public static void debug(String msg) {
+        log(Level.DEBUG, msg);
+    }
+
+    public static void trace(String msg) {
+        log(Level.TRACE, msg);
+    }
+
+    /****************************************************************
+     * Queues a line, printed to standard error for errors and warnings
+     * and to standard output otherwise.
+     *
+     * @param l level of the line
+     * @param msg the line
+     ***************************************************************/
+    public static void log(Level l, String msg) {
+        if (!isEnabled(l)) return;
+
+        synchronized (LOCK) {
+            long now = System.nanoTime();
+
+            if (now - second >= 1000000000L) {
+                second = now;
+                allowance = RATE;
+            }
+
+            if (allowance == 0 || queued - printed == RING_SIZE) {
+                if (dropped++ == 0) LOCK.notifyAll();
+                return;
+            }
+
+            allowance--;
+
+            int slot = (int) (queued % RING_SIZE);
+            lines[slot] = msg;
+            errors[slot] = l.ordinal() <= Level.WARN.ordinal();
+
+            if (queued++ == printed) LOCK.notifyAll();
+        }
+    }
+
+    /****************************************************************
+     * Waits for every line queued so far to be printed, such as before
+     * prompting on the console.
+     ***************************************************************/
+    public static void flush() {
+        synchronized (LOCK) {
+            long target = queued;
+
+            /* Bounded, in case the writer is gone */
+            for (int i = 0; i < 50 && printed < target; i++) {
+                try {
+                    LOCK.wait(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /****************************************************************
+     * Prints queued lines as they come, a run of lines to the same
+     * stream at once.
+     ***************************************************************/
+    private static void print() {
+        StringBuilder run = new StringBuilder();
+        String[] batch = new String[RING_SIZE];
+        boolean[] toErr = new boolean[RING_SIZE];
+
+        while (true) {
+            int count;
+            long lost;
+
+            synchronized (LOCK) {
+                while (queued == printed && dropped == 0) {
+                    try {
+                        LOCK.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                count = (int) (queued - printed);
+
+                for (int i = 0; i < count; i++) {
+                    int slot = (int) ((printed + i) % RING_SIZE);
+                    batch[i] = lines[slot];
+                    toErr[i] = errors[slot];
+                    lines[slot] = null;
+                }
+
+                lost = dropped;
+                dropped = 0;
+            }
+
+            for (int i = 0; i < count; i++) {
+                run.append(batch[i]).append('\n');
+                batch[i] = null;
+
+                if (i + 1 == count || toErr[i + 1] != toErr[i]) {
+                    (toErr[i] ? System.err : System.out).print(run);
+                    run.setLength(0);
+                }
+            }
+
+            if (lost > 0) {
+                System.err.println("(" + lost + " log lines dropped)");
+            }
+
+            synchronized (LOCK) {
+                printed += count;
+                LOCK.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,552 @@
+package main;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Counters, gauges and histograms describing transfers, by name. The
+ * global registry holds totals for the whole process. Each session of
+ * the server has a child registry of its own, whose counters and
+ * histograms also add to the global ones of the same name.
+ *
+ * Every registry is a JMX MBean, with an attribute per counter and
+ * gauge and a few per histogram, and can be written out in the
+ * Prometheus text format, see {@link MetricsEndpoint}.
+ */
+public class Metrics implements DynamicMBean {
+
+    /**
+     * Prefix of every metric name in the text format
+     */
+    private static final String PREFIX = "udp_";
+
+    /**
+     * Domain of the registries' JMX names
+     */
+    private static final String DOMAIN = "main";
+
+    private static final Metrics GLOBAL = createGlobal();
+
+    /**
+     * Counter that may be added to from several threads at once
+     */
+    public static class Counter {
+
+        private final LongAdder value = new LongAdder();
+
+        private final Counter parent;
+
+        Counter(Counter parent) {
+            this.parent = parent;
+        }
+
+        public void increment() {
+            add(1);
+        }
+
+        public void add(long n) {
+            value.add(n);
+
+            if (parent != null) parent.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Value read when the metrics are read or written out
+     */
+    public interface Gauge {
+        long get();
+    }
+
+    /**
+     * Distribution of values, such as round trip times, in buckets whose
+     * width grows with the value so that every value is kept to within
+     * about 6%, in the way of an HDR histogram. Values are recorded
+     * without locking.
+     */
+    public static class Histogram {
+
+        /**
+         * Values below 2^SUB_BITS get a bucket each, every power of two
+         * above is split into 2^(SUB_BITS - 1) buckets
+         */
+        private static final int SUB_BITS = 5;
+
+        private static final int HALF = 1 << (SUB_BITS - 1);
+
+        private static final int BUCKETS = (1 << SUB_BITS) +
+                (63 - SUB_BITS) * HALF;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder sum = new LongAdder();
+
+        private final AtomicLong max = new AtomicLong();
+
+        private final Histogram parent;
+
+        Histogram(Histogram parent) {
+            this.parent = parent;
+        }
+
+        /**
+         * @param value value to record, negative values counting as 0
+         */
+        public void record(long value) {
+            value = Math.max(0, value);
+
+            counts.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+
+            for (long m = max.get(); value > m; m = max.get()) {
+                if (max.compareAndSet(m, value)) break;
+            }
+
+            if (parent != null) parent.record(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /****************************************************************
+         * @param quantile fraction of the values, from 0 to 1
+         * @return value that fraction of the values are at or below,
+         * to within the width of its bucket, or 0 if none were recorded
+         ***************************************************************/
+        public long getQuantile(double quantile) {
+            long total = 0;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                total += counts.get(i);
+            }
+
+            if (total == 0) return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+
+                if (seen >= rank) return Math.min(upper(i), max.get());
+            }
+
+            return max.get();
+        }
+
+        private static int index(long value) {
+            if (value < (1 << SUB_BITS)) return (int) value;
+
+            int shift = 63 - Long.numberOfLeadingZeros(value) -
+                    (SUB_BITS - 1);
+
+            return (1 << SUB_BITS) + (shift - 1) * HALF +
+                    (int) (value >>> shift) - HALF;
+        }
+
+        /**
+         * @return highest value of a bucket
+         */
+        private static long upper(int index) {
+            if (index < (1 << SUB_BITS)) return index;
+
+            int shift = (index - (1 << SUB_BITS)) / HALF + 1;
+            long sub = (index - (1 << SUB_BITS)) % HALF + HALF;
+
+            return ((sub + 1) << shift) - 1;
+        }
+    }
+
+    /**
+     * Metrics of the registry by name, each a Counter, Gauge or
+     * Histogram, and a line of help for each
+     */
+    private final ConcurrentSkipListMap<String, Object> metrics;
+
+    private final Map<String, String> help;
+
+    /**
+     * Registry the counters and histograms of this one add to, or null
+     */
+    private final Metrics parent;
+
+    /**
+     * Child registries by the label they are written out with
+     */
+    private final ConcurrentSkipListMap<String, Metrics> children;
+
+    /**
+     * Label of a child registry, or null
+     */
+    private final String label;
+
+    /**
+     * JMX name the registry is registered under, or null
+     */
+    private ObjectName name;
+
+    private Metrics(Metrics parent, String label) {
+        this.parent = parent;
+        this.label = label;
+
+        metrics = new ConcurrentSkipListMap<String, Object>();
+        help = new ConcurrentHashMap<String, String>();
+        children = new ConcurrentSkipListMap<String, Metrics>();
+    }
+
+    private static Metrics createGlobal() {
+        Metrics global = new Metrics(null, null);
+
+        try {
+            global.register(new ObjectName(DOMAIN + ":type=Metrics"));
+        } catch (JMException e) {
+            Log.debug("Metrics not registered with JMX: " + e.getMessage());
+        }
+
+        return global;
+    }
+
+    /**
+     * @return the registry of the whole process
+     */
+    public static Metrics global() {
+        return GLOBAL;
+    }
+
+    /****************************************************************
+     * Creates a child of the global registry, registered with JMX as a
+     * session and written out with a session label. It replaces any
+     * child with the same label.
+     *
+     * @param label identifies the session, such as its address
+     * @return the registry
+     ***************************************************************/
+    public static Metrics createSession(String label) {
+        Metrics session = new Metrics(GLOBAL, label);
+        Metrics old = GLOBAL.children.put(label, session);
+
+        if (old != null) old.unregister();
+
+        try {
+            session.register(new ObjectName(DOMAIN + ":type=Session,name=" +
+                    ObjectName.quote(label)));
+        } catch (JMException e) {
+            Log.debug("Session metrics not registered with JMX: " +
+                    e.getMessage());
+        }
+
+        return session;
+    }
+
+    /****************************************************************
+     * Drops a child registry from the global one and from JMX, unless
+     * it was already replaced. Its counts stay in the global totals.
+     ***************************************************************/
+    public void remove() {
+        if (label != null && GLOBAL.children.remove(label, this)) {
+            unregister();
+        }
+    }
+
+    private synchronized void unregister() {
+        if (name == null) return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            Log.debug(e.getMessage());
+        }
+
+        name = null;
+    }
+
+    private synchronized void register(ObjectName objectName)
+            throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                objectName);
+        name = objectName;
+    }
+
+    /****************************************************************
+     * @param metric name of the counter
+     * @param description line of help
+     * @return the counter of that name, created if there is none
+     ***************************************************************/
+    public Counter counter(String metric, String description) {
+        Object existing = metrics.get(metric);
+
+        if (existing != null) return (Counter) existing;
+
+        Counter created = new Counter(parent == null ? null :
+                parent.counter(metric, description));
+
+        help.put(metric, description);
+        existing = metrics.putIfAbsent(metric, created);
+
+        return existing != null ? (Counter) existing : created;
+    }
+
+    /****************************************************************
+     * @param metric name of the histogram
+     * @param description line of help
+     * @return the histogram of that name, created if there is none
+     ***************************************************************/
+    public Histogram histogram(String metric, String description) {
+        Object existing = metrics.get(metric);
+
+        if (existing != null) return (Histogram) existing;
+
+        Histogram created = new Histogram(parent == null ? null :
+                parent.histogram(metric, description));
+
+        help.put(metric, description);
+        existing = metrics.putIfAbsent(metric, created);
+
+        return existing != null ? (Histogram) existing : created;
+    }
+
+    /****************************************************************
+     * Adds a gauge, replacing any of the same name. Gauges do not add
+     * to the parent registry.
+     *
+     * @param metric name of the gauge
+     * @param description line of help
+     * @param gauge reads the value, from any thread
+     ***************************************************************/
+    public void gauge(String metric, String description, Gauge gauge) {
+        help.put(metric, description);
+        metrics.put(metric, gauge);
+    }
+
+    /****************************************************************
+     * Drops a gauge, unless it was already replaced by another of the
+     * same name, so that the registry no longer keeps what it reads
+     * from.
+     *
+     * @param metric name of the gauge
+     * @param gauge the gauge added under that name
+     ***************************************************************/
+    public void removeGauge(String metric, Gauge gauge) {
+        if (metrics.remove(metric, gauge)) help.remove(metric);
+    }
+
+    /****************************************************************
+     * Writes every metric of the global registry and its children in
+     * the Prometheus text format, the children's with a session label.
+     *
+     * @param out where the text goes
+     ***************************************************************/
+    public static void writeText(StringBuilder out) {
+        /* Every name, including gauges only sessions have, with the help
+         * and kind of its first metric */
+        Map<String, Object> kinds = new TreeMap<String, Object>();
+        Map<String, String> helps = new HashMap<String, String>();
+
+        for (Metrics child : GLOBAL.children.values()) {
+            kinds.putAll(child.metrics);
+            helps.putAll(child.help);
+        }
+
+        kinds.putAll(GLOBAL.metrics);
+        helps.putAll(GLOBAL.help);
+
+        for (Map.Entry<String, Object> e : kinds.entrySet()) {
+            String metric = PREFIX + e.getKey();
+            Object kind = e.getValue();
+
+            out.append("# HELP ").append(metric).append(' ')
+                    .append(helps.get(e.getKey())).append('\n');
+            out.append("# TYPE ").append(metric).append(' ')
+                    .append(kind instanceof Counter ? "counter" :
+                            kind instanceof Gauge ? "gauge" : "summary")
+                    .append('\n');
+
+            Object total = GLOBAL.metrics.get(e.getKey());
+
+            if (total != null) writeValue(out, metric, "", total);
+
+            for (Map.Entry<String, Metrics> child :
+                    GLOBAL.children.entrySet()) {
+                Object own = child.getValue().metrics.get(e.getKey());
+
+                if (own != null) {
+                    writeValue(out, metric, "session=\"" + child.getKey() +
+                            "\"", own);
+                }
+            }
+        }
+    }
+
+    private static void writeValue(StringBuilder out, String metric,
+                                   String labels, Object value) {
+        if (value instanceof Histogram) {
+            Histogram h = (Histogram) value;
+            String sep = labels.isEmpty() ? "" : ",";
+
+            for (double q : new double[]{0.5, 0.9, 0.99, 1}) {
+                out.append(metric).append("{").append(labels).append(sep)
+                        .append("quantile=\"").append(q).append("\"} ")
+                        .append(q == 1 ? h.getMax() : h.getQuantile(q))
+                        .append('\n');
+            }
+
+            writeLine(out, metric + "_sum", labels, h.getSum());
+            writeLine(out, metric + "_count", labels, h.getCount());
+        } else {
+            writeLine(out, metric, labels, read(value));
+        }
+    }
+
+    private static void writeLine(StringBuilder out, String metric,
+                                  String labels, long value) {
+        out.append(metric);
+
+        if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static long read(Object value) {
+        if (value instanceof Counter) return ((Counter) value).get();
+
+        return ((Gauge) value).get();
+    }
+
+    /**
+     * Suffixes of the JMX attributes of a histogram
+     */
+    private static final String[] HISTOGRAM_ATTRIBUTES = {
+            "_p50", "_p90", "_p99", "_max", "_count", "_mean"
+    };
+
+    @Override
+    public Object getAttribute(String attribute)
+            throws AttributeNotFoundException {
+        Object value = metrics.get(attribute);
+
+        if (value != null && !(value instanceof Histogram)) {
+            return read(value);
+        }
+
+        int split = attribute.lastIndexOf('_');
+
+        if (split > 0) {
+            Object h = metrics.get(attribute.substring(0, split));
+
+            if (h instanceof Histogram) {
+                Histogram hist = (Histogram) h;
+
+                switch (attribute.substring(split)) {
+                    case "_p50":
+                        return hist.getQuantile(0.5);
+                    case "_p90":
+                        return hist.getQuantile(0.9);
+                    case "_p99":
+                        return hist.getQuantile(0.99);
+                    case "_max":
+                        return hist.getMax();
+                    case "_count":
+                        return hist.getCount();
+                    case "_mean":
+                        return hist.getCount() == 0 ? 0L :
+                                hist.getSum() / hist.getCount();
+                    default:
+                        break;
+                }
+            }
+        }
+
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                /* Left out, as JMX expects */
+            }
+        }
+
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute)
+            throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params,
+                         String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes =
+                new ArrayList<MBeanAttributeInfo>();
+
+        for (Map.Entry<String, Object> e : metrics.entrySet()) {
+            String description = help.get(e.getKey());
+
+            if (e.getValue() instanceof Histogram) {
+                for (String suffix : HISTOGRAM_ATTRIBUTES) {
+                    attributes.add(new MBeanAttributeInfo(e.getKey() + suffix,
+                            "long", description, true, false, false));
+                }
+            } else {
+                attributes.add(new MBeanAttributeInfo(e.getKey(), "long",
+                        description, true, false, false));
+            }
+        }
+
+        return new MBeanInfo(getClass().getName(), "Transfer metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null,
+                null);
+    }
+}
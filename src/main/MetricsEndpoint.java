@@ -0,0 +1,72 @@
+package main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics in the Prometheus text format at /metrics, on the
+ * loopback interface only, for a local agent to scrape. Turned on by
+ * setting the udp.metricsPort system property.
+ */
+public class MetricsEndpoint {
+
+    private final HttpServer http;
+
+    /****************************************************************
+     * Starts serving on its own thread.
+     *
+     * @param port port on the loopback interface
+     * @throws IOException if the port cannot be bound
+     ***************************************************************/
+    public MetricsEndpoint(int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 0);
+
+        http.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StringBuilder text = new StringBuilder();
+                Metrics.writeText(text);
+
+                byte[] body = text.toString().getBytes(
+                        StandardCharsets.UTF_8);
+
+                exchange.getResponseHeaders().set("Content-Type",
+                        "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, body.length);
+
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+
+        http.setExecutor(Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "metrics-endpoint");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }));
+        http.start();
+
+        Log.info("Serving metrics on http://" +
+                InetAddress.getLoopbackAddress().getHostAddress() + ":" +
+                http.getAddress().getPort() + "/metrics");
+    }
+
+    public void stop() {
+        http.stop(0);
+    }
+}
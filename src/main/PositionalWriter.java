@@ -0,0 +1,460 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes payloads into a file at their own offsets on a separate I/O
+ * thread, so that packets can be placed as soon as they arrive, in any
+ * order, and disk latency never holds up acknowledgements. Payloads
+ * queued together are sorted and adjacent ones are coalesced into a
+ * single write.
+ *
+ * Payloads may be submitted from several threads. Their buffers go
+ * back to the pool they came from once written, which is also when the
+ * payloads are recorded in the journal. The I/O thread saves the
+ * journal every JOURNAL_INTERVAL milliseconds.
+ *
+ * A batch of files is written through the same thread by naming the
+ * file of each payload, and closing each file once its last payload is
+ * queued. Ranges of another file can also be copied in, for rebuilding
+ * a file out of an older copy of it.
+ *
+ * The writer keeps track of how much of its file is written from the
+ * start without a gap, for reading the file back in order while it is
+ * still being written.
+ */
+public class PositionalWriter implements Runnable {
+
+    /**
+     * Largest write the I/O thread builds out of adjacent payloads
+     */
+    private static final int COALESCE_SIZE = 1024 * 1024;
+
+    /**
+     * Time in milliseconds between saves of the journal
+     */
+    private static final int JOURNAL_INTERVAL = 1000;
+
+    private static class Write {
+        FileChannel channel;
+        ByteBuffer buf;
+        BufferPool pool;
+        long offset;
+        int length;
+
+        /**
+         * File copied from by a copy record, where it is copied from
+         * and how much
+         */
+        FileChannel source;
+        long sourceOffset;
+        long copyLength;
+    }
+
+    /**
+     * Marks the end of the queue. Records without a buffer or a source
+     * otherwise close their file.
+     */
+    private static final Write END = new Write();
+
+    private final FileChannel channel;
+
+    private final Journal journal;
+
+    private final BlockingQueue<Write> pending;
+
+    /**
+     * Write records not in use
+     */
+    private final ConcurrentLinkedQueue<Write> free;
+
+    private final Thread thread;
+
+    private volatile IOException failure;
+
+    /**
+     * Bytes of the file written from its start without a gap, and the
+     * runs written past them, by start and end
+     */
+    private long written;
+
+    private final TreeMap<Long, Long> ahead;
+
+    /****************************************************************
+     * Starts the I/O thread.
+     *
+     * @param channel file open for writing, already sized, or null if
+     *                every payload names its file
+     * @param capacity number of payloads queued at most, after which
+     *                 {@link #submit(ByteBuffer, BufferPool, long)} blocks
+     * @param journal journal of the file, or null
+     ***************************************************************/
+    public PositionalWriter(FileChannel channel, int capacity,
+                            Journal journal) {
+        this.channel = channel;
+        this.journal = journal;
+
+        pending = new ArrayBlockingQueue<Write>(capacity);
+        free = new ConcurrentLinkedQueue<Write>();
+        ahead = new TreeMap<Long, Long>();
+
+        thread = new Thread(this, "positional-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /****************************************************************
+     * Queues a payload to be written.
+     *
+     * @param buf buffer holding the payload between its position and
+     *            limit
+     * @param pool pool the buffer is released to once written
+     * @param offset position of the payload in the file
+     * @throws IOException if an earlier write failed
+     ***************************************************************/
+    public void submit(ByteBuffer buf, BufferPool pool, long offset)
+            throws IOException {
+        submit(buf, pool, channel, offset);
+    }
+
+    /****************************************************************
+     * Queues a payload to be written to a file other than the one the
+     * writer was created with.
+     *
+     * @param buf buffer holding the payload between its position and
+     *            limit
+     * @param pool pool the buffer is released to once written
+     * @param file file open for writing
+     * @param offset position of the payload in the file
+     * @throws IOException if an earlier write failed
+     ***************************************************************/
+    public void submit(ByteBuffer buf, BufferPool pool, FileChannel file,
+                       long offset) throws IOException {
+        Write write = free.poll();
+
+        if (write == null) write = new Write();
+
+        write.channel = file;
+        write.buf = buf;
+        write.pool = pool;
+        write.offset = offset;
+        write.length = buf.remaining();
+
+        queue(write);
+    }
+
+    /****************************************************************
+     * Queues a copy of a range of another file into the file, made
+     * after the payloads queued with it are written. The file must
+     * already be long enough to hold the range.
+     *
+     * @param source file open for reading, only read by the I/O thread
+     *               until the writer is closed
+     * @param sourceOffset start of the range in the source
+     * @param offset position of the range in the file
+     * @param length length of the range
+     * @throws IOException if an earlier write failed
+     ***************************************************************/
+    public void copy(FileChannel source, long sourceOffset, long offset,
+                     long length) throws IOException {
+        Write write = new Write();
+        write.channel = channel;
+        write.source = source;
+        write.sourceOffset = sourceOffset;
+        write.offset = offset;
+        write.copyLength = length;
+
+        queue(write);
+    }
+
+    /****************************************************************
+     * Counts ranges of the file that were already written before the
+     * writer was created, such as by an earlier attempt.
+     *
+     * @param ranges start and end of each range, in pairs
+     ***************************************************************/
+    public void markWritten(long[] ranges) {
+        for (int k = 0; k < ranges.length; k += 2) {
+            markWritten(ranges[k], ranges[k + 1]);
+        }
+    }
+
+    /****************************************************************
+     * Waits until more of the file is written from its start without a
+     * gap, or the time runs out.
+     *
+     * @param beyond bytes the caller already knows are written
+     * @param millis most time to wait in milliseconds
+     * @return bytes written from the start of the file without a gap
+     ***************************************************************/
+    public synchronized long awaitWritten(long beyond, long millis) {
+        if (written <= beyond) {
+            try {
+                wait(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return written;
+    }
+
+    private synchronized void markWritten(long start, long end) {
+        if (end <= start) return;
+
+        Map.Entry<Long, Long> before = ahead.floorEntry(start);
+
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+
+        if (start <= written) {
+            start = 0;
+            end = Math.max(end, written);
+        }
+
+        /* Absorbs the runs the new one reaches */
+        for (Map.Entry<Long, Long> next = ahead.ceilingEntry(start);
+             next != null && next.getKey() <= end;
+             next = ahead.ceilingEntry(start)) {
+            end = Math.max(end, next.getValue());
+            ahead.remove(next.getKey());
+        }
+
+        if (start == 0) {
+            written = end;
+            notifyAll();
+        } else {
+            ahead.put(start, end);
+        }
+    }
+
+    /****************************************************************
+     * Closes a file once every payload queued for it is written.
+     *
+     * @param file file open for writing
+     * @throws IOException if an earlier write failed
+     ***************************************************************/
+    public void closeWhenWritten(FileChannel file) throws IOException {
+        Write write = new Write();
+        write.channel = file;
+
+        queue(write);
+    }
+
+    private void queue(Write write) throws IOException {
+        if (failure != null) throw failure;
+
+        try {
+            pending.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing a write");
+        }
+    }
+
+    /****************************************************************
+     * Waits for every queued payload to be written, then closes the
+     * file. The journal is left to the caller.
+     *
+     * @throws IOException if any write failed
+     ***************************************************************/
+    public void close() throws IOException {
+        try {
+            pending.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (channel != null) channel.close();
+
+        if (failure != null) throw failure;
+    }
+
+    @Override
+    public void run() {
+        List<Write> batch = new ArrayList<Write>();
+        List<Write> closing = new ArrayList<Write>();
+        List<Write> copies = new ArrayList<Write>();
+        ByteBuffer staging = ByteBuffer.allocateDirect(COALESCE_SIZE);
+        boolean done = false;
+        long lastSaved = System.currentTimeMillis();
+
+        Comparator<Write> byOffset = new Comparator<Write>() {
+            @Override
+            public int compare(Write a, Write b) {
+                int byFile = Integer.compare(
+                        System.identityHashCode(a.channel),
+                        System.identityHashCode(b.channel));
+
+                return byFile != 0 ? byFile : Long.compare(a.offset,
+                        b.offset);
+            }
+        };
+
+        while (!done) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            pending.drainTo(batch);
+
+            if (batch.get(batch.size() - 1) == END) {
+                batch.remove(batch.size() - 1);
+                done = true;
+            }
+
+            /* Files are closed after the writes queued with them */
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                if (batch.get(i).source != null) {
+                    copies.add(batch.remove(i));
+                } else if (batch.get(i).buf == null) {
+                    closing.add(batch.remove(i));
+                }
+            }
+
+            batch.sort(byOffset);
+
+            try {
+                if (failure == null) writeBatch(batch, staging);
+
+                for (int i = copies.size() - 1; i >= 0; i--) {
+                    if (failure == null) copyRange(copies.get(i));
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            for (Write copy : copies) {
+                if (failure == null) {
+                    markWritten(copy.offset, copy.offset + copy.copyLength);
+                }
+            }
+
+            copies.clear();
+
+            for (Write write : closing) {
+                try {
+                    write.channel.close();
+                } catch (IOException e) {
+                    if (failure == null) failure = e;
+                }
+            }
+
+            closing.clear();
+
+            for (Write write : batch) {
+                if (failure == null && write.channel == channel) {
+                    if (journal != null) {
+                        journal.markWritten(write.offset, write.length);
+                    }
+
+                    markWritten(write.offset, write.offset + write.length);
+                }
+
+                write.pool.release(write.buf);
+                write.channel = null;
+                write.buf = null;
+                write.pool = null;
+                free.offer(write);
+            }
+
+            batch.clear();
+
+            long now = System.currentTimeMillis();
+
+            if (journal != null && failure == null &&
+                    now - lastSaved >= JOURNAL_INTERVAL) {
+                try {
+                    journal.save();
+                } catch (IOException e) {
+                    Log.warn("Could not save journal: " +
+                            e.getMessage());
+                }
+
+                lastSaved = now;
+            }
+        }
+    }
+
+    /****************************************************************
+     * Writes a batch sorted by file and offset, copying runs of
+     * adjacent payloads into the staging buffer to write them at once.
+     ***************************************************************/
+    private void writeBatch(List<Write> batch, ByteBuffer staging)
+            throws IOException {
+        int i = 0;
+
+        while (i < batch.size()) {
+            Write first = batch.get(i);
+            int length = first.length;
+            int j = i + 1;
+
+            while (j < batch.size() &&
+                    batch.get(j).channel == first.channel &&
+                    batch.get(j).offset == first.offset + length &&
+                    length + batch.get(j).length <= COALESCE_SIZE) {
+                length += batch.get(j).length;
+                j++;
+            }
+
+            if (j - i == 1) {
+                writeFully(first.channel, first.buf, first.offset);
+            } else {
+                staging.clear();
+
+                for (int k = i; k < j; k++) {
+                    staging.put(batch.get(k).buf);
+                }
+
+                staging.flip();
+                writeFully(first.channel, staging, first.offset);
+            }
+
+            i = j;
+        }
+    }
+
+    /****************************************************************
+     * Copies the range of a copy record into its file.
+     ***************************************************************/
+    private static void copyRange(Write copy) throws IOException {
+        long done = 0;
+
+        copy.source.position(copy.sourceOffset);
+
+        while (done < copy.copyLength) {
+            long n = copy.channel.transferFrom(copy.source,
+                    copy.offset + done, copy.copyLength - done);
+
+            if (n <= 0) {
+                throw new IOException("Source ended while copying from it");
+            }
+
+            done += n;
+        }
+    }
+
+    private static void writeFully(FileChannel file, ByteBuffer buf,
+                                   long offset) throws IOException {
+        long position = offset;
+
+        while (buf.hasRemaining()) {
+            position += file.write(buf, position);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package main;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports how far a download has come every udp.progressMs
+ * milliseconds, 1000 by default and 0 turning it off, rather than on
+ * every packet. Every connection of a download adds to the same count.
+ * A listener, if any, is told each time and once more at the end.
+ */
+public class Progress implements Runnable {
+
+    static final int INTERVAL = Integer.getInteger("udp.progressMs",
+            1000);
+
+    private final AtomicLong done;
+
+    private final long total;
+
+    private final ProgressListener listener;
+
+    private final Thread thread;
+
+    private long lastDone;
+
+    private long lastTime;
+
+    /****************************************************************
+     * Starts reporting.
+     *
+     * @param done bytes received so far
+     * @param total bytes expected
+     ***************************************************************/
+    public Progress(AtomicLong done, long total) {
+        this(done, total, null);
+    }
+
+    /****************************************************************
+     * Starts reporting, to a listener as well as the log.
+     *
+     * @param listener told of each report, or null
+     ***************************************************************/
+    public Progress(AtomicLong done, long total, ProgressListener listener) {
+        this.done = done;
+        this.total = total;
+        this.listener = listener;
+
+        lastDone = done.get();
+        lastTime = System.nanoTime();
+
+        if (INTERVAL <= 0) {
+            thread = null;
+            return;
+        }
+
+        thread = new Thread(this, "progress");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /****************************************************************
+     * Stops reporting, with a last report if any were made or there is
+     * a listener.
+     ***************************************************************/
+    public void stop() {
+        if (thread == null) {
+            if (listener != null) listener.onProgress(done.get(), total);
+            return;
+        }
+
+        thread.interrupt();
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean reported = false;
+
+        while (true) {
+            try {
+                Thread.sleep(INTERVAL);
+            } catch (InterruptedException e) {
+                if (reported || listener != null) report();
+                return;
+            }
+
+            report();
+            reported = true;
+        }
+    }
+
+    private void report() {
+        long now = System.nanoTime();
+        long bytes = done.get();
+
+        double percentage = total == 0 ? 100 : 100.0 * bytes / total;
+        double rate = (bytes - lastDone) * 1000.0 / Math.max(1,
+                now - lastTime);
+
+        Log.info(String.format("- Received %d of %d bytes \t%4.2f%%, " +
+                "%.2f MB/s", bytes, total, percentage, rate));
+
+        lastDone = bytes;
+        lastTime = now;
+
+        if (listener != null) listener.onProgress(bytes, total);
+    }
+}
@@ -0,0 +1,18 @@
+package main;
+
+/**
+ * Told how far a download has come, see
+ * {@link TransferClient#fetch(java.net.InetSocketAddress, String,
+ * java.io.File, ProgressListener)}.
+ */
+public interface ProgressListener {
+
+    /****************************************************************
+     * Called every udp.progressMs milliseconds while data arrives and
+     * once when the download ends, from a thread of the download.
+     *
+     * @param bytesReceived bytes of the file received so far
+     * @param bytesTotal bytes expected
+     ***************************************************************/
+    void onProgress(long bytesReceived, long bytesTotal);
+}
@@ -0,0 +1,114 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for lists of byte ranges of a file, held as flat arrays of
+ * start and end offsets in pairs, sorted and not overlapping.
+ */
+public final class Ranges {
+
+    private Ranges() {
+    }
+
+    /**
+     * @param ranges start and end of each range, in pairs
+     * @return number of bytes the ranges cover
+     */
+    public static long length(long[] ranges) {
+        long total = 0;
+
+        for (int i = 0; i < ranges.length; i += 2) {
+            total += ranges[i + 1] - ranges[i];
+        }
+
+        return total;
+    }
+
+    /**
+     * @param ranges start and end of each range, in pairs
+     * @param size size of the file
+     * @return the ranges of the file the given ranges leave out
+     */
+    public static long[] complement(long[] ranges, long size) {
+        List<Long> gaps = new ArrayList<Long>();
+        long pos = 0;
+
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > pos) {
+                gaps.add(pos);
+                gaps.add(ranges[i]);
+            }
+
+            pos = ranges[i + 1];
+        }
+
+        if (size > pos) {
+            gaps.add(pos);
+            gaps.add(size);
+        }
+
+        long[] complement = new long[gaps.size()];
+
+        for (int i = 0; i < complement.length; i++) {
+            complement[i] = gaps.get(i);
+        }
+
+        return complement;
+    }
+
+    /****************************************************************
+     * Splits ranges into parts covering about the same number of bytes,
+     * for downloading them over separate connections. Cuts inside a
+     * range are moved up to a multiple of the alignment, so parts of a
+     * small file may be empty. The server and the client both call this
+     * to agree on the parts without sending them.
+     *
+     * @param ranges start and end of each range, in pairs
+     * @param parts number of parts
+     * @param align alignment of the cuts in bytes
+     * @return the ranges of each part, in pairs
+     ***************************************************************/
+    public static long[][] split(long[] ranges, int parts, long align) {
+        long total = length(ranges);
+        long[][] split = new long[parts][];
+
+        int r = 0;
+        long pos = ranges.length > 0 ? ranges[0] : 0;
+        long done = 0;
+
+        for (int k = 0; k < parts; k++) {
+            long target = total * (k + 1) / parts;
+            List<Long> part = new ArrayList<Long>();
+
+            while (r < ranges.length / 2 && done < target) {
+                long end = ranges[2 * r + 1];
+                long cut = end;
+
+                if (done + end - pos > target) {
+                    cut = pos + target - done;
+                    cut = Math.min(end, (cut + align - 1) / align * align);
+                }
+
+                part.add(pos);
+                part.add(cut);
+
+                done += cut - pos;
+                pos = cut;
+
+                if (pos == end && ++r < ranges.length / 2) {
+                    pos = ranges[2 * r];
+                }
+            }
+
+            split[k] = new long[part.size()];
+
+            for (int i = 0; i < part.size(); i++) {
+                split[k][i] = part.get(i);
+            }
+        }
+
+        return split;
+    }
+}
@@ -0,0 +1,54 @@
+package main;
+
+/**
+ * AIMD congestion control in the style of TCP Reno. The window doubles
+ * every round trip during slow start, then grows by one packet per round
+ * trip, is halved on a loss and drops back to one packet on a timeout.
+ */
+public class RenoCongestionControl implements CongestionControl {
+
+    private static final int INITIAL_WINDOW = 10;
+
+    private static final int MIN_WINDOW = 2;
+
+    private final int maxWindow;
+
+    private double window;
+
+    private double ssthresh;
+
+    public RenoCongestionControl(int maxWindow) {
+        this.maxWindow = maxWindow;
+
+        window = Math.min(INITIAL_WINDOW, maxWindow);
+        ssthresh = maxWindow;
+    }
+
+    @Override
+    public int getWindow() {
+        return (int) window;
+    }
+
+    @Override
+    public void onAck(int numAcked) {
+        if (window < ssthresh) {
+            window += numAcked;
+        } else {
+            window += numAcked / window;
+        }
+
+        window = Math.min(window, maxWindow);
+    }
+
+    @Override
+    public void onLoss() {
+        ssthresh = Math.max(window / 2, MIN_WINDOW);
+        window = ssthresh;
+    }
+
+    @Override
+    public void onTimeout() {
+        ssthresh = Math.max(window / 2, MIN_WINDOW);
+        window = 1;
+    }
+}
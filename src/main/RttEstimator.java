@@ -0,0 +1,73 @@
+package main;
+
+/**
+ * Smoothed round trip time and retransmission timeout, computed as in
+ * RFC 6298. All times are in microseconds.
+ */
+public class RttEstimator {
+
+    private static final long INITIAL_TIMEOUT = 1000000;
+
+    /**
+     * Lower than the RFC's one second, so a loss on a LAN does not stall
+     * the transfer
+     */
+    private static final long MIN_TIMEOUT = 200000;
+
+    private static final long MAX_TIMEOUT = 60000000;
+
+    /**
+     * Clock granularity
+     */
+    private static final long GRANULARITY = 1000;
+
+    private long srtt;
+
+    private long rttvar;
+
+    private long timeout;
+
+    private boolean hasSample;
+
+    public RttEstimator() {
+        timeout = INITIAL_TIMEOUT;
+    }
+
+    /****************************************************************
+     * Updates the estimate with a new measurement and recomputes the
+     * timeout, undoing any backoff.
+     *
+     * @param rtt measured round trip time
+     ***************************************************************/
+    public void addSample(long rtt) {
+        if (!hasSample) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+            hasSample = true;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+
+        timeout = srtt + Math.max(GRANULARITY, 4 * rttvar);
+        timeout = Math.max(MIN_TIMEOUT, Math.min(timeout, MAX_TIMEOUT));
+    }
+
+    /****************************************************************
+     * Doubles the timeout after it expired.
+     ***************************************************************/
+    public void backoff() {
+        timeout = Math.min(timeout * 2, MAX_TIMEOUT);
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return smoothed round trip time, or 0 before the first sample
+     */
+    public long getSmoothedRtt() {
+        return srtt;
+    }
+}
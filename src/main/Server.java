@@ -3,47 +3,318 @@ package main;
 import java.io.File;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.stream.Stream;
 
 public class Server {
 
-    private final int MAX_PACKET_SIZE = 1024;
+    /**
+     * Packet size in bytes used with clients that do not ask for one
+     */
+    static final int DEFAULT_PACKET_SIZE = 1024;
+
+    /**
+     * Bounds of the packet size a client may ask for. The largest is
+     * the most a UDP datagram can carry over IPv4.
+     */
+    static final int MIN_PACKET_SIZE = 512;
+
+    static final int MAX_PACKET_SIZE = 65507;
+
+    /**
+     * Window in packets assumed for clients that do not advertise one
+     */
+    static final int SEND_WINDOW = 5;
+
+    /**
+     * Largest number of packets a session may have in flight
+     */
+    static final int MAX_WINDOW = 4096;
+
+    /**
+     * Size in bytes asked for the socket's send buffer, room for a few
+     * full windows of packets
+     */
+    private static final int SEND_BUFFER = 4 * 1024 * 1024;
+
+    /**
+     * Directory the files are served from, ending in '/'
+     */
+    private final String PATH;
+
+    /**
+     * Time in milliseconds without hearing from a client, per attempt,
+     * before its session is dropped
+     */
+    static final int TIMEOUT = 4000;
+
+    /**
+     * Resolution in microseconds of session timers
+     */
+    private final int TICK = 1000;
+
+    /**
+     * Listing of the served directory, sent in the SYN-ACK
+     */
+    private Catalog catalog;
+
+    /**
+     * Blocks of the served files, shared by every session, and its size
+     * in megabytes, 0 turning it off
+     */
+    private BlockCache blockCache;
+
+    private final int cacheMb;
+
+    /**
+     * Most files whose digest is kept
+     */
+    private static final int DIGESTS = 1024;
+
+    /**
+     * SHA-256 of recently requested files, by version of the file, least
+     * recently used first
+     */
+    private Map<BlockCache.FileId, byte[]> digests;
+
+    /**
+     * Sessions waiting for the digest of each file being hashed, so that
+     * a file is hashed once however many sessions send it
+     */
+    private Map<BlockCache.FileId, List<Session>> hashing;
+
+    /**
+     * Most differences kept
+     */
+    private static final int DELTAS = 16;
+
+    /**
+     * Differences recently worked out, by version of the file and
+     * signature of the client's copy, least recently used first
+     */
+    private Map<DeltaKey, Delta> deltas;
 
-    private final int SEND_WINDOW = 5;
+    private int serverPort;
 
-    private final String PATH = "files/";
+    private DatagramChannel channel;
 
-    private final int TIMEOUT = 4000;
+    private Selector selector;
 
-    private String files;
+    private SelectionKey channelKey;
 
-    private int serverPort;
+    /**
+     * Whether the socket's send buffer was found full, so that sessions
+     * hold off sending until the selector reports room again
+     */
+    private boolean writeBlocked;
+
+    private TimerWheel timers;
+
+    /**
+     * Direct buffers reused for every packet received and every data
+     * packet sent, along with a header view over the received packet
+     */
+    private ByteBuffer recvBuffer;
+
+    private ByteBuffer sendBuffer;
+
+    private Header recvHead;
+
+    /**
+     * Sessions of all connected clients, keyed by address and port,
+     * concurrent only so that their number can be read from any thread
+     */
+    private Map<InetSocketAddress, Session> sessions;
+
+    /**
+     * Threads for work too slow for the event loop, one per processor so
+     * that one session's work does not hold up another's, and the work
+     * they have finished, handed back to the event loop
+     */
+    private ExecutorService worker;
+
+    private ConcurrentLinkedQueue<Runnable> finished;
+
+    /**
+     * Packets dropped for a bad checksum
+     */
+    private Metrics.Counter checksumFailures;
+
+    /**
+     * Gauges of the server in the global registry, by name, removed once
+     * it stops so that the registry does not keep it
+     */
+    private Map<String, Metrics.Gauge> gauges;
+
+    /**
+     * Local HTTP endpoint serving the metrics, started when a port is
+     * set for it, or null
+     */
+    private MetricsEndpoint metricsEndpoint;
+
+    private final int metricsPort;
+
+    /**
+     * Set to make the event loop return
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Settings of a server, starting from the udp.* system properties,
+     * for starting one without prompting, such as inside another
+     * program:
+     *
+     * <pre>
+     * Server server = new Server.Builder().port(9000).root("files")
+     *         .build();
+     * server.start();
+     * </pre>
+     */
+    public static class Builder {
 
-    private DatagramSocket serverSocket;
+        private int port;
 
-    private InetAddress clientAddr;
+        private String root = "files/";
 
-    private int clientPort;
+        private int cacheMb = Integer.getInteger("udp.cacheMb", 64);
 
-    private String requestedFile;
+        private int metricsPort = Integer.getInteger("udp.metricsPort", -1);
 
+        /**
+         * @param port port to serve on, 0 for any free one
+         */
+        public Builder port(int port) {
+            if (port < 0 || port > 65535) {
+                throw new IllegalArgumentException("Invalid port " + port);
+            }
+
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * @param dir directory the files are served from
+         */
+        public Builder root(String dir) {
+            root = dir.endsWith("/") ? dir : dir + "/";
+            return this;
+        }
+
+        /**
+         * @param mb size of the block cache in megabytes, 0 for none
+         */
+        public Builder cacheMb(int mb) {
+            if (mb < 0) throw new IllegalArgumentException("Negative size");
+
+            cacheMb = mb;
+            return this;
+        }
+
+        /**
+         * @param port loopback port to serve the metrics on, -1 for none
+         */
+        public Builder metricsPort(int port) {
+            metricsPort = port;
+            return this;
+        }
+
+        /****************************************************************
+         * @return a server bound to its port, not yet running
+         * @throws SocketException if the port cannot be bound
+         ***************************************************************/
+        public Server build() throws SocketException {
+            return new Server(this);
+        }
+    }
+
+    /****************************************************************
+     * Prompts for the port and serves the files/ directory.
+     ***************************************************************/
     public Server() throws SocketException {
-        files = "";
+        this(promptingBuilder());
+    }
+
+    private static Builder promptingBuilder() {
+        Builder b = new Builder();
+        b.port = -1;
+
+        return b;
+    }
+
+    private Server(Builder b) throws SocketException {
+        PATH = b.root;
+        serverPort = b.port;
+        cacheMb = b.cacheMb;
+        metricsPort = b.metricsPort;
+
+        sessions = new ConcurrentHashMap<InetSocketAddress, Session>();
+        finished = new ConcurrentLinkedQueue<Runnable>();
+        hashing = new HashMap<BlockCache.FileId, List<Session>>();
+        digests = new LinkedHashMap<BlockCache.FileId, byte[]>(16, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<BlockCache.FileId, byte[]> eldest) {
+                return size() > DIGESTS;
+            }
+        };
+        deltas = new LinkedHashMap<DeltaKey, Delta>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<DeltaKey, Delta> eldest) {
+                return size() > DELTAS;
+            }
+        };
+
+        if (serverPort < 0) promptUser();
 
-        promptUser();
         initializeServer();
     }
 
+    /****************************************************************
+     * Prompts for the port when run without arguments, otherwise takes
+     * the settings from the arguments, see {@link #USAGE}.
+     ***************************************************************/
     public static void main(String[] args) {
         Server s = null;
 
         try {
-            s = new Server();
-        } catch (SocketException e) {
+            s = args.length == 0 ? new Server() : parseArgs(args).build();
+        } catch (IllegalArgumentException e) {
             System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+        } catch (SocketException e) {
+            Log.error(e.getMessage());
+            Log.flush();
             System.exit(1);
         }
 
@@ -54,6 +325,57 @@ public class Server {
         }
     }
 
+    static final String USAGE = "Usage: Server --port n [options]\n" +
+            "  --port n            port to serve on\n" +
+            "  --root path         directory to serve, files/ by default\n" +
+            "  --cache-mb n        size of the block cache, 0 for none\n" +
+            "  --metrics-port n    loopback port to serve metrics on\n" +
+            "Options not given come from the udp.* system properties.\n";
+
+    /****************************************************************
+     * @param args flags and their values, see {@link #USAGE}
+     * @return settings of the server
+     * @throws IllegalArgumentException for bad arguments
+     ***************************************************************/
+    private static Builder parseArgs(String[] args) {
+        Builder b = new Builder();
+        boolean portSet = false;
+
+        for (int i = 0; i < args.length; i += 2) {
+            String flag = args[i];
+
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " +
+                        flag);
+            }
+
+            String value = args[i + 1];
+
+            switch (flag) {
+                case "--port":
+                    b.port(Client.parseNumber(flag, value));
+                    portSet = true;
+                    break;
+                case "--root":
+                    b.root(value);
+                    break;
+                case "--cache-mb":
+                    b.cacheMb(Client.parseNumber(flag, value));
+                    break;
+                case "--metrics-port":
+                    b.metricsPort(Client.parseNumber(flag, value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " +
+                            flag);
+            }
+        }
+
+        if (!portSet) throw new IllegalArgumentException("--port is required");
+
+        return b;
+    }
+
     private void promptUser() {
         Scanner scan = new Scanner(System.in);
         System.out.print("Please specify a port number: ");
@@ -70,297 +392,701 @@ public class Server {
 
     private void initializeServer() throws SocketException {
         try {
-            serverSocket = new DatagramSocket(serverPort);
-            serverSocket.setSoTimeout(TIMEOUT);
-        } catch (SocketException e) {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER);
+            channel.bind(new InetSocketAddress(serverPort));
+
+            selector = Selector.open();
+            channelKey = channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
             String message = "Problem hosting server on port ";
             message += serverPort;
             message += "\nIs there another instance of this server?";
             throw new SocketException(message);
         }
 
-        String msg = "Server started on port " + serverPort;
-        System.out.println(msg);
-    }
+        timers = new TimerWheel(TICK, 4096, Session.now());
 
-    private void getAvailFiles() {
-        File folder = new File(PATH);
-        File[] fileArr = folder.listFiles();
+        recvBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        sendBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        recvHead = new Header(recvBuffer);
 
-        files = "";
+        worker = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    private int count;
 
-        if (fileArr == null) return;
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "server-worker-" + ++count);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
 
-        for (int i = 0; i < fileArr.length; i++) {
+        catalog = new Catalog(PATH);
+        blockCache = new BlockCache(cacheMb * 1024L * 1024L);
 
-            if (fileArr[i].isFile()) {
-                files += fileArr[i].getName() + ";";
-            }
-        }
+        registerMetrics();
+
+        String msg = "Server started on port " + getPort();
+        Log.info(msg);
     }
 
-    private DatagramPacket receive() throws SocketTimeoutException,
-            BadChecksumException {
-        byte[] buf = new byte[MAX_PACKET_SIZE];
+    /****************************************************************
+     * Adds the server's own metrics to the global registry, and serves
+     * them over HTTP if asked to.
+     ***************************************************************/
+    private void registerMetrics() {
+        Metrics metrics = Metrics.global();
+
+        checksumFailures = metrics.counter("checksum_failures_total",
+                "Packets dropped for a bad checksum");
+
+        gauges = new LinkedHashMap<String, Metrics.Gauge>();
 
-        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        addGauge("sessions", "Sessions open", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return sessions.size();
+            }
+        });
+        addGauge("block_cache_hits", "Reads served by the block cache",
+                new Metrics.Gauge() {
+                    @Override
+                    public long get() {
+                        return blockCache.getHits();
+                    }
+                });
+        addGauge("block_cache_misses", "Reads that went to the file",
+                new Metrics.Gauge() {
+                    @Override
+                    public long get() {
+                        return blockCache.getMisses();
+                    }
+                });
+        addGauge("block_cache_evictions", "Blocks evicted from the " +
+                "block cache", new Metrics.Gauge() {
+                    @Override
+                    public long get() {
+                        return blockCache.getEvictions();
+                    }
+                });
+        addGauge("block_cache_bytes", "Bytes held by the block cache",
+                new Metrics.Gauge() {
+                    @Override
+                    public long get() {
+                        return blockCache.getSize();
+                    }
+                });
+
+        if (metricsPort < 0) return;
 
         try {
-            serverSocket.receive(packet);
-        } catch (SocketTimeoutException se) {
-            throw se;
+            metricsEndpoint = new MetricsEndpoint(metricsPort);
         } catch (IOException e) {
-            System.err.println(e.getMessage());
-            return null;
+            Log.error("Could not serve metrics on port " + metricsPort + ": " +
+                    e.getMessage());
         }
+    }
 
-        int expected = Header.calculateChecksum(buf);
-        int received = new Header(buf).getChecksum();
+    /****************************************************************
+     * Adds a gauge of the server to the global registry.
+     ***************************************************************/
+    private void addGauge(String metric, String description,
+                          Metrics.Gauge gauge) {
+        Metrics.global().gauge(metric, description, gauge);
+        gauges.put(metric, gauge);
+    }
 
-        if (expected != received)
-            throw new BadChecksumException(expected, received);
+    /****************************************************************
+     * Reads every packet waiting on the channel and hands each one to
+     * the session of the client that sent it.
+     *
+     * @throws IOException
+     ***************************************************************/
+    private void receiveAll() throws IOException {
+        while (true) {
+            recvBuffer.clear();
 
-        return packet;
-    }
+            SocketAddress from = channel.receive(recvBuffer);
 
-    private void establishConnection() {
-        DatagramPacket recvPacket = null;
+            if (from == null) return;
 
-        do {
-            try {
-                recvPacket = receive();
-            } catch (SocketTimeoutException e) {
-                continue;
-            } catch (BadChecksumException bc) {
-                System.err.println(bc.getMessage());
+            recvBuffer.flip();
+            recvHead.wrap(recvBuffer);
+
+            int expected = Header.calculateChecksum(recvBuffer);
+            int received = recvHead.getChecksum();
+
+            if (expected != received) {
+                BadChecksumException bc =
+                        new BadChecksumException(expected, received);
+                Log.warn(bc.getMessage());
+                checksumFailures.increment();
                 continue;
             }
-        } while (recvPacket == null);
 
-        byte[] data = recvPacket.getData();
-        Header head = new Header(data);
+            dispatch(recvHead, (InetSocketAddress) from);
+        }
+    }
+
+    /****************************************************************
+     * Hands a received packet to the session of the client that sent
+     * it. A SYN always starts a new session for that address and port.
+     *
+     * @param head view over the packet received from a client
+     * @param from address and port of the client
+     * @throws IOException
+     ***************************************************************/
+    private void dispatch(Header head, InetSocketAddress from)
+            throws IOException {
+        if (head.getProbeFlag()) {
+            answerProbe(head, from);
+            return;
+        }
+
+        if (head.getSynFlag() && !head.getReqFlag() && !head.getAckFlag()) {
+            Session session = new Session(this, from);
+            Session old = sessions.put(from, session);
 
-		/* If received non SYN packet, retry */
-        if (!head.getSynFlag() || head.getReqFlag() || head.getAckFlag()) {
+            if (old != null) old.close();
 
-            System.err.println("Received unexpected packet");
-            establishConnection();
+            session.accept(head, catalog);
+            return;
         }
 
-        clientAddr = recvPacket.getAddress();
-        clientPort = recvPacket.getPort();
+        Session session = sessions.get(from);
 
-        System.out.println("Received SYN packet from " +
-                clientAddr.getHostAddress() + " " + " on port " + clientPort);
+        if (session == null) {
+            Log.debug("Received unexpected packet");
+            return;
+        }
 
-        getAvailFiles();
+        session.handle(head);
 
-        Header ackHead = new Header();
-        ackHead.setAckFlag(true);
-        ackHead.setSynFlag(true);
-        ackHead.setChecksum(files.getBytes());
+        if (session.isDone()) sessions.remove(from);
+    }
 
-        byte[] headData = ackHead.getBytes();
+    /****************************************************************
+     * Echoes a path MTU probe back to the client at the size it was
+     * received, so that the probe only succeeds if that size gets
+     * through in both directions. No session is needed, and since the
+     * echo is never larger than the probe it cannot amplify traffic.
+     *
+     * @param head view over the probe
+     * @param from address and port of the client
+     * @throws IOException
+     ***************************************************************/
+    private void answerProbe(Header head, InetSocketAddress from)
+            throws IOException {
+        if (head.getAckFlag()) return;
 
-        int ackPackLen = headData.length + files.length();
+        ByteBuffer probe = head.getBuffer();
+        probe.position(0);
 
-        byte[] packData = new byte[ackPackLen];
+        head.setAckFlag(true);
+        head.setChecksum();
 
-		/* Populate ACK data array with header data */
-        for (int i = 0; i < headData.length; i++) {
-            packData[i] = headData[i];
-        }
+        send(probe, from);
+        Log.debug("Answered " + probe.limit() + " byte probe");
+    }
 
-		/* Populate ACK data array with list of files */
-        for (int i = 0; i < files.length(); i++) {
-            packData[i + headData.length] = (byte) files.charAt(i);
-        }
+    /****************************************************************
+     * Schedules a session's timer.
+     *
+     * @param session the session
+     * @param when time in microseconds
+     ***************************************************************/
+    void schedule(Session session, long when) {
+        timers.schedule(session, when);
+    }
+
+    /****************************************************************
+     * Runs a task on a worker thread, then the rest of the work on the
+     * event loop once it is done. The session is dropped if that ends
+     * it.
+     *
+     * @param session session the work is for
+     * @param task work that may block or take long, touching nothing
+     *             the event loop uses
+     * @param then work to do on the event loop afterwards
+     ***************************************************************/
+    void execute(final Session session, final Runnable task,
+                 final Runnable then) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    finished.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            then.run();
+
+                            if (session.isDone()) {
+                                sessions.remove(session.getClient(),
+                                        session);
+                            }
+                        }
+                    });
+
+                    selector.wakeup();
+                }
+            }
+        });
+    }
+
+    /****************************************************************
+     * Creates the congestion controller of a new session.
+     *
+     * @return congestion controller limited to MAX_WINDOW packets
+     ***************************************************************/
+    CongestionControl createCongestionControl() {
+        return new RenoCongestionControl(MAX_WINDOW);
+    }
+
+    /****************************************************************
+     * Opens a file in the served directory for positional reads, so
+     * that packets can be read on demand instead of loading the whole
+     * file onto the heap.
+     *
+     * @param path name of the requested file
+     * @return channel open for reading
+     * @throws IOException if the file does not exist or is unreadable
+     ***************************************************************/
+    FileChannel openFile(String path) throws IOException {
+        Path p = resolve(path);
+        return FileChannel.open(p, StandardOpenOption.READ);
+    }
+
+    /****************************************************************
+     * Finds a file named in a REQ, which must lie under the served
+     * directory however the name is written.
+     *
+     * @param path name of the file relative to the served directory
+     * @return the file's absolute path
+     * @throws NoSuchFileException if the name leads outside the served
+     *                             directory or is not a valid path
+     ***************************************************************/
+    private Path resolve(String path) throws IOException {
+        Path root = Paths.get(PATH).toAbsolutePath().normalize();
+        Path p;
 
-		/* Send ACK header to client */
         try {
-            send(packData);
-            System.out.println("Sent ACK to client");
-        } catch (IOException e) {
-            establishConnection();
+            p = root.resolve(path).normalize();
+        } catch (InvalidPathException e) {
+            throw new NoSuchFileException(path);
+        }
+
+        if (!p.startsWith(root) || p.equals(root)) {
+            throw new NoSuchFileException(path);
         }
 
-        DatagramPacket reqPack = null;
+        return p;
+    }
+
+    /****************************************************************
+     * Lists the files a batch REQ asks for. Each ';' separated name is
+     * either a glob, matched against the path of every file under the
+     * served directory, a directory, standing for every file under it,
+     * or the name of a file. Names reaching outside the served
+     * directory, and names or globs that are not valid here, match
+     * nothing.
+     *
+     * @param names ';' separated names, globs or directories
+     * @return paths relative to the served directory, with '/' between
+     * directories, in the order asked for and each only once
+     * @throws IOException if a directory cannot be read
+     ***************************************************************/
+    List<String> findFiles(String names) throws IOException {
+        Path root = Paths.get(PATH).toAbsolutePath().normalize();
+        Set<String> found = new LinkedHashSet<String>();
+
+        for (String name : names.split(";")) {
+            if (name.isEmpty()) continue;
 
-		/* Wait for REQ from client */
-        do {
-            try {
-                reqPack = receive();
+            List<Path> matches = new ArrayList<Path>();
 
-                Header recvHead = new Header(recvPacket.getData());
+            if (name.matches(".*[*?\\[{].*")) {
+                PathMatcher matcher;
 
-				/* Check for proper header */
-                if (!recvHead.getReqFlag() || recvHead.getAckFlag() ||
-                        recvHead.getSynFlag()) {
-                    System.err.println("Received unexpected packet");
-                    recvHead = null;
+                try {
+                    matcher = FileSystems.getDefault()
+                            .getPathMatcher("glob:" + name);
+                } catch (IllegalArgumentException e) {
                     continue;
                 }
 
-            } catch (SocketTimeoutException e) {
-                continue;
-            } catch (BadChecksumException bc) {
-                System.err.println(bc.getMessage());
-                continue;
-            }
-        } while (reqPack == null);
+                for (Path p : listFiles(root)) {
+                    if (matcher.matches(root.relativize(p))) matches.add(p);
+                }
+            } else {
+                Path p;
 
-        byte[] bytes = reqPack.getData();
-        requestedFile = "";
+                try {
+                    p = root.resolve(name).normalize();
+                } catch (InvalidPathException e) {
+                    continue;
+                }
 
-        for (int i = Header.HEADER_SIZE; i < bytes.length; i++) {
-            char c = (char) bytes[i];
+                if (!p.startsWith(root)) continue;
 
-            if (c == '\0') break;
+                if (Files.isDirectory(p)) {
+                    matches.addAll(listFiles(p));
+                } else if (Files.isRegularFile(p)) {
+                    matches.add(p);
+                }
+            }
 
-            requestedFile += c;
+            for (Path p : matches) {
+                found.add(root.relativize(p).toString()
+                        .replace(File.separatorChar, '/'));
+            }
         }
 
-        System.out.println("Client is requesting \"" + requestedFile + "\"");
+        return new ArrayList<String>(found);
     }
 
-    private byte[] fileToBytes(String path) throws IOException {
-        Path p = Paths.get(PATH + path);
-        return Files.readAllBytes(p);
+    /**
+     * @return every regular file under a directory, sorted by path
+     */
+    private static List<Path> listFiles(Path dir) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+
+        try (Stream<Path> walk = Files.walk(dir)) {
+            Iterator<Path> it = walk.iterator();
+
+            while (it.hasNext()) {
+                Path p = it.next();
+
+                if (Files.isRegularFile(p)) files.add(p);
+            }
+        }
+
+        Collections.sort(files);
+
+        return files;
     }
 
-    private boolean sendFile(byte[] fileData, int numPackets)
-            throws IOException {
-        int lastAck = 0;
+    /****************************************************************
+     * Identifies the current version of a file, to key its blocks in
+     * the block cache. The file system's key for the file is used when
+     * it has one, so that every name of a file shares its blocks.
+     *
+     * @param path name of a file in the served directory
+     * @return its identity, size and modification time
+     * @throws IOException if the file does not exist
+     ***************************************************************/
+    BlockCache.FileId identify(String path) throws IOException {
+        Path p = resolve(path);
+        BasicFileAttributes attrs = Files.readAttributes(p,
+                BasicFileAttributes.class);
 
-        int numRetry = 0;
-        final int attempts = 3;
+        Object key = attrs.fileKey();
 
-        byte[] statusPacket = Header.createStatusPacket(true, numPackets,
-                fileData.length);
+        if (key == null) key = p.toAbsolutePath().normalize().toString();
 
-        for (int i = 0; i < numPackets; i = lastAck) {
+        return new BlockCache.FileId(key, attrs.size(),
+                attrs.lastModifiedTime().toMillis());
+    }
 
-            if (i == 0) {
-                send(statusPacket);
-                System.out.println("Sending request acknowledgement to client");
-            }
+    BlockCache getBlockCache() {
+        return blockCache;
+    }
 
-            for (int x = i; x < SEND_WINDOW + i && x < numPackets; x++) {
-                Header head = new Header();
-                head.setSequenceNum(x + 1);
+    /****************************************************************
+     * Returns the differences worked out earlier between a version of a
+     * file and a client's copy, so that a client asking again does not
+     * have them worked out again.
+     *
+     * @param id version of the file
+     * @param sig signature of the client's copy
+     * @return the differences, null if not kept
+     ***************************************************************/
+    Delta getDelta(BlockCache.FileId id, Delta.Signature sig) {
+        return deltas.get(new DeltaKey(id, sig));
+    }
+
+    /****************************************************************
+     * Keeps the differences between a version of a file and a client's
+     * copy.
+     *
+     * @param id version of the file
+     * @param sig signature of the client's copy
+     * @param delta the differences
+     ***************************************************************/
+    void putDelta(BlockCache.FileId id, Delta.Signature sig, Delta delta) {
+        deltas.put(new DeltaKey(id, sig), delta);
+    }
 
-                // TODO: Checksum junk
+    /****************************************************************
+     * Works out the SHA-256 of a file for a session, which is handed it
+     * through {@link Session#onDigest(byte[])}. A digest worked out for
+     * an earlier request is handed over at once. Otherwise the file is
+     * hashed on a worker, unless it already is for another session, and
+     * every session waiting for it is handed the digest once it is done.
+     *
+     * @param session session sending the file
+     * @param path name of the file in the served directory
+     * @param id version of the file
+     ***************************************************************/
+    void requestDigest(Session session, final String path,
+                       final BlockCache.FileId id) throws IOException {
+        byte[] known = digests.get(id);
 
-                final int maxData = MAX_PACKET_SIZE - Header.HEADER_SIZE;
-                int leftToSend = fileData.length - (maxData) * x;
-                int packSize = leftToSend;
+        if (known != null) {
+            session.onDigest(known);
+            return;
+        }
 
-                if (packSize > maxData)
-                    packSize = maxData;
+        List<Session> waiting = hashing.get(id);
 
-                packSize += Header.HEADER_SIZE;
+        if (waiting != null) {
+            waiting.add(session);
+            return;
+        }
 
-                byte[] packetData = new byte[packSize];
+        final FileChannel source;
 
-				/* Populate packet byte array */
-                for (int k = Header.HEADER_SIZE; k < packSize; k++) {
-                    packetData[k] =
-                            fileData[(x * maxData) + (k - Header.HEADER_SIZE)];
-                }
+        try {
+            source = openFile(path);
+        } catch (IOException e) {
+            session.onDigest(null);
+            return;
+        }
 
-                head.setChecksum(packetData);
+        waiting = new ArrayList<Session>();
+        waiting.add(session);
+        hashing.put(id, waiting);
 
-                System.arraycopy(head.getBytes(), 0, packetData, 0,
-                        Header.HEADER_SIZE);
+        final byte[][] result = new byte[1][];
 
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    send(packetData);
-                    System.out.println("  Sent packet number " + (x + 1));
+                    result[0] = FileDigest.compute(source, id.getSize());
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.warn("Could not hash \"" + path + "\": " +
+                            e.getMessage());
+                } finally {
+                    try {
+                        source.close();
+                    } catch (IOException e) {
+                        Log.debug("Could not close \"" + path + "\"");
+                    }
+
+                    finished.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (result[0] != null) digests.put(id, result[0]);
+
+                            for (Session s : hashing.remove(id)) {
+                                try {
+                                    s.onDigest(result[0]);
+                                } catch (IOException e) {
+                                    Log.error(e.getMessage());
+                                    s.close();
+                                }
+
+                                if (s.isDone()) {
+                                    sessions.remove(s.getClient(), s);
+                                }
+                            }
+                        }
+                    });
+
+                    selector.wakeup();
                 }
             }
+        });
+    }
+
+    /****************************************************************
+     * Sends the given data to a connected client from the port the
+     * server is hosted on. If the socket's send buffer is full, the
+     * packet is not sent and the sessions are told through
+     * {@link Session#onWritable()} once there is room again.
+     *
+     * @param packet buffer holding the packet between its position and
+     *               limit
+     * @param client
+     * @return whether the packet was sent
+     * @throws IOException
+     ***************************************************************/
+    boolean send(ByteBuffer packet, InetSocketAddress client)
+            throws IOException {
+        if (channel.send(packet, client) > 0) return true;
 
-            DatagramPacket ackPacket = null;
+        if (!writeBlocked) {
+            writeBlocked = true;
+            channelKey.interestOps(SelectionKey.OP_READ |
+                    SelectionKey.OP_WRITE);
+        }
 
-            try {
-                ackPacket = receive();
+        return false;
+    }
 
-                Header head = new Header(ackPacket.getData());
+    /**
+     * @return whether the socket's send buffer was last found full
+     */
+    boolean isWriteBlocked() {
+        return writeBlocked;
+    }
 
-                if (!head.getAckFlag() || head.getReqFlag() ||
-                        head.getSynFlag()) {
-                    System.err.println("Received unexpected packet");
-                    continue;
-                }
+    /****************************************************************
+     * @return buffer for building a data packet, only valid until the
+     * next call to {@link #send(ByteBuffer, InetSocketAddress)}
+     ***************************************************************/
+    ByteBuffer getSendBuffer() {
+        return sendBuffer;
+    }
 
-            } catch (SocketTimeoutException e) {
+    /**
+     * @return port the server is bound to
+     */
+    public int getPort() {
+        return ((InetSocketAddress) channel.socket().getLocalSocketAddress())
+                .getPort();
+    }
 
-                if (++numRetry > attempts) {
-                    System.err.println("Client not responding.");
-                    return false;
-                }
+    /****************************************************************
+     * Makes the event loop return and release the port, from any
+     * thread. Sessions in progress are dropped.
+     ***************************************************************/
+    public void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
 
-                System.err.println("Acknowledgement timed out. Resending "
-                        + "packet " + lastAck + "\n");
-                continue;
-            } catch (BadChecksumException be) {
-                System.err.println(be.getMessage());
-                continue;
+    /****************************************************************
+     * Runs the event loop on a thread of its own until {@link #stop()}
+     * is called.
+     *
+     * @return the thread, for joining
+     ***************************************************************/
+    public Thread start() {
+        Thread loop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    begin();
+                } catch (IOException e) {
+                    Log.error("Server stopped: " + e.getMessage());
+                }
             }
-            numRetry = 0;
+        }, "server-loop");
+        loop.start();
 
-            Header head = new Header(ackPacket.getData());
-            lastAck = head.getSequenceNum();
+        return loop;
+    }
 
-            System.out.println(" -Got acknowledgement of packet " +
-                    lastAck + "\n");
-        }
+    /****************************************************************
+     * Lets every session send again now that the socket has room,
+     * stopping if it fills up again.
+     ***************************************************************/
+    private void resumeSending() throws IOException {
+        writeBlocked = false;
+        channelKey.interestOps(SelectionKey.OP_READ);
+
+        for (Session session : new ArrayList<Session>(sessions.values())) {
+            if (writeBlocked) return;
+
+            session.onWritable();
 
-        return true;
+            if (session.isDone()) sessions.remove(session.getClient(), session);
+        }
     }
 
     /****************************************************************
-     * Sends the given data to the most recent connected client on
-     * the port the server is hosted on.
+     * Runs the event loop until {@link #stop()} is called: waits until
+     * a packet arrives, the next session timer is due or a worker
+     * finishes a task, then handles them without blocking.
      *
-     * @param data
      * @throws IOException
      ***************************************************************/
-    private void send(byte[] data) throws IOException {
-        DatagramPacket sendPacket = new DatagramPacket(data,
-                data.length, clientAddr, clientPort);
+    public void begin() throws IOException {
+        List<Session> expired = new ArrayList<Session>();
 
-        serverSocket.send(sendPacket);
-    }
+        while (!stopped) {
+            long wait = timers.timeUntilNext(Session.now());
 
-    public void begin() throws IOException {
+            if (wait < 0) {
+                selector.select();
+            } else if (wait < 1000) {
+                selector.selectNow();
+            } else {
+                selector.select(wait / 1000);
+            }
 
-        while (true) {
-            establishConnection();
-            byte[] data = null;
+            boolean writable = writeBlocked &&
+                    selector.selectedKeys().contains(channelKey) &&
+                    channelKey.isWritable();
 
-            try {
-                data = fileToBytes(requestedFile);
-            } catch (IOException e) {
-                byte[] status = Header.createStatusPacket(false, 0, 0);
-                send(status);
+            selector.selectedKeys().clear();
 
-                System.err.println("File '" + requestedFile +
-                        "' not found.");
-                continue;
-            }
+            receiveAll();
 
+            if (writable) resumeSending();
 
-            int numPackets = (int) Math.ceil(((double) data.length) /
-                    ((double) MAX_PACKET_SIZE - Header.HEADER_SIZE));
+            for (Runnable then; (then = finished.poll()) != null; ) {
+                then.run();
+            }
+
+            timers.expire(Session.now(), expired);
 
-            System.out.println("-- Starting file transfer --");
+            for (Session session : expired) {
+                session.onTimer(Session.now());
 
-            if (sendFile(data, numPackets)) {
-                System.out.println("File transfer complete.");
+                if (session.isDone()) {
+                    sessions.remove(session.getClient(), session);
+                }
             }
+
+            expired.clear();
+        }
+
+        for (Session session : sessions.values()) {
+            session.close();
+        }
+
+        sessions.clear();
+        worker.shutdownNow();
+
+        for (Map.Entry<String, Metrics.Gauge> e : gauges.entrySet()) {
+            Metrics.global().removeGauge(e.getKey(), e.getValue());
         }
+
+        if (metricsEndpoint != null) metricsEndpoint.stop();
+
+        selector.close();
+        channel.close();
     }
-}
 
+    private static class DeltaKey {
+        BlockCache.FileId file;
+        Delta.Signature sig;
+
+        DeltaKey(BlockCache.FileId file, Delta.Signature sig) {
+            this.file = file;
+            this.sig = sig;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DeltaKey)) return false;
+
+            DeltaKey other = (DeltaKey) o;
+
+            return file.equals(other.file) && sig.equals(other.sig);
+        }
+
+        @Override
+        public int hashCode() {
+            return file.hashCode() * 31 + sig.hashCode();
+        }
+    }
+}
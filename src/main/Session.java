@@ -0,0 +1,1721 @@
+package main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Transfer state for a single client of the server. Sessions are
+ * driven by the server's event loop: every packet from the client is
+ * handed to {@link #handle(Header)} and {@link #onTimer(long)} is
+ * called when the time returned by {@link #getTimerAt()} is reached.
+ */
+public class Session {
+
+    /**
+     * CLOSING is every packet acknowledged while the client may still
+     * ask for the digest, until it goes quiet
+     */
+    private enum State {
+        AWAIT_REQ, SENDING, CLOSING, DONE
+    }
+
+    private final int attempts = 3;
+
+    /**
+     * Number of later packets the client must report before a missing
+     * packet is considered lost rather than reordered
+     */
+    private static final int DUP_THRESHOLD = 3;
+
+    /**
+     * Most files of a batch kept open at once, for resending packets of
+     * files already sent without reopening them
+     */
+    private static final int OPEN_FILES = 16;
+
+    /**
+     * A file of a batch
+     */
+    private static class BatchFile {
+        String name;
+        BlockCache.FileId id;
+        boolean unreadable;
+    }
+
+
+    private final Server server;
+
+    private final InetSocketAddress client;
+
+    private State state;
+
+    private String requestedFile;
+
+    /**
+     * Requested file, read on demand one packet at a time
+     */
+    private FileChannel fileChannel;
+
+    /**
+     * Identity of the requested file in the server's block cache
+     */
+    private BlockCache.FileId fileId;
+
+    private long fileSize;
+
+    /**
+     * Modification time of the requested file in milliseconds
+     */
+    private long modified;
+
+    /**
+     * Byte ranges of the file to send, all of it unless a resuming
+     * client asked for less, and the number of packets that come
+     * before each range
+     */
+    private long[] rangeStart;
+
+    private long[] rangeEnd;
+
+    private long[] firstPacket;
+
+    /**
+     * Files of a batch in the order they are sent, or null if a single
+     * file was requested. Each file takes a framing packet followed by
+     * its data packets, and firstPacket holds the number of packets
+     * before each file instead of each range.
+     */
+    private BatchFile[] batch;
+
+    /**
+     * Names asked for by each REQ of a batch, until all have arrived
+     */
+    private String[] batchNames;
+
+    /**
+     * Files of the batch open for reading, least recently used first
+     */
+    private LinkedHashMap<Integer, FileChannel> openFiles;
+
+    /**
+     * Signature of the client's copy gathered from the REQs of a delta,
+     * and which of them have arrived
+     */
+    private Delta.Signature deltaSig;
+
+    private boolean[] deltaParts;
+
+    /**
+     * Differences from the client's copy once worked out, or null if
+     * the file is sent as it is. The first copyPackets packets carry
+     * the copies, ahead of the literal ranges.
+     */
+    private Delta delta;
+
+    private long copyPackets;
+
+    /**
+     * Whether a worker is working out the differences from the client's
+     * copy
+     */
+    private boolean computing;
+
+    /**
+     * SHA-256 of the requested file, or null
+     */
+    private byte[] digest;
+
+    /**
+     * Whether the server is still hashing the requested file, whether
+     * the status packet carried the digest, and whether the client asked
+     * for the digest before it was known
+     */
+    private boolean hashing;
+
+    private boolean digestInStatus;
+
+    private boolean digestAsked;
+
+    /**
+     * Format spoken by the client, from its SYN
+     */
+    private int version;
+
+    /**
+     * Whether data packets end with a CRC32C, as asked by the client
+     */
+    private boolean useCrc;
+
+    /**
+     * Size in bytes of every packet sent to the client, agreed on in the
+     * handshake
+     */
+    private int packetSize;
+
+    /**
+     * Whether the client's SYN asked for a packet size, which every
+     * SYN-ACK then carries
+     */
+    private boolean sizeField;
+
+    /**
+     * Whether the client's SYN asked for forward error correction,
+     * which every SYN-ACK then answers after the packet size
+     */
+    private boolean fecField;
+
+    /**
+     * Parity sent after each group of data packets, or null if the
+     * client did not ask for it
+     */
+    private Fec.Encoder fec;
+
+    /**
+     * Data packets per group and most parity packets per group agreed
+     * on with the client, 0 without forward error correction
+     */
+    private int fecGroup;
+
+    private int fecParity;
+
+    /**
+     * Whether the client's SYN asked for a compression codec, which
+     * every SYN-ACK then answers after the forward error correction
+     */
+    private boolean codecField;
+
+    /**
+     * Codec payloads are compressed with, or null
+     */
+    private Codec codec;
+
+    /**
+     * Buffer payloads are compressed into, and view of the send buffer
+     * they are compressed from
+     */
+    private ByteBuffer compressed;
+
+    private ByteBuffer payloadView;
+
+    /**
+     * Payload bytes sent, before and after compression
+     */
+    private long rawBytes;
+
+    private long wireBytes;
+
+    /**
+     * Pages of the catalog the SYN-ACK was taken from
+     */
+    private List<byte[]> catalogPages;
+
+    /**
+     * File bytes carried by each data packet
+     */
+    private int payloadSize;
+
+    private long numPackets;
+
+    /**
+     * Highest packet acknowledged cumulatively by the client. Packets
+     * are counted from 1 in 64 bits, and only the low 32 bits go on the
+     * wire as the sequence number.
+     */
+    private long lastAck;
+
+    /**
+     * Next packet that has never been sent
+     */
+    private long nextSeq;
+
+    /**
+     * Packets of the window reported received by the client's SACK
+     * bitmap, indexed by sequence number modulo the window size
+     */
+    private boolean[] sacked;
+
+    /**
+     * Packets of the window that were already resent for a hole in
+     * the SACK bitmap, so that every hole is resent only once
+     */
+    private boolean[] resent;
+
+    private CongestionControl congestion;
+
+    /**
+     * Window advertised by the client in its last acknowledgement
+     */
+    private int clientWindow;
+
+    /**
+     * Highest packet sent when the window was last cut, losses up to it
+     * belong to the same congestion event
+     */
+    private long recoverSeq;
+
+    /**
+     * Time each packet of the window was last sent, in microseconds
+     */
+    private long[] sentAt;
+
+    private RttEstimator rtt;
+
+    /**
+     * View reused for every data packet sent
+     */
+    private Header sendHead;
+
+    /**
+     * Metrics of the session, adding to the server's totals
+     */
+    private final Metrics metrics;
+
+    private final Metrics.Counter packetsSent;
+
+    private final Metrics.Counter bytesSent;
+
+    private final Metrics.Counter retransmits;
+
+    private final Metrics.Counter timeouts;
+
+    private final Metrics.Counter paritySent;
+
+    private final Metrics.Counter bytesAcked;
+
+    private final Metrics.Histogram rttSamples;
+
+    /**
+     * Congestion window, window advertised by the client and packets in
+     * flight, copied for the gauges, which are read from other threads
+     */
+    private volatile long windowShown;
+
+    private volatile long clientWindowShown;
+
+    private volatile long inFlightShown;
+
+    /**
+     * Time in microseconds the session started
+     */
+    private final long started;
+
+    /**
+     * Time in microseconds progress was last reported
+     */
+    private long lastReport;
+
+    /**
+     * Time in microseconds the client was last heard from
+     */
+    private long lastHeard;
+
+    /**
+     * Time in microseconds at which the session stops waiting for a REQ
+     */
+    private long deadline;
+
+    /**
+     * Time in microseconds the session's timer is scheduled for, or 0
+     */
+    private long timerAt;
+
+    public Session(Server server, InetSocketAddress client) {
+        this.server = server;
+        this.client = client;
+
+        nextSeq = 1;
+        sacked = new boolean[Server.MAX_WINDOW];
+        resent = new boolean[Server.MAX_WINDOW];
+        sentAt = new long[Server.MAX_WINDOW];
+        rtt = new RttEstimator();
+        sendHead = new Header();
+
+        congestion = server.createCongestionControl();
+        clientWindow = Server.SEND_WINDOW;
+        started = now();
+
+        Metrics.global().counter("sessions_started_total",
+                "Sessions started").increment();
+
+        metrics = Metrics.createSession(client.getAddress().getHostAddress() +
+                ":" + client.getPort());
+
+        packetsSent = metrics.counter("packets_sent_total",
+                "Data packets sent, resent ones included");
+        bytesSent = metrics.counter("bytes_sent_total",
+                "Bytes of data packets sent");
+        retransmits = metrics.counter("retransmits_total",
+                "Data packets sent again");
+        timeouts = metrics.counter("timeouts_total",
+                "Retransmission timeouts");
+        paritySent = metrics.counter("parity_sent_total",
+                "Parity packets sent");
+        bytesAcked = metrics.counter("bytes_acked_total",
+                "Payload bytes of the packets acknowledged");
+        rttSamples = metrics.histogram("rtt_microseconds",
+                "Round trip times measured from acknowledgements");
+
+        metrics.gauge("congestion_window", "Congestion window in packets",
+                new Metrics.Gauge() {
+                    @Override
+                    public long get() {
+                        return windowShown;
+                    }
+                });
+        metrics.gauge("client_window", "Window advertised by the client",
+                new Metrics.Gauge() {
+                    @Override
+                    public long get() {
+                        return clientWindowShown;
+                    }
+                });
+        metrics.gauge("in_flight", "Packets sent and not yet acknowledged",
+                new Metrics.Gauge() {
+                    @Override
+                    public long get() {
+                        return inFlightShown;
+                    }
+                });
+        metrics.gauge("goodput_bytes_per_second", "Payload bytes " +
+                "acknowledged per second since the session started",
+                new Metrics.Gauge() {
+                    @Override
+                    public long get() {
+                        return bytesAcked.get() * 1000000L /
+                                Math.max(1, now() - started);
+                    }
+                });
+
+        showGauges();
+    }
+
+    public boolean isDone() {
+        return state == State.DONE;
+    }
+
+    public InetSocketAddress getClient() {
+        return client;
+    }
+
+    public long getTimerAt() {
+        return timerAt;
+    }
+
+    /****************************************************************
+     * Answers the client's SYN with a SYN-ACK listing the files that
+     * are available on the server. A SYN asking for a packet size is
+     * answered with the size agreed on ahead of the list. Clients of
+     * the current version get the first page of the catalog and ask
+     * for the rest with REQ_LIST requests, others get every name. A SYN
+     * asking for forward error correction is answered with the group
+     * size and parity agreed on after the packet size, and one asking
+     * for a codec with the codec if the server has it.
+     *
+     * @param syn view over the client's SYN
+     * @param catalog listing of the served directory
+     ***************************************************************/
+    public void accept(Header syn, Catalog catalog) {
+        useCrc = syn.getCrcFlag();
+        version = Math.min(syn.getVersion(), Header.VERSION);
+
+        int asked = syn.getPacketSize();
+
+        if (asked < 0) {
+            packetSize = Server.DEFAULT_PACKET_SIZE;
+        } else {
+            packetSize = Math.max(Server.MIN_PACKET_SIZE,
+                    Math.min(asked, Server.MAX_PACKET_SIZE));
+        }
+
+        sizeField = asked >= 0;
+
+        payloadSize = packetSize - Header.HEADER_SIZE;
+
+        /* A legacy client takes everything after the header as data */
+        if (version >= Header.VERSION) {
+            payloadSize -= Header.TIMESTAMP_FIELD_SIZE +
+                    Header.OFFSET_FIELD_SIZE;
+        }
+
+        if (useCrc) payloadSize -= Header.CRC_FIELD_SIZE;
+
+        fecField = version >= Header.VERSION && syn.getFecGroup() >= 0;
+
+        if (fecField && syn.getFecGroup() > 0 && syn.getFecParity() > 0) {
+            fecGroup = Math.max(2, Math.min(syn.getFecGroup(),
+                    Fec.MAX_GROUP));
+            fecParity = Math.min(syn.getFecParity(),
+                    Math.min(Fec.MAX_PARITY, fecGroup));
+
+            payloadSize -= Fec.OVERHEAD;
+            fec = new Fec.Encoder(fecGroup, fecParity, packetSize);
+
+            Log.info("Sending " + fecParity + " parity packets " +
+                    "at most per " + fecGroup + " data packets");
+        }
+
+        codecField = fecField && syn.getCodec() >= 0;
+
+        if (codecField) codec = Codecs.create(syn.getCodec());
+
+        if (codec != null) compressed = ByteBuffer.allocate(packetSize);
+
+        Log.info("Received SYN packet from " +
+                client.getAddress().getHostAddress() + " " + " on port " +
+                client.getPort());
+
+        byte[] list;
+
+        if (version >= Header.VERSION && sizeField) {
+            catalogPages = catalog.getPages(packetSize - Header.HEADER_SIZE -
+                    Header.PACKET_SIZE_FIELD_SIZE -
+                    (fecField ? Header.FEC_FIELD_SIZE : 0) -
+                    (codecField ? Header.CODEC_FIELD_SIZE : 0));
+            list = catalogPages.get(0);
+        } else {
+            list = catalog.getLegacyList().getBytes(StandardCharsets.UTF_8);
+        }
+
+        state = State.AWAIT_REQ;
+        deadline = now() + Server.TIMEOUT * attempts * 1000L;
+        arm(deadline);
+
+        try {
+            sendSynAck(list);
+            Log.info("Sent ACK to client");
+        } catch (IOException e) {
+            Log.warn(e.getMessage());
+        }
+    }
+
+    /****************************************************************
+     * Sends a SYN-ACK carrying the given part of the file listing.
+     *
+     * @param list the names, or a page of the catalog
+     ***************************************************************/
+    private void sendSynAck(byte[] list) throws IOException {
+        int start = Header.HEADER_SIZE;
+
+        if (sizeField) start += Header.PACKET_SIZE_FIELD_SIZE;
+
+        if (fecField) start += Header.FEC_FIELD_SIZE;
+
+        if (codecField) start += Header.CODEC_FIELD_SIZE;
+
+        byte[] packData = new byte[start + list.length];
+
+        Header ackHead = new Header(packData);
+        ackHead.setAckFlag(true);
+        ackHead.setSynFlag(true);
+        ackHead.setVersion(version);
+
+        if (sizeField) ackHead.setPacketSize(packetSize);
+
+        if (fecField) ackHead.setFec(fecGroup, fecParity);
+
+        if (codecField) {
+            ackHead.setCodec(codec == null ? Codecs.NONE : codec.getId());
+        }
+
+        System.arraycopy(list, 0, packData, start, list.length);
+
+        ackHead.setChecksum();
+
+        send(packData);
+    }
+
+    /****************************************************************
+     * Answers a REQ_LIST request with the page of the catalog it asks
+     * for, from the listing the SYN-ACK was taken from.
+     *
+     * @param req buffer holding the request
+     ***************************************************************/
+    private void sendCatalogPage(ByteBuffer req) throws IOException {
+        if (catalogPages == null || req.limit() < Header.HEADER_SIZE + 5) {
+            return;
+        }
+
+        int page = req.getInt(Header.HEADER_SIZE + 1);
+
+        if (page < 0 || page >= catalogPages.size()) return;
+
+        deadline = now() + Server.TIMEOUT * attempts * 1000L;
+
+        sendSynAck(catalogPages.get(page));
+    }
+
+    /****************************************************************
+     * Handles a packet received from the client.
+     *
+     * @param head view over the received packet
+     ***************************************************************/
+    public void handle(Header head) throws IOException {
+        lastHeard = now();
+
+        if (head.getReqFlag() && !head.getAckFlag() && !head.getSynFlag()) {
+            handleRequest(head);
+        } else if (head.getAckFlag() && !head.getReqFlag() &&
+                !head.getSynFlag()) {
+            handleAck(head);
+        } else {
+            Log.debug("Received unexpected packet");
+        }
+
+        showGauges();
+
+        if (state != State.DONE) arm(lastHeard + rtt.getTimeout());
+    }
+
+    /****************************************************************
+     * Resends every packet whose retransmission timer has expired and
+     * schedules the timer for the next deadline. A round of expired
+     * packets counts as one timeout for the congestion window and
+     * doubles the retransmission timeout.
+     *
+     * @param now current time in microseconds
+     ***************************************************************/
+    public void onTimer(long now) throws IOException {
+        timerAt = 0;
+
+        if (state == State.DONE) return;
+
+        /* The worker's result starts the transfer, or ends the session */
+        if (computing) return;
+
+        if (state == State.AWAIT_REQ) {
+            if (now >= deadline) {
+                close();
+            } else {
+                arm(deadline);
+            }
+            return;
+        }
+
+        long idleLimit = lastHeard + Server.TIMEOUT * attempts * 1000L;
+
+        if (state == State.CLOSING) {
+            if (now >= idleLimit) {
+                close();
+            } else {
+                arm(idleLimit);
+            }
+            return;
+        }
+
+        if (now >= idleLimit) {
+            Log.error("Client not responding.");
+            close();
+            return;
+        }
+
+        long timeout = rtt.getTimeout();
+        boolean expired = false;
+
+        for (long seq = lastAck + 1; seq < nextSeq; seq++) {
+            int slot = (int) (seq % Server.MAX_WINDOW);
+
+            if (sacked[slot] || now - sentAt[slot] < timeout) continue;
+
+            if (!expired) {
+                Log.debug("Acknowledgement timed out. Resending "
+                        + "packet " + seq);
+
+                timeouts.increment();
+
+                if (seq > recoverSeq) {
+                    congestion.onTimeout();
+                    recoverSeq = nextSeq - 1;
+                }
+
+                if (lastAck == 0) sendStatus();
+
+                expired = true;
+            }
+
+            if (fec != null) fec.onLoss();
+
+            if (!sendPacket(seq)) break;
+
+            resent[slot] = true;
+            retransmits.increment();
+        }
+
+        if (expired) rtt.backoff();
+
+        long next = idleLimit;
+
+        /* Packets left unsent are resent by onWritable instead */
+        for (long seq = lastAck + 1; seq < nextSeq &&
+                !server.isWriteBlocked(); seq++) {
+            int slot = (int) (seq % Server.MAX_WINDOW);
+
+            if (sacked[slot]) continue;
+
+            next = Math.min(next, sentAt[slot] + rtt.getTimeout());
+        }
+
+        showGauges();
+        arm(next);
+    }
+
+    /****************************************************************
+     * Sends what was held back while the server's socket was full:
+     * packets whose time ran out, holes the client reported and the
+     * rest of the window.
+     ***************************************************************/
+    void onWritable() throws IOException {
+        if (state != State.SENDING || computing) return;
+
+        onTimer(now());
+
+        if (state != State.SENDING) return;
+
+        resendHoles();
+        fillWindow();
+        showGauges();
+    }
+
+    /****************************************************************
+     * Copies what the gauges show for the threads reading them.
+     ***************************************************************/
+    private void showGauges() {
+        windowShown = congestion.getWindow();
+        clientWindowShown = clientWindow;
+        inFlightShown = Math.max(0, nextSeq - 1 - lastAck);
+    }
+
+    /****************************************************************
+     * Schedules the timer, unless it already fires earlier. Firing
+     * early is harmless, {@link #onTimer(long)} reschedules it.
+     *
+     * @param when time in microseconds
+     ***************************************************************/
+    private void arm(long when) {
+        if (timerAt != 0 && timerAt <= when) return;
+
+        timerAt = when;
+        server.schedule(this, when);
+    }
+
+    private void handleRequest(Header head) throws IOException {
+        ByteBuffer bytes = head.getBuffer();
+
+        if (bytes.limit() > Header.HEADER_SIZE &&
+                bytes.get(Header.HEADER_SIZE) == Header.REQ_LIST) {
+            if (state == State.AWAIT_REQ) sendCatalogPage(bytes);
+            return;
+        }
+
+        if (bytes.limit() > Header.HEADER_SIZE &&
+                bytes.get(Header.HEADER_SIZE) == Header.REQ_DIGEST) {
+            handleDigestRequest();
+            return;
+        }
+
+        /* The REQs already arrived, the worker's result starts sending */
+        if (computing) {
+            send(Header.createPendingPacket(deltaParts.length));
+            return;
+        }
+
+        /* Client did not get the status packet, send it again */
+        if (state == State.SENDING) {
+            if (lastAck == 0) sendStatus();
+            return;
+        }
+
+        if (state != State.AWAIT_REQ) return;
+
+        int i = Header.HEADER_SIZE;
+
+        /* Bytes of a UTF-8 name are never as low as a kind of options */
+        for (; i < bytes.limit(); i++) {
+            byte b = bytes.get(i);
+
+            if (b == Header.REQ_RANGES || b == Header.REQ_STRIPE ||
+                    b == Header.REQ_BATCH || b == Header.REQ_DELTA) break;
+        }
+
+        String name = Header.readName(bytes, Header.HEADER_SIZE, i);
+
+        if (i < bytes.limit() && bytes.get(i) == Header.REQ_BATCH &&
+                version >= Header.VERSION) {
+            handleBatchRequest(name, bytes, i + 1);
+            return;
+        }
+
+        if (i < bytes.limit() && bytes.get(i) == Header.REQ_DELTA &&
+                version >= Header.VERSION) {
+            handleDeltaRequest(name, bytes, i + 1);
+            return;
+        }
+
+        requestedFile = name;
+
+        Log.info("Client is requesting \"" + requestedFile + "\"");
+
+        try {
+            fileChannel = server.openFile(requestedFile);
+            fileId = server.identify(requestedFile);
+            fileSize = fileId.getSize();
+            modified = fileId.getModified();
+        } catch (IOException e) {
+            byte[] status = Header.createStatusPacket(false, 0, 0);
+            send(status);
+
+            Log.error("File '" + requestedFile + "' not found.");
+            close();
+            return;
+        }
+
+        readRanges(bytes, i);
+
+        if (version < Header.VERSION && fileSize > Integer.MAX_VALUE) {
+            send(Header.createStatusPacket(false, 0, 0));
+
+            Log.warn("File '" + requestedFile + "' is too " +
+                    "large for a legacy client.");
+            close();
+            return;
+        }
+
+        if (version >= Header.VERSION) {
+            startWithDigest();
+        } else {
+            startSending();
+        }
+    }
+
+    /****************************************************************
+     * Starts sending the requested file at once, with its digest worked
+     * out alongside unless the server has it from an earlier request.
+     * The digest goes in the status packet if it is known by then, and
+     * otherwise to the client once it asks, after the last packet.
+     ***************************************************************/
+    private void startWithDigest() throws IOException {
+        hashing = true;
+        server.requestDigest(this, requestedFile, fileId);
+
+        startSending();
+    }
+
+    /****************************************************************
+     * Takes the digest of the requested file once the server has worked
+     * it out, answering the client if it already asked for it.
+     *
+     * @param result the digest, or null if the file could not be hashed
+     ***************************************************************/
+    void onDigest(byte[] result) throws IOException {
+        hashing = false;
+        digest = result;
+
+        if (state == State.CLOSING && digestAsked) sendDigest();
+    }
+
+    /****************************************************************
+     * Answers a client that has every packet and asks for the digest,
+     * which takes its REQ as the last acknowledgement in case that went
+     * missing. The client is told to wait while the file is still being
+     * hashed.
+     ***************************************************************/
+    private void handleDigestRequest() throws IOException {
+        if (state == State.SENDING && batch == null) finish();
+
+        if (state != State.CLOSING) return;
+
+        if (hashing) {
+            digestAsked = true;
+            send(Header.createPendingPacket(0));
+            return;
+        }
+
+        sendDigest();
+    }
+
+    private void sendDigest() throws IOException {
+        send(Header.createStatusPacket(digest != null, numPackets,
+                fileSize, modified, digest));
+        Log.info("Sending the digest to client");
+    }
+
+    /****************************************************************
+     * Sends the status packet and the first window of the requested
+     * file.
+     ***************************************************************/
+    private void startSending() throws IOException {
+        Log.info("-- Starting file transfer --");
+
+        lastHeard = now();
+
+        state = State.SENDING;
+        digestInStatus = digest != null;
+        sendStatus();
+        fillWindow();
+        showGauges();
+
+        arm(lastHeard + rtt.getTimeout());
+    }
+
+    /****************************************************************
+     * Gathers the names asked for by the REQs of a batch, then starts
+     * sending every file they match, back to back. Each REQ is
+     * answered with a pending status counting the REQs received in
+     * order, so that the client only sends again the ones missing.
+     *
+     * @param names ';' separated names, globs or directories
+     * @param req buffer holding the REQ
+     * @param start index of the options following the names
+     ***************************************************************/
+    private void handleBatchRequest(String names, ByteBuffer req, int start)
+            throws IOException {
+        if (req.limit() - start < Header.REQ_BATCH_OPTIONS - 1) return;
+
+        int index = req.getShort(start) & 0xFFFF;
+        int count = req.getShort(start + 2) & 0xFFFF;
+
+        if (batchNames == null && count > 0) batchNames = new String[count];
+
+        if (batchNames == null || count != batchNames.length ||
+                index >= count) {
+            return;
+        }
+
+        batchNames[index] = names;
+
+        int received = 0;
+
+        while (received < count && batchNames[received] != null) received++;
+
+        if (received < count) {
+            send(Header.createPendingPacket(received));
+            return;
+        }
+
+        StringBuilder all = new StringBuilder();
+
+        for (String part : batchNames) {
+            all.append(part).append(';');
+        }
+
+        requestedFile = all.toString();
+
+        Log.info("Client is requesting a batch of \"" +
+                requestedFile + "\"");
+
+        List<String> found = server.findFiles(requestedFile);
+
+        batch = new BatchFile[found.size()];
+        firstPacket = new long[found.size()];
+        numPackets = 0;
+        fileSize = 0;
+
+        int numFiles = 0;
+
+        for (String path : found) {
+            BatchFile file = new BatchFile();
+            file.name = path;
+
+            /* The name has to fit in the framing packet */
+            if (Header.nameLength(path) > payloadSize -
+                    Header.FRAME_PREAMBLE) {
+                Log.warn("Skipping \"" + path + "\", its " +
+                        "name is too long");
+                continue;
+            }
+
+            try {
+                file.id = server.identify(path);
+            } catch (IOException e) {
+                continue;
+            }
+
+            long size = file.id.getSize();
+
+            batch[numFiles] = file;
+            firstPacket[numFiles++] = numPackets;
+
+            numPackets += 1 + (size + payloadSize - 1) / payloadSize;
+            fileSize += size;
+        }
+
+        if (numFiles == 0) {
+            send(Header.createBatchStatusPacket(false, 0, 0, 0));
+
+            Log.warn("No files match the batch.");
+            close();
+            return;
+        }
+
+        if (numFiles < batch.length) {
+            batch = Arrays.copyOf(batch, numFiles);
+            firstPacket = Arrays.copyOf(firstPacket, numFiles);
+        }
+
+        openFiles = new LinkedHashMap<Integer, FileChannel>(OPEN_FILES,
+                0.75f, true);
+
+        Log.info("-- Starting batch of " + numFiles + " files, " +
+                fileSize + " bytes --");
+
+        state = State.SENDING;
+        sendStatus();
+        fillWindow();
+    }
+
+    /****************************************************************
+     * Gathers the signature of the client's copy of a file from the
+     * REQs it is spread over, then works out the differences on one of
+     * the server's workers, since that reads the whole file. Each REQ
+     * is answered with a pending status counting the REQs received in
+     * order, and so is every REQ while the differences are worked out.
+     * The result is kept by the server for clients with the same copy.
+     *
+     * @param name name of the requested file
+     * @param req buffer holding the REQ
+     * @param start index of the options following the name
+     ***************************************************************/
+    private void handleDeltaRequest(String name, ByteBuffer req, int start)
+            throws IOException {
+        if (req.limit() - start < Header.REQ_DELTA_OPTIONS - 1) {
+            return;
+        }
+
+        int index = req.getShort(start) & 0xFFFF;
+        int count = req.getShort(start + 2) & 0xFFFF;
+        int blockSize = req.getInt(start + 4);
+        long oldSize = req.getLong(start + 8);
+        int firstBlock = req.getInt(start + 16);
+        int blocks = (req.limit() - start - Header.REQ_DELTA_OPTIONS + 1) /
+                Delta.SIGNATURE_SIZE;
+
+        if (deltaSig == null) {
+            if (blockSize < Delta.MIN_BLOCK_SIZE ||
+                    blockSize > Delta.MAX_BLOCK_SIZE || oldSize < 0 ||
+                    oldSize / blockSize >= Delta.MAX_BLOCKS || count == 0) {
+                return;
+            }
+
+            deltaSig = new Delta.Signature(blockSize, oldSize);
+            deltaParts = new boolean[count];
+        }
+
+        if (count != deltaParts.length || index >= count ||
+                blockSize != deltaSig.getBlockSize() ||
+                oldSize != deltaSig.getFileSize() || firstBlock < 0 ||
+                firstBlock + blocks > deltaSig.getNumBlocks()) {
+            return;
+        }
+
+        int at = start + Header.REQ_DELTA_OPTIONS - 1;
+
+        for (int j = firstBlock; j < firstBlock + blocks; j++) {
+            deltaSig.set(j, req.getInt(at), req.getLong(at + 4));
+            at += Delta.SIGNATURE_SIZE;
+        }
+
+        deltaParts[index] = true;
+
+        int received = 0;
+
+        while (received < count && deltaParts[received]) received++;
+
+        if (received < count) {
+            send(Header.createPendingPacket(received));
+            return;
+        }
+
+        requestedFile = name;
+
+        Log.info("Client is requesting the differences from " +
+                "its copy of \"" + requestedFile + "\"");
+
+        try {
+            fileChannel = server.openFile(requestedFile);
+            fileId = server.identify(requestedFile);
+            fileSize = fileId.getSize();
+            modified = fileId.getModified();
+        } catch (IOException e) {
+            send(Header.createStatusPacket(false, 0, 0));
+
+            Log.error("File '" + requestedFile + "' not found.");
+            close();
+            return;
+        }
+
+        hashing = true;
+        server.requestDigest(this, requestedFile, fileId);
+
+        Delta known = server.getDelta(fileId, deltaSig);
+
+        if (known != null) {
+            startDelta(known);
+            return;
+        }
+
+        final FileChannel source;
+
+        try {
+            source = server.openFile(requestedFile);
+        } catch (IOException e) {
+            startDelta(null);
+            return;
+        }
+
+        final Delta.Signature sig = deltaSig;
+        final BlockCache.FileId id = fileId;
+        final Delta[] result = new Delta[1];
+
+        computing = true;
+        send(Header.createPendingPacket(count));
+
+        server.execute(this, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = Delta.compute(source, id.getSize(), sig);
+                } catch (IOException e) {
+                    Log.warn("Could not compare \"" +
+                            requestedFile + "\": " + e.getMessage());
+                } finally {
+                    closeQuietly(source);
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                computing = false;
+
+                if (result[0] != null) server.putDelta(id, sig, result[0]);
+
+                try {
+                    startDelta(result[0]);
+                } catch (IOException e) {
+                    Log.error(e.getMessage());
+                    close();
+                }
+            }
+        });
+    }
+
+    /****************************************************************
+     * Starts sending the differences worked out from the client's copy,
+     * or the whole file if they could not be, unless the session ended
+     * in the meantime.
+     *
+     * @param result the differences, or null
+     ***************************************************************/
+    private void startDelta(Delta result) throws IOException {
+        if (state != State.AWAIT_REQ) return;
+
+        delta = result;
+
+        if (delta == null) {
+            rangeStart = new long[]{0};
+            rangeEnd = new long[]{fileSize};
+        } else {
+            setRanges(delta.getLiterals());
+
+            int perPacket = payloadSize / Delta.COPY_SIZE;
+
+            copyPackets = (delta.getNumCopies() + perPacket - 1) / perPacket;
+
+            Log.info("Client has " + delta.getCopiedBytes() +
+                    " of " + fileSize + " bytes in " +
+                    delta.getNumCopies() + " copies");
+        }
+
+        firstPacket = new long[rangeStart.length];
+        numPackets = copyPackets;
+
+        for (int k = 0; k < rangeStart.length; k++) {
+            firstPacket[k] = numPackets;
+            numPackets += (rangeEnd[k] - rangeStart[k] + payloadSize - 1) /
+                    payloadSize;
+        }
+
+        startSending();
+    }
+
+    /****************************************************************
+     * Reads the part of the file the client asked for after the file
+     * name in its REQ: either byte ranges a resuming client still
+     * needs, or one stripe of a download split over several
+     * connections. Ranges are only used if the file still has the size
+     * and modification time the client listed them against. Otherwise,
+     * or if the REQ asks for nothing in particular or is malformed, the
+     * whole file is sent.
+     *
+     * @param req buffer holding the REQ
+     * @param end index of the byte ending the file name
+     ***************************************************************/
+    private void readRanges(ByteBuffer req, int end) {
+        rangeStart = new long[]{0};
+        rangeEnd = new long[]{fileSize};
+
+        int start = end + 1;
+        int kind = end < req.limit() ? req.get(end) : -1;
+
+        if (version < Header.VERSION) kind = -1;
+
+        if (kind == Header.REQ_STRIPE && req.limit() - start >= 4) {
+            int stripe = req.getShort(start) & 0xFFFF;
+            int stripes = req.getShort(start + 2) & 0xFFFF;
+
+            if (stripe < stripes) {
+                long[] part = Ranges.split(new long[]{0, fileSize}, stripes,
+                        Journal.BLOCK_SIZE)[stripe];
+
+                setRanges(part);
+
+                Log.info("Sending stripe " + (stripe + 1) +
+                        " of " + stripes);
+            }
+        }
+
+        final int preamble = Header.REQ_RANGES_PREAMBLE - 1;
+
+        if (kind == Header.REQ_RANGES && req.limit() - start >= preamble) {
+            long size = req.getLong(start);
+            long mtime = req.getLong(start + 8);
+            int count = req.getShort(start + 16) & 0xFFFF;
+
+            if (size != fileSize || mtime != modified) {
+                Log.info("File changed since the client's " +
+                        "last attempt, sending all of it");
+            } else if (req.limit() - start - preamble >= count * 16) {
+                long[] ranges = new long[count * 2];
+                long previous = 0;
+                boolean valid = true;
+
+                for (int k = 0; k < ranges.length; k += 2) {
+                    ranges[k] = req.getLong(start + preamble + k * 8);
+                    ranges[k + 1] = req.getLong(start + preamble + k * 8 + 8);
+
+                    valid &= ranges[k] >= previous &&
+                            ranges[k + 1] > ranges[k] &&
+                            ranges[k + 1] <= fileSize;
+                    previous = ranges[k + 1];
+                }
+
+                if (valid) {
+                    setRanges(ranges);
+
+                    Log.info("Client asked for " + count +
+                            " ranges");
+                }
+            }
+        }
+
+        firstPacket = new long[rangeStart.length];
+        numPackets = 0;
+
+        for (int k = 0; k < rangeStart.length; k++) {
+            firstPacket[k] = numPackets;
+            numPackets += (rangeEnd[k] - rangeStart[k] + payloadSize - 1) /
+                    payloadSize;
+        }
+    }
+
+    private void setRanges(long[] ranges) {
+        rangeStart = new long[ranges.length / 2];
+        rangeEnd = new long[ranges.length / 2];
+
+        for (int k = 0; k < rangeStart.length; k++) {
+            rangeStart[k] = ranges[2 * k];
+            rangeEnd[k] = ranges[2 * k + 1];
+        }
+    }
+
+    /****************************************************************
+     * @param index packet number, starting at 0
+     * @return the byte range the packet belongs to
+     ***************************************************************/
+    private int findRange(long index) {
+        int low = 0;
+        int high = firstPacket.length - 1;
+
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+
+            if (firstPacket[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return low;
+    }
+
+    /****************************************************************
+     * Slides the window past the cumulative acknowledgement, records
+     * the packets reported by the SACK bitmap and resends the holes
+     * below the highest reported packet.
+     *
+     * @param head view over the acknowledgement
+     ***************************************************************/
+    private void handleAck(Header head) throws IOException {
+        if (state != State.SENDING) return;
+
+        long ack = Header.unwrap(head.getSequenceNum(), lastAck);
+
+        if (Log.isEnabled(Log.Level.TRACE)) {
+            Log.trace(" -Got acknowledgement of packet " + ack);
+        }
+
+        if (ack < lastAck || ack >= nextSeq) return;
+
+        int window = head.getAdvertisedWindow();
+
+        if (window >= 0) clientWindow = window;
+
+        int echo = head.getEchoedTimestamp();
+
+        /* Timestamps make samples of resent packets unambiguous */
+        if (echo != 0) {
+            int sample = timestamp() - echo;
+
+            if (sample >= 0) {
+                rtt.addSample(sample);
+                rttSamples.record(sample);
+            }
+        }
+
+        for (long seq = lastAck + 1; seq <= ack; seq++) {
+            sacked[(int) (seq % Server.MAX_WINDOW)] = false;
+            resent[(int) (seq % Server.MAX_WINDOW)] = false;
+        }
+
+        if (ack > lastAck) {
+            congestion.onAck((int) (ack - lastAck));
+            bytesAcked.add((ack - lastAck) * payloadSize);
+
+            lastAck = ack;
+        }
+
+        if (Progress.INTERVAL > 0 &&
+                lastHeard - lastReport >= Progress.INTERVAL * 1000L) {
+            lastReport = lastHeard;
+
+            Log.info("- " + client.getAddress().getHostAddress() + ":" +
+                    client.getPort() + " acknowledged " + lastAck + " of " +
+                    numPackets + " packets, window " +
+                    congestion.getWindow());
+        }
+
+        if (lastAck >= numPackets) {
+            finish();
+            return;
+        }
+
+        if (head.getSackFlag()) {
+            readSack(head);
+            resendHoles();
+        }
+
+        fillWindow();
+    }
+
+    /****************************************************************
+     * Ends the transfer once the client has every packet, lingering for
+     * its REQ for the digest if the status packet did not carry it.
+     ***************************************************************/
+    private void finish() {
+        Log.info("File transfer complete.");
+        Log.info(server.getBlockCache().toString());
+
+        if (codec != null) {
+            Log.info("Compressed " + rawBytes +
+                    " bytes of payload into " + wireBytes);
+        }
+
+        if (batch == null && version >= Header.VERSION && !digestInStatus) {
+            state = State.CLOSING;
+            return;
+        }
+
+        close();
+    }
+
+    /****************************************************************
+     * Marks the packets listed in the SACK bitmap of an
+     * acknowledgement as received.
+     *
+     * @param head view over the acknowledgement
+     ***************************************************************/
+    private void readSack(Header head) {
+        for (int i = 0; i < head.getSackLength(); i++) {
+            long seq = lastAck + 2 + i;
+
+            if (seq >= nextSeq) break;
+
+            if (head.isSacked(i)) {
+                sacked[(int) (seq % Server.MAX_WINDOW)] = true;
+            }
+        }
+    }
+
+    /****************************************************************
+     * Resends every packet that has at least DUP_THRESHOLD packets
+     * after it reported by the client, cutting the congestion window
+     * once per window of losses.
+     ***************************************************************/
+    private void resendHoles() throws IOException {
+        int sackedAbove = 0;
+
+        for (long seq = nextSeq - 1; seq > lastAck; seq--) {
+            int slot = (int) (seq % Server.MAX_WINDOW);
+
+            if (sacked[slot]) {
+                sackedAbove++;
+                continue;
+            }
+
+            if (sackedAbove < DUP_THRESHOLD || resent[slot]) continue;
+
+            if (seq > recoverSeq) {
+                congestion.onLoss();
+                recoverSeq = nextSeq - 1;
+            }
+
+            if (fec != null) fec.onLoss();
+
+            if (!sendPacket(seq)) return;
+
+            resent[slot] = true;
+            retransmits.increment();
+        }
+    }
+
+    private void sendStatus() throws IOException {
+        byte[] statusPacket;
+
+        if (batch != null) {
+            statusPacket = Header.createBatchStatusPacket(true, numPackets,
+                    fileSize, batch.length);
+        } else if (version >= Header.VERSION) {
+            statusPacket = Header.createStatusPacket(true, numPackets,
+                    fileSize, modified, digestInStatus ? digest : null);
+        } else {
+            statusPacket = Header.createStatusPacket(true, (int) numPackets,
+                    (int) fileSize);
+        }
+
+        send(statusPacket);
+        Log.info("Sending request acknowledgement to client");
+    }
+
+    /****************************************************************
+     * Sends every packet that has not been sent yet and fits in the
+     * window after the last acknowledged packet, and the parity of
+     * every group this completes.
+     ***************************************************************/
+    private void fillWindow() throws IOException {
+        int window = Math.min(congestion.getWindow(), clientWindow);
+        window = Math.min(window, Server.MAX_WINDOW);
+
+        while (nextSeq <= numPackets && nextSeq <= lastAck + window) {
+            long seq = nextSeq;
+
+            /* Sent again from scratch once the socket has room */
+            if (!sendPacket(seq)) return;
+
+            nextSeq++;
+
+            if (fec != null && fec.add(seq, sendHead, numPackets)) {
+                sendParity(seq - (seq - 1) % fecGroup);
+            }
+        }
+    }
+
+    /****************************************************************
+     * Sends the parity packets of the group just completed. They are
+     * not acknowledged, and never resent.
+     *
+     * @param first first packet of the group
+     ***************************************************************/
+    private void sendParity(long first) throws IOException {
+        for (int j = 0; j < fec.getParity(); j++) {
+            ByteBuffer packet = server.getSendBuffer();
+            packet.clear();
+
+            Header head = sendHead.wrap(packet);
+            head.clear();
+            head.setSequenceNum((int) first);
+            head.setVersion(version);
+            head.setParityFlag(true);
+
+            packet.position(Header.HEADER_SIZE);
+            fec.putParity(j, packet);
+            packet.flip();
+
+            if (useCrc) head.appendCrc();
+
+            head.setChecksum();
+
+            try {
+                if (server.send(packet, client)) paritySent.increment();
+            } catch (IOException e) {
+                Log.error("Could not send parity: " + e.getMessage());
+            }
+        }
+
+        fec.nextGroup();
+    }
+
+    /****************************************************************
+     * Reads the given packet's payload from the file and sends it,
+     * stamped with the time it was sent. Packets of a batch come from
+     * the file they fall in, or frame it if they are its first. The
+     * first packets of a delta list the copies instead.
+     *
+     * @param seq packet number, starting at 1
+     * @return false if the socket's send buffer was full and the
+     * packet was not sent
+     ***************************************************************/
+    private boolean sendPacket(long seq) throws IOException {
+        ByteBuffer packet = server.getSendBuffer();
+        packet.clear();
+
+        Header head = sendHead.wrap(packet);
+        head.clear();
+        head.setSequenceNum((int) seq);
+        head.setVersion(version);
+
+        if (version >= Header.VERSION) {
+            head.setTimestampFlag(true);
+            head.setTimestamp(timestamp());
+        }
+
+        final int start = head.getDataOffset();
+
+        int range = findRange(seq - 1);
+
+        if (delta != null && seq <= copyPackets) {
+            int perPacket = payloadSize / Delta.COPY_SIZE;
+            int first = (int) (seq - 1) * perPacket;
+            int last = Math.min(first + perPacket, delta.getNumCopies());
+
+            head.setFileFlag(true);
+            head.setFileOffset(0);
+
+            packet.position(start);
+
+            for (int i = first; i < last; i++) {
+                packet.putLong(delta.getCopyTarget(i));
+                packet.putLong(delta.getCopySource(i));
+                packet.putLong(delta.getCopyLength(i));
+            }
+        } else if (batch == null) {
+            long offset = rangeStart[range] +
+                    payloadSize * (seq - 1 - firstPacket[range]);
+            int dataLen = (int) Math.min(rangeEnd[range] - offset,
+                    payloadSize);
+
+            if (version >= Header.VERSION) head.setFileOffset(offset);
+
+            readPayload(packet, start, fileId, fileChannel, offset, dataLen);
+
+            if (codec != null) compress(head, start);
+        } else if (seq - 1 == firstPacket[range]) {
+            BatchFile file = batch[range];
+
+            head.setFileFlag(true);
+            head.setFileOffset(0);
+
+            long next = range + 1 < batch.length ? firstPacket[range + 1]
+                    : numPackets;
+
+            packet.position(start);
+            packet.putLong(file.id.getSize());
+            packet.putLong(file.id.getModified());
+            packet.putLong(next - firstPacket[range] - 1);
+
+            packet.put(file.name.getBytes(StandardCharsets.UTF_8));
+        } else {
+            long offset = payloadSize * (seq - 2 - firstPacket[range]);
+            int dataLen = (int) Math.min(batch[range].id.getSize() - offset,
+                    payloadSize);
+
+            head.setFileOffset(offset);
+
+            readPayload(packet, start, batch[range].id, openBatchFile(range),
+                    offset, dataLen);
+
+            if (codec != null) compress(head, start);
+        }
+
+        packet.flip();
+
+        if (useCrc) head.appendCrc();
+
+        head.setChecksum();
+
+        int length = packet.remaining();
+
+        try {
+            if (!server.send(packet, client)) return false;
+
+            if (Log.isEnabled(Log.Level.TRACE)) {
+                Log.trace("  Sent packet number " + seq);
+            }
+        } catch (IOException e) {
+            Log.error("Could not send packet " + seq + ": " +
+                    e.getMessage());
+        }
+
+        sentAt[(int) (seq % Server.MAX_WINDOW)] = now();
+
+        packetsSent.increment();
+        bytesSent.add(length);
+
+        return true;
+    }
+
+    /****************************************************************
+     * Copies a payload into a packet through the server's block cache,
+     * leaving the packet's position past it. A file that cannot be read
+     * leaves the payload empty.
+     *
+     * @param packet buffer of the packet
+     * @param start offset of the payload in the packet
+     * @param id identity of the file
+     * @param source file, or null
+     * @param offset position of the payload in the file
+     * @param dataLen length of the payload
+     ***************************************************************/
+    private void readPayload(ByteBuffer packet, int start,
+                             BlockCache.FileId id, FileChannel source,
+                             long offset, int dataLen) throws IOException {
+        packet.limit(start + dataLen);
+        packet.position(start);
+
+        if (source != null) {
+            server.getBlockCache().read(id, source, offset, packet);
+        }
+    }
+
+    /****************************************************************
+     * Compresses the payload of a data packet in place, unless it would
+     * not shrink, in which case it is sent as it is.
+     *
+     * @param head view over the packet, whose buffer is positioned past
+     *             the payload
+     * @param start offset of the payload in the packet
+     ***************************************************************/
+    private void compress(Header head, int start) {
+        ByteBuffer packet = head.getBuffer();
+        int end = packet.position();
+
+        if (payloadView == null) payloadView = packet.duplicate();
+
+        payloadView.limit(end).position(start);
+
+        compressed.clear();
+        compressed.limit(Math.max(0, end - start - 1));
+
+        rawBytes += end - start;
+
+        if (end > start && codec.compress(payloadView, compressed)) {
+            compressed.flip();
+            packet.position(start);
+            packet.put(compressed);
+            head.setCompressedFlag(true);
+        }
+
+        wireBytes += packet.position() - start;
+    }
+
+    /****************************************************************
+     * Opens a file of the batch for reading, or finds it still open,
+     * closing the one least recently used past OPEN_FILES.
+     *
+     * @param index index of the file in the batch
+     * @return the file, or null if it cannot be read
+     ***************************************************************/
+    private FileChannel openBatchFile(int index) {
+        FileChannel channel = openFiles.get(index);
+
+        if (channel != null || batch[index].unreadable) return channel;
+
+        try {
+            channel = server.openFile(batch[index].name);
+        } catch (IOException e) {
+            Log.warn("File '" + batch[index].name + "' could " +
+                    "not be read.");
+            batch[index].unreadable = true;
+            return null;
+        }
+
+        openFiles.put(index, channel);
+
+        if (openFiles.size() > OPEN_FILES) {
+            Iterator<FileChannel> eldest = openFiles.values().iterator();
+            closeQuietly(eldest.next());
+            eldest.remove();
+        }
+
+        return channel;
+    }
+
+    /****************************************************************
+     * Ends the session and releases the requested file.
+     ***************************************************************/
+    void close() {
+        state = State.DONE;
+
+        metrics.remove();
+
+        if (codec != null) {
+            codec.close();
+            codec = null;
+        }
+
+        if (openFiles != null) {
+            for (FileChannel channel : openFiles.values()) {
+                closeQuietly(channel);
+            }
+
+            openFiles.clear();
+        }
+
+        if (fileChannel == null) return;
+
+        closeQuietly(fileChannel);
+        fileChannel = null;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn(e.getMessage());
+        }
+    }
+
+    /**
+     * @return current time in microseconds
+     */
+    static long now() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * @return current time in microseconds, truncated to the 32 bits of
+     * a packet timestamp and never 0
+     */
+    private static int timestamp() {
+        return (int) now() | 1;
+    }
+
+    private void send(byte[] data) throws IOException {
+        server.send(ByteBuffer.wrap(data), client);
+    }
+}
@@ -0,0 +1,115 @@
+package main;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Hashed timer wheel holding the next deadline of every session. Each
+ * slot covers one tick; deadlines further away than one revolution stay
+ * in their slot until the wheel comes around to the right round. All
+ * times are in microseconds.
+ */
+public class TimerWheel {
+
+    private static class Timer {
+        final Session session;
+        final long when;
+
+        Timer(Session session, long when) {
+            this.session = session;
+            this.when = when;
+        }
+    }
+
+    private final long tick;
+
+    private final ArrayDeque<Timer>[] slots;
+
+    /**
+     * Next tick to be processed
+     */
+    private long current;
+
+    private int size;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tick, int numSlots, long now) {
+        this.tick = tick;
+
+        slots = new ArrayDeque[numSlots];
+
+        for (int i = 0; i < numSlots; i++) {
+            slots[i] = new ArrayDeque<Timer>();
+        }
+
+        current = now / tick;
+    }
+
+    /****************************************************************
+     * Schedules a session's timer. A session has a single timer: it
+     * is the one whose time matches {@link Session#getTimerAt()}, any
+     * other entries left in the wheel for it are discarded.
+     *
+     * @param session session to fire
+     * @param when deadline
+     ***************************************************************/
+    public void schedule(Session session, long when) {
+        long t = Math.max(when / tick, current);
+
+        slots[(int) (t % slots.length)].add(new Timer(session, when));
+        size++;
+    }
+
+    /****************************************************************
+     * @param now current time
+     * @return time until the next slot holding a timer, 0 if it is
+     * due, or -1 if the wheel is empty
+     ***************************************************************/
+    public long timeUntilNext(long now) {
+        if (size == 0) return -1;
+
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[(int) ((current + i) % slots.length)].isEmpty()) {
+                continue;
+            }
+
+            return Math.max(0, (current + i) * tick - now);
+        }
+
+        return 0;
+    }
+
+    /****************************************************************
+     * Advances the wheel to the current time, collecting the sessions
+     * whose timers expired.
+     *
+     * @param now current time
+     * @param expired list the expired sessions are added to
+     ***************************************************************/
+    public void expire(long now, List<Session> expired) {
+        long target = now / tick;
+
+        /* Visit every slot at most once after a long pause */
+        if (target - current >= slots.length) {
+            current = target - slots.length + 1;
+        }
+
+        for (; current <= target; current++) {
+            ArrayDeque<Timer> slot = slots[(int) (current % slots.length)];
+
+            for (int i = slot.size(); i > 0; i--) {
+                Timer timer = slot.poll();
+                size--;
+
+                if (timer.when != timer.session.getTimerAt()) continue;
+
+                if (timer.when / tick > current) {
+                    slot.add(timer);
+                    size++;
+                } else {
+                    expired.add(timer.session);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads files from a server without prompting, for use as a
+ * library. Settings start from the udp.* system properties, as for the
+ * interactive client, and the setters override them for every later
+ * download. Downloads run on an executor, any number at once, each
+ * from a port of its own.
+ *
+ * <pre>
+ * TransferClient client = new TransferClient();
+ * client.setStripes(4);
+ * client.fetch("10.0.0.1", 9000, "big.iso", new File("downloads"))
+ *         .thenAccept(file -&gt; ...);
+ * </pre>
+ */
+public class TransferClient {
+
+    /**
+     * Most connections a download may be split over
+     */
+    static final int MAX_STRIPES = 64;
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    /**
+     * Runs downloads unless another executor is set, on daemon threads
+     * created as needed
+     */
+    private static final ExecutorService DEFAULT_EXECUTOR =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "transfer-" +
+                            THREADS.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private Executor executor = DEFAULT_EXECUTOR;
+
+    /**
+     * Port to receive on, 0 for any free one
+     */
+    private int clientPort;
+
+    /**
+     * Largest packet size asked for, set with the udp.packetSize system
+     * property
+     */
+    private int packetSize;
+
+    /**
+     * Whether to probe the path for the largest packet size that gets
+     * through before asking for it, set with the udp.probeMtu system
+     * property
+     */
+    private boolean probeMtu;
+
+    /**
+     * Whether to ask the server for a CRC32C on every data packet, set
+     * with the udp.crc32c system property
+     */
+    private boolean useCrc;
+
+    /**
+     * Number of connections a download is split over, each from its
+     * own port, set with the udp.stripes system property
+     */
+    private int stripes;
+
+    /**
+     * Forward error correction asked of the server, set with the udp.fec
+     * system property as the number of data packets per group and the
+     * most parity packets per group, such as 16:2
+     */
+    private int fecGroup;
+    private int fecParity;
+
+    /**
+     * Codec the server is asked to compress payloads with, set by name
+     * with the udp.compress system property, such as deflate
+     */
+    private int codec;
+
+    /**
+     * Whether to ask only for the differences from a copy of the file
+     * already in the destination, set with the udp.delta system
+     * property
+     */
+    private boolean useDelta;
+
+    /****************************************************************
+     * Creates a client with the settings of the udp.* system
+     * properties. Settings out of range are ignored with a warning.
+     ***************************************************************/
+    public TransferClient() {
+        useCrc = Boolean.getBoolean("udp.crc32c");
+        probeMtu = Boolean.getBoolean("udp.probeMtu");
+        useDelta = Boolean.getBoolean("udp.delta");
+
+        packetSize = Math.max(Server.MIN_PACKET_SIZE, Math.min(
+                Integer.getInteger("udp.packetSize",
+                        Server.DEFAULT_PACKET_SIZE), Server.MAX_PACKET_SIZE));
+        stripes = Math.max(1, Math.min(Integer.getInteger("udp.stripes", 1),
+                MAX_STRIPES));
+
+        String fec = System.getProperty("udp.fec");
+
+        try {
+            if (fec != null && !fec.isEmpty()) setFec(fec);
+        } catch (IllegalArgumentException e) {
+            Log.warn("Ignoring udp.fec=" + fec + ", " + e.getMessage());
+        }
+
+        try {
+            setCompression(System.getProperty("udp.compress", "none"));
+        } catch (IllegalArgumentException e) {
+            Log.warn("Ignoring udp.compress, unknown codec");
+        }
+    }
+
+    /****************************************************************
+     * @param executor runs each download, blocking one of its threads
+     *                 for as long as the download takes
+     ***************************************************************/
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /****************************************************************
+     * @param port port to receive on, with the ports after it used by
+     *             stripes, or 0 for any free ones
+     ***************************************************************/
+    public void setClientPort(int port) {
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException("Invalid port " + port);
+        }
+
+        clientPort = port;
+    }
+
+    /****************************************************************
+     * @param size largest packet size to ask for, brought within what
+     *             the server allows
+     ***************************************************************/
+    public void setPacketSize(int size) {
+        packetSize = Math.max(Server.MIN_PACKET_SIZE,
+                Math.min(size, Server.MAX_PACKET_SIZE));
+    }
+
+    public void setProbeMtu(boolean probe) {
+        probeMtu = probe;
+    }
+
+    public void setCrc(boolean crc) {
+        useCrc = crc;
+    }
+
+    /****************************************************************
+     * @param stripes number of connections to split downloads over,
+     *                1 to {@link #MAX_STRIPES}
+     ***************************************************************/
+    public void setStripes(int stripes) {
+        if (stripes < 1 || stripes > MAX_STRIPES) {
+            throw new IllegalArgumentException("Stripes are 1 to " +
+                    MAX_STRIPES);
+        }
+
+        this.stripes = stripes;
+    }
+
+    /****************************************************************
+     * @param group data packets per group, 0 for no error correction
+     * @param parity most parity packets per group
+     ***************************************************************/
+    public void setFec(int group, int parity) {
+        if (group == 0 && parity == 0) {
+            fecGroup = 0;
+            fecParity = 0;
+            return;
+        }
+
+        if (group < 2 || group > Fec.MAX_GROUP || parity < 0 ||
+                parity > Math.min(group, Fec.MAX_PARITY)) {
+            throw new IllegalArgumentException("groups are 2 to " +
+                    Fec.MAX_GROUP + " packets with at most " +
+                    Fec.MAX_PARITY + " parity packets");
+        }
+
+        fecGroup = group;
+        fecParity = parity;
+    }
+
+    /****************************************************************
+     * @param fec data packets and parity packets per group separated by
+     *            a colon, such as 16:2
+     ***************************************************************/
+    public void setFec(String fec) {
+        String[] parts = fec.split(":");
+
+        try {
+            if (parts.length != 2) throw new NumberFormatException();
+
+            setFec(Integer.parseInt(parts[0].trim()),
+                    Integer.parseInt(parts[1].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("expected data packets " +
+                    "and parity packets per group, like 16:2");
+        }
+    }
+
+    /****************************************************************
+     * @param name name of the codec to ask for, such as deflate, or none
+     ***************************************************************/
+    public void setCompression(String name) {
+        int id = Codecs.forName(name);
+
+        if (id < 0) {
+            throw new IllegalArgumentException("Unknown codec " + name);
+        }
+
+        codec = id;
+    }
+
+    public void setDelta(boolean delta) {
+        useDelta = delta;
+    }
+
+    int getClientPort() {
+        return clientPort;
+    }
+
+    int getPacketSize() {
+        return packetSize;
+    }
+
+    boolean getProbeMtu() {
+        return probeMtu;
+    }
+
+    boolean getCrc() {
+        return useCrc;
+    }
+
+    int getStripes() {
+        return stripes;
+    }
+
+    int getFecGroup() {
+        return fecGroup;
+    }
+
+    int getFecParity() {
+        return fecParity;
+    }
+
+    int getCodec() {
+        return codec;
+    }
+
+    boolean getDelta() {
+        return useDelta;
+    }
+
+    public CompletableFuture<File> fetch(String host, int port, String file,
+                                         File dest) {
+        return fetch(new InetSocketAddress(host, port), file, dest, null);
+    }
+
+    /****************************************************************
+     * Starts downloading a file, or a batch of files, into a directory.
+     * A partial download left there by an earlier attempt is resumed.
+     *
+     * @param server address and port of the server
+     * @param file name of the file, several ';' separated names, a glob
+     *             or a directory ending in '/'
+     * @param dest directory to write into
+     * @param listener told of the bytes received every udp.progressMs
+     *                 milliseconds and once at the end, or null
+     * @return completed with the file written, or the directory for a
+     * batch, or exceptionally with an IOException saying why the
+     * download failed
+     ***************************************************************/
+    public CompletableFuture<File> fetch(final InetSocketAddress server,
+                                         final String file, final File dest,
+                                         final ProgressListener listener) {
+        final CompletableFuture<File> result = new CompletableFuture<File>();
+
+        if (server.isUnresolved()) {
+            result.completeExceptionally(new IOException("Unknown host " +
+                    server.getHostString()));
+            return result;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.complete(new Client(TransferClient.this, server,
+                            file, dest, listener).download());
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            }
+        });
+
+        return result;
+    }
+}